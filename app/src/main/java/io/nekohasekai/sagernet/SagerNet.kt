@@ -136,7 +136,7 @@ class SagerNet : Application(),
     }
 
     override fun getUidInfo(uid: Int): UidInfo {
-        PackageCache.awaitLoadSync()
+        PackageCache.awaitIndexSync()
 
         if (uid <= 1000L) {
             val uidInfo = UidInfo()
@@ -145,7 +145,8 @@ class SagerNet : Application(),
             return uidInfo
         }
 
-        val packageNames = PackageCache.uidMap[uid.toInt()]
+        // the saved index may miss apps installed while we were not running
+        val packageNames = PackageCache[uid] ?: PackageCache.awaitLoadSync().let { PackageCache[uid] }
         if (!packageNames.isNullOrEmpty()) for (packageName in packageNames) {
             val uidInfo = UidInfo()
             uidInfo.label = PackageCache.loadLabel(packageName)
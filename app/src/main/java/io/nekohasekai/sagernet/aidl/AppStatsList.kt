@@ -22,7 +22,12 @@ package io.nekohasekai.sagernet.aidl
 import android.os.Parcelable
 import kotlinx.parcelize.Parcelize
 
+/**
+ * Either every app ([full]) or only the apps changed since the previous list, with the uids gone in [removed].
+ */
 @Parcelize
 class AppStatsList(
-    var data: List<AppStats>
+    var data: List<AppStats>,
+    var removed: IntArray,
+    var full: Boolean
 ) : Parcelable
\ No newline at end of file
@@ -26,6 +26,7 @@ import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
 import android.os.*
+import android.util.SparseArray
 import cn.hutool.json.JSONException
 import io.nekohasekai.sagernet.Action
 import io.nekohasekai.sagernet.BootReceiver
@@ -37,8 +38,10 @@ import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.bg.proto.ProxyInstance
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.database.TrafficHistory
 import io.nekohasekai.sagernet.fmt.Alerts
 import io.nekohasekai.sagernet.fmt.TAG_SOCKS
+import io.nekohasekai.sagernet.fmt.V2rayBuildResult
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.plugin.PluginManager
 import io.nekohasekai.sagernet.utils.PackageCache
@@ -87,6 +90,7 @@ class BaseService {
 
         val binder = Binder(this)
         var connectingJob: Job? = null
+        var reloadingJob: Job? = null
 
         fun changeState(s: State, msg: String? = null) {
             if (state == s && msg == null) return
@@ -111,6 +115,7 @@ class BaseService {
         override val coroutineContext = Dispatchers.Main.immediate + Job()
         private var looper: Job? = null
         private var statsLooper: Job? = null
+        private var historyLooper: Job? = null
 
         override fun getState(): Int = (data?.state ?: State.Idle).ordinal
         override fun getProfileName(): String = data?.proxy?.profile?.displayName() ?: "Idle"
@@ -149,24 +154,25 @@ class BaseService {
                 val sinceLastQueryInSeconds = (queryTime - lastQueryTime).toDouble() / 1000L
                 val proxy = data?.proxy ?: return
                 lastQueryTime = queryTime
-                val (statsOut, outs) = proxy.outboundStats()
+                proxy.outboundStats()
+                TrafficHistory.flushCompleted()
                 val stats = TrafficStats(
                     (proxy.uplinkProxy / sinceLastQueryInSeconds).toLong(),
                     (proxy.downlinkProxy / sinceLastQueryInSeconds).toLong(),
                     if (showDirectSpeed) (proxy.uplinkDirect() / sinceLastQueryInSeconds).toLong() else 0L,
                     if (showDirectSpeed) (proxy.downlinkDirect() / sinceLastQueryInSeconds).toLong() else 0L,
-                    statsOut.uplinkTotal,
-                    statsOut.downlinkTotal
+                    proxy.uplinkTotal,
+                    proxy.downlinkTotal
                 )
                 if (data?.state == State.Connected && bandwidthListeners.isNotEmpty()) {
                     broadcast { item ->
                         if (bandwidthListeners.contains(item.asBinder())) {
                             item.trafficUpdated(proxy.profile.id, stats, true)
-                            outs.forEach { (profileId, stats) ->
+                            proxy.forEachOutboundStats { profileId, uplinkTotal, downlinkTotal ->
                                 item.trafficUpdated(
                                     profileId, TrafficStats(
-                                        txRateDirect = stats.uplinkTotal,
-                                        rxTotal = stats.downlinkTotal
+                                        txRateDirect = uplinkTotal,
+                                        rxTotal = downlinkTotal
                                     ), false
                                 )
                             }
@@ -183,11 +189,64 @@ class BaseService {
             appStats.add(t)
         }
 
+        // last stats sent to listeners, by uid, and listeners still waiting for a full list
+        private val sentStats = SparseArray<AidlAppStats>()
+        private val statsSnapshotListeners = mutableSetOf<IBinder>()
+
+        private fun collectStats(sinceLastQueryInSeconds: Long): SparseArray<AidlAppStats> {
+            val collected = SparseArray<AidlAppStats>(appStats.size)
+            for (it in appStats) {
+                // system uids are all accounted to android
+                val uid = if (it.uid >= 10000) it.uid else 1000
+                val stats = collected[uid]
+                if (stats == null) {
+                    val packageName = sentStats[uid]?.packageName ?: if (uid != 1000) {
+                        PackageCache.packageName(it.uid) ?: "android"
+                    } else {
+                        "android"
+                    }
+                    collected.put(
+                        uid, AidlAppStats(
+                            packageName,
+                            uid,
+                            it.tcpConn,
+                            it.udpConn,
+                            it.tcpConnTotal,
+                            it.udpConnTotal,
+                            it.uplink / sinceLastQueryInSeconds,
+                            it.downlink / sinceLastQueryInSeconds,
+                            it.uplinkTotal,
+                            it.downlinkTotal,
+                            it.deactivateAt
+                        )
+                    )
+                } else {
+                    stats.tcpConnections += it.tcpConn
+                    stats.udpConnections += it.udpConn
+                    stats.tcpConnectionsTotal += it.tcpConnTotal
+                    stats.udpConnectionsTotal += it.udpConnTotal
+                    stats.uplink += it.uplink / sinceLastQueryInSeconds
+                    stats.downlink += it.downlink / sinceLastQueryInSeconds
+                    stats.uplinkTotal += it.uplinkTotal
+                    stats.downlinkTotal += it.downlinkTotal
+                    stats.deactivateAt = if (stats.deactivateAt == 0 || it.deactivateAt == 0) {
+                        0
+                    } else {
+                        maxOf(stats.deactivateAt, it.deactivateAt)
+                    }
+                }
+            }
+            return collected
+        }
+
         private suspend fun loopStats() {
             var lastQueryTime = 0L
             var tun = (data?.proxy?.service as? VpnService)?.tun ?: return
             if (!tun.trafficStatsEnabled) return
 
+            sentStats.clear()
+            statsSnapshotListeners.addAll(statsListeners.keys)
+
             while (true) {
                 val delayMs = statsListeners.values.minOrNull()
                 if (delayMs == 0L) return
@@ -199,31 +258,43 @@ class BaseService {
                 tun = (data?.proxy?.service as? VpnService)?.tun ?: return
                 tun.readAppTraffics(this)
 
-                val statsList = AppStatsList(appStats.map {
+                val collected = collectStats(sinceLastQueryInSeconds)
+                for (it in appStats) {
                     val uid = if (it.uid >= 10000) it.uid else 1000
-                    val packageName = if (uid != 1000) {
-                        PackageCache.uidMap[it.uid]?.iterator()?.next() ?: "android"
-                    } else {
-                        "android"
-                    }
-                    AidlAppStats(
-                        packageName,
-                        uid,
-                        it.tcpConn,
-                        it.udpConn,
-                        it.tcpConnTotal,
-                        it.udpConnTotal,
-                        it.uplink / sinceLastQueryInSeconds,
-                        it.downlink / sinceLastQueryInSeconds,
-                        it.uplinkTotal,
-                        it.downlinkTotal,
-                        it.deactivateAt
+                    TrafficHistory.recordTotal(
+                        TrafficHistory.KIND_APP, collected[uid].packageName, it.uid, it.uplinkTotal, it.downlinkTotal
                     )
-                })
+                }
+                TrafficHistory.flushCompleted()
+
+                // only ship what changed since the last tick, unless a listener has nothing yet
+                val changed = ArrayList<AidlAppStats>()
+                val all = ArrayList<AidlAppStats>(collected.size())
+                for (index in 0 until collected.size()) {
+                    val stats = collected.valueAt(index)
+                    all.add(stats)
+                    if (sentStats[stats.uid] != stats) changed.add(stats)
+                }
+                val removed = ArrayList<Int>()
+                for (index in 0 until sentStats.size()) {
+                    val uid = sentStats.keyAt(index)
+                    if (collected.indexOfKey(uid) < 0) removed.add(uid)
+                }
+                sentStats.clear()
+                for (stats in all) sentStats.put(stats.uid, stats)
+
                 if (data?.state == State.Connected && statsListeners.isNotEmpty()) {
+                    val delta = AppStatsList(changed, removed.toIntArray(), false)
+                    val snapshot = AppStatsList(all, IntArray(0), true)
+                    val hasDelta = changed.isNotEmpty() || removed.isNotEmpty()
                     broadcast { item ->
-                        if (statsListeners.contains(item.asBinder())) {
-                            item.statsUpdated(statsList)
+                        val binder = item.asBinder()
+                        if (statsListeners.contains(binder)) {
+                            if (statsSnapshotListeners.remove(binder)) {
+                                item.statsUpdated(snapshot)
+                            } else if (hasDelta) {
+                                item.statsUpdated(delta)
+                            }
                         }
                     }
                 }
@@ -232,6 +303,25 @@ class BaseService {
 
         }
 
+        /**
+         * Keep the traffic history going while nothing listens, the listener loops record it
+         * themselves as they read the same counters.
+         */
+        private suspend fun loopHistory() {
+            while (true) {
+                delay(TrafficHistory.MINUTE * 1000L)
+                val proxy = data?.proxy ?: return
+                if (data?.state != State.Connected) continue
+                val sampleOutbounds = looper == null
+                val sampleApps = statsLooper == null
+                onDefaultDispatcher {
+                    if (sampleOutbounds) proxy.outboundStats()
+                    if (sampleApps) (proxy.service as? VpnService)?.sampleAppStats()
+                    TrafficHistory.flushCompleted()
+                }
+            }
+        }
+
         override fun startListeningForBandwidth(
             cb: ISagerNetServiceCallback,
             timeout: Long,
@@ -300,6 +390,7 @@ class BaseService {
 
         override fun startListeningForStats(cb: ISagerNetServiceCallback, timeout: Long) {
             launch {
+                statsSnapshotListeners.add(cb.asBinder())
                 if (statsListeners.isEmpty() and (statsListeners.put(
                         cb.asBinder(), timeout
                     ) == null)
@@ -314,6 +405,12 @@ class BaseService {
         }
 
         fun checkLoop() {
+            if (historyLooper == null) {
+                historyLooper = launch {
+                    loopHistory()
+                    historyLooper = null
+                }
+            }
             if (bandwidthListeners.isNotEmpty() && looper == null) {
                 looper = launch {
                     loop()
@@ -331,6 +428,7 @@ class BaseService {
 
         override fun stopListeningForStats(cb: ISagerNetServiceCallback) {
             launch {
+                statsSnapshotListeners.remove(cb.asBinder())
                 if (statsListeners.remove(cb.asBinder()) != null && statsListeners.isEmpty() && statsLooper != null) {
                     statsLooper!!.cancel()
                     statsLooper = null
@@ -339,10 +437,13 @@ class BaseService {
         }
 
         override fun resetTrafficStats() {
+            launch { statsSnapshotListeners.addAll(statsListeners.keys) }
             runOnDefaultDispatcher {
                 SagerDatabase.statsDao.deleteAll()
                 (data?.proxy?.service as? VpnService)?.tun?.resetAppTraffics()
-                val empty = AppStatsList(emptyList())
+                TrafficHistory.resetTotals()
+                TrafficHistory.reset()
+                val empty = AppStatsList(emptyList(), IntArray(0), true)
                 broadcast { item ->
                     if (statsListeners.contains(item.asBinder())) {
                         item.statsUpdated(empty)
@@ -395,6 +496,8 @@ class BaseService {
             if (intent.action == Action.SERVICE) data.binder else null
 
         fun forceLoad() {
+            // the ui wrote the settings right before broadcasting, do not wait for the invalidation
+            DataStore.configurationStore.reloadAll()
             if (DataStore.selectedProxy == 0L) {
                 stopRunner(false, (this as Context).getString(R.string.profile_empty))
                 return
@@ -402,11 +505,63 @@ class BaseService {
             val s = data.state
             when {
                 s == State.Stopped -> startRunner()
+                s == State.Connected -> reloadRunner()
                 s.canStop -> stopRunner(true)
                 else -> Logs.w("Illegal state $s when invoking use")
             }
         }
 
+        /**
+         * Apply configuration changes to the running service.
+         *
+         * Changes living inside the core (routing, DNS, core outbounds) are applied by swapping
+         * the core instance, which keeps plugin processes and external instances running but
+         * still drops every open connection, as the core and the tun stack bound to it are
+         * recreated. Anything else restarts, including an unchanged core config, as the change
+         * is then in a service or tun setting the config does not carry (MTU, tun implementation,
+         * wake lock...).
+         */
+        fun reloadRunner() {
+            val proxy = data.proxy
+            if (proxy == null || proxy.profile.id != DataStore.selectedProxy) {
+                stopRunner(true)
+                return
+            }
+            data.reloadingJob?.cancel()
+            data.reloadingJob = runOnMainDispatcher {
+                val rebuilt = try {
+                    onDefaultDispatcher { proxy.rebuildConfig() }
+                } catch (_: CancellationException) {
+                    return@runOnMainDispatcher
+                } catch (e: Exception) {
+                    // let the restart report it
+                    Logs.w(e)
+                    null
+                }
+                if (data.proxy != proxy || data.state != State.Connected) return@runOnMainDispatcher
+                val (config, diff) = rebuilt ?: return@runOnMainDispatcher stopRunner(true)
+                when {
+                    !diff.canHotReload() || diff.isEmpty() -> stopRunner(true)
+                    else -> try {
+                        Logs.d("Hot reload: $diff")
+                        reloadCore(config)
+                        for ((type, routeName) in config.alerts) {
+                            data.binder.broadcast {
+                                it.routeAlert(type, routeName)
+                            }
+                        }
+                    } catch (e: Exception) {
+                        Logs.w(e)
+                        stopRunner(true)
+                    }
+                }
+            }
+        }
+
+        suspend fun reloadCore(config: V2rayBuildResult) {
+            data.proxy!!.reloadCore(config)
+        }
+
         val isVpnService get() = false
 
         suspend fun startProcesses() {
@@ -437,6 +592,7 @@ class BaseService {
 
             runOnMainDispatcher {
                 data.connectingJob?.cancelAndJoin() // ensure stop connecting first
+                data.reloadingJob?.cancelAndJoin()
                 // we use a coroutineScope here to allow clean-up in parallel
                 coroutineScope {
                     killProcesses()
@@ -516,6 +672,7 @@ class BaseService {
 
             val data = data
             if (data.state != State.Stopped) return Service.START_NOT_STICKY
+            DataStore.configurationStore.reloadAll()
             val profile = SagerDatabase.proxyDao.getById(DataStore.selectedProxy)
             this as Context
             if (profile == null) { // gracefully shutdown: https://stackoverflow.com/q/47337857/2245107
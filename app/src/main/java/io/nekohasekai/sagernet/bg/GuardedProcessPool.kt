@@ -26,20 +26,21 @@ import android.os.SystemClock
 import android.system.ErrnoException
 import android.system.Os
 import android.system.OsConstants
-import android.util.Log
 import androidx.annotation.MainThread
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.utils.Commandline
 import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.Channel
 import java.io.File
 import java.io.IOException
-import java.io.InputStream
-import kotlin.concurrent.thread
 
 class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : CoroutineScope {
     companion object {
+        private const val RESTART_BACKOFF = 500L
+        private const val RESTART_BACKOFF_MAX = 60_000L
+        private const val STABLE_UPTIME = 60_000L
+        private const val MAX_RESTARTS = 10
+
         private val pid by lazy {
             Class.forName("java.lang.ProcessManager\$ProcessImpl").getDeclaredField("pid")
                 .apply { isAccessible = true }
@@ -48,43 +49,40 @@ class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : C
 
     private inner class Guard(private val cmd: List<String>, private val env: Map<String, String> = mapOf()) {
         private lateinit var process: Process
-
-        private fun streamLogger(input: InputStream, logger: (String) -> Unit) = try {
-            input.bufferedReader().forEachLine(logger)
-        } catch (_: IOException) {
-        }    // ignore
+        private lateinit var exit: Deferred<Int>
+        private val cmdName = File(cmd.first()).nameWithoutExtension
 
         fun start() {
             process = ProcessBuilder(cmd).directory(SagerNet.deviceStorage.noBackupFilesDir).apply {
                 environment().putAll(env)
             }.start()
+            exit = ProcessSupervisor.watch(process, cmdName)
         }
 
         @DelicateCoroutinesApi
         suspend fun looper(onRestartCallback: (suspend () -> Unit)?) {
             var running = true
-            val cmdName = File(cmd.first()).nameWithoutExtension
-            val exitChannel = Channel<Int>()
+            var restarts = 0
             try {
                 while (true) {
-                    thread(name = "stderr-$cmdName") {
-                        streamLogger(process.errorStream) { Log.e(cmdName, it) }
-                    }
-                    thread(name = "stdout-$cmdName") {
-                        streamLogger(process.inputStream) { Log.i(cmdName, it) }
-                        // this thread also acts as a daemon thread for waitFor
-                        runBlocking { exitChannel.send(process.waitFor()) }
-                    }
                     val startTime = SystemClock.elapsedRealtime()
-                    val exitCode = exitChannel.receive()
+                    val exitCode = exit.await()
                     running = false
+                    val uptime = SystemClock.elapsedRealtime() - startTime
                     when {
-                        SystemClock.elapsedRealtime() - startTime < 1000 -> throw IOException(
+                        // a process failing right away is misconfigured, restarting will not help
+                        restarts == 0 && uptime < 1000 -> throw IOException(
                             "$cmdName exits too fast (exit code: $exitCode)")
                         exitCode == 128 + OsConstants.SIGKILL -> Logs.w("$cmdName was killed")
                         else -> Logs.w(IOException("$cmdName unexpectedly exits with code $exitCode"))
                     }
-                    Logs.i("restart process: ${Commandline.toString(cmd)} (last exit code: $exitCode)")
+                    if (uptime >= STABLE_UPTIME) restarts = 0
+                    if (restarts >= MAX_RESTARTS) throw IOException(
+                        "$cmdName keeps exiting (exit code: $exitCode)")
+                    val backoff = (RESTART_BACKOFF shl restarts).coerceAtMost(RESTART_BACKOFF_MAX)
+                    restarts++
+                    Logs.i("restart process in ${backoff}ms: ${Commandline.toString(cmd)} (last exit code: $exitCode)")
+                    delay(backoff)
                     start()
                     running = true
                     onRestartCallback?.invoke()
@@ -102,14 +100,14 @@ class GuardedProcessPool(private val onFatal: suspend (IOException) -> Unit) : C
                         } catch (e: ReflectiveOperationException) {
                             Logs.w(e)
                         }
-                        if (withTimeoutOrNull(500) { exitChannel.receive() } != null) return@withContext
+                        if (withTimeoutOrNull(500) { exit.await() } != null) return@withContext
                     }
                     process.destroy()                       // kill the process
                     if (Build.VERSION.SDK_INT >= 26) {
-                        if (withTimeoutOrNull(1000) { exitChannel.receive() } != null) return@withContext
+                        if (withTimeoutOrNull(1000) { exit.await() } != null) return@withContext
                         process.destroyForcibly()           // Force to kill the process if it's still alive
                     }
-                    exitChannel.receive()
+                    exit.await()
                 }                                           // otherwise process already exited, nothing to be done
             }
         }
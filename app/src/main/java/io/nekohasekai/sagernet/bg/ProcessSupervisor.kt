@@ -0,0 +1,234 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
+import android.util.Log
+import io.nekohasekai.sagernet.ktx.Logs
+import kotlinx.coroutines.*
+import java.io.*
+import java.util.concurrent.Executors
+
+/**
+ * Watches the pipes and exit of every plugin process from a single thread.
+ *
+ * The thread blocks in [Os.poll] on the pipe descriptors until one of them is readable or
+ * [POLL_TIMEOUT] passes, which is also how often exits are checked. Each pipe is read at most
+ * [BYTES_PER_TICK] per round, so a flooding process cannot starve the others.
+ * Lines go through a bounded ring buffer and at most [LINES_PER_TICK] of them reach
+ * logcat per round; older lines are dropped when a process floods its output.
+ */
+object ProcessSupervisor {
+
+    private const val TICK_MIN = 50
+    private const val POLL_TIMEOUT = 500
+    private const val RING_SIZE = 512
+    private const val LINES_PER_TICK = 32
+    private const val BYTES_PER_TICK = 16384
+    private const val MAX_LINE = 4096
+
+    private val filterIn by lazy {
+        FilterInputStream::class.java.getDeclaredField("in").apply { isAccessible = true }
+    }
+
+    /**
+     * The descriptor behind a process pipe, or null if it cannot be reached and the pipe has to be
+     * polled by timer instead.
+     */
+    private fun InputStream.fileDescriptor(): FileDescriptor? {
+        var stream: InputStream? = this
+        try {
+            while (stream is FilterInputStream) stream = filterIn.get(stream) as InputStream?
+        } catch (e: ReflectiveOperationException) {
+            Logs.w(e)
+            return null
+        }
+        return (stream as? FileInputStream)?.fd
+    }
+
+    private class Pipe(val input: InputStream, val priority: Int) {
+        val line = ByteArrayOutputStream()
+        val fd = input.fileDescriptor()
+        var ready = false
+        var closed = false
+    }
+
+    private class Watched(val process: Process, val tag: String, val exit: CompletableDeferred<Int>) {
+        val pipes = arrayOf(Pipe(process.errorStream, Log.ERROR), Pipe(process.inputStream, Log.INFO))
+    }
+
+    private class LogLine(val priority: Int, val tag: String, val message: String)
+
+    private val dispatcher by lazy {
+        Executors.newSingleThreadExecutor { Thread(it, "ProcessSupervisor").apply { isDaemon = true } }
+            .asCoroutineDispatcher()
+    }
+
+    // only touched from the supervisor thread
+    private val watched = ArrayList<Watched>()
+    private val ring = ArrayDeque<LogLine>(RING_SIZE)
+    private var dropped = 0
+    private val buffer = ByteArray(8192)
+    private var loop: Job? = null
+
+    /**
+     * Start watching [process], returning its exit code once it exits and its output is drained.
+     */
+    @OptIn(DelicateCoroutinesApi::class)
+    fun watch(process: Process, tag: String): Deferred<Int> {
+        val exit = CompletableDeferred<Int>()
+        GlobalScope.launch(dispatcher) {
+            watched.add(Watched(process, tag, exit))
+            if (loop == null) loop = launch { supervise() }
+        }
+        return exit
+    }
+
+    private suspend fun supervise() {
+        while (watched.isNotEmpty()) {
+            var pending = false
+            val iterator = watched.iterator()
+            while (iterator.hasNext()) {
+                val item = iterator.next()
+                for (pipe in item.pipes) pending = drain(item.tag, pipe) or pending
+                val exitCode = try {
+                    item.process.exitValue()
+                } catch (e: IllegalThreadStateException) {
+                    continue
+                }
+                for (pipe in item.pipes) {
+                    // the process is gone, so its remaining output is bounded
+                    var more = true
+                    while (more) more = drain(item.tag, pipe)
+                    flushLine(item.tag, pipe)
+                }
+                iterator.remove()
+                item.exit.complete(exitCode)
+            }
+            forward()
+            // let the dispatcher pick up newly watched processes between rounds
+            yield()
+            await(
+                when {
+                    pending -> 0
+                    ring.isNotEmpty() -> TICK_MIN
+                    else -> POLL_TIMEOUT
+                }
+            )
+        }
+        while (ring.isNotEmpty()) forward()
+        loop = null
+    }
+
+    /**
+     * Block until a pipe is readable or [timeout] milliseconds pass.
+     */
+    private fun await(timeout: Int) {
+        var pollTimeout = timeout
+        val pipes = ArrayList<Pipe>()
+        val fds = ArrayList<StructPollfd>()
+        for (item in watched) for (pipe in item.pipes) {
+            if (pipe.closed) continue
+            val fd = pipe.fd
+            if (fd == null) {
+                pollTimeout = pollTimeout.coerceAtMost(TICK_MIN)
+                continue
+            }
+            pipes.add(pipe)
+            fds.add(StructPollfd().apply {
+                this.fd = fd
+                events = OsConstants.POLLIN.toShort()
+            })
+        }
+        try {
+            Os.poll(fds.toTypedArray(), pollTimeout)
+        } catch (e: ErrnoException) {
+            if (e.errno != OsConstants.EINTR) Logs.w(e)
+        }
+        for ((index, pipe) in pipes.withIndex()) pipe.ready = fds[index].revents.toInt() != 0
+    }
+
+    /**
+     * Read at most [BYTES_PER_TICK] from [pipe], returning true if more output is left.
+     */
+    private fun drain(tag: String, pipe: Pipe): Boolean {
+        if (pipe.closed) return false
+        var total = 0
+        try {
+            while (total < BYTES_PER_TICK) {
+                var available = pipe.input.available()
+                if (available <= 0) {
+                    // poll reported the pipe without data to read, so the read below is
+                    // either EOF or a partial read, but never blocks
+                    if (!pipe.ready) break
+                    available = buffer.size
+                }
+                pipe.ready = false
+                val count = pipe.input.read(
+                    buffer, 0, available.coerceAtMost(buffer.size).coerceAtMost(BYTES_PER_TICK - total)
+                )
+                if (count < 0) {
+                    pipe.closed = true
+                    break
+                }
+                if (count == 0) break
+                total += count
+                for (index in 0 until count) {
+                    val byte = buffer[index]
+                    if (byte == '\n'.code.toByte() || pipe.line.size() >= MAX_LINE) {
+                        flushLine(tag, pipe)
+                        if (byte == '\n'.code.toByte()) continue
+                    }
+                    pipe.line.write(byte.toInt())
+                }
+            }
+            return total >= BYTES_PER_TICK && pipe.input.available() > 0
+        } catch (_: IOException) {
+            // the pipe is closed once the process exits
+            pipe.closed = true
+        }
+        return false
+    }
+
+    private fun flushLine(tag: String, pipe: Pipe) {
+        if (pipe.line.size() == 0) return
+        if (ring.size >= RING_SIZE) {
+            ring.removeFirst()
+            dropped++
+        }
+        ring.addLast(LogLine(pipe.priority, tag, pipe.line.toString()))
+        pipe.line.reset()
+    }
+
+    private fun forward() {
+        if (dropped > 0) {
+            Log.w("ProcessSupervisor", "$dropped lines of plugin output dropped")
+            dropped = 0
+        }
+        repeat(LINES_PER_TICK.coerceAtMost(ring.size)) {
+            val line = ring.removeFirst()
+            Log.println(line.priority, line.tag, line.message)
+        }
+    }
+
+}
@@ -27,6 +27,7 @@ import android.content.Intent
 import android.content.ServiceConnection
 import android.os.IBinder
 import android.os.RemoteException
+import android.util.SparseArray
 import io.nekohasekai.sagernet.Action
 import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.SagerNet
@@ -48,7 +49,11 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
     interface Callback {
         fun stateChanged(state: BaseService.State, profileName: String?, msg: String?)
         fun trafficUpdated(profileId: Long, stats: TrafficStats, isCurrent: Boolean) {}
-        fun statsUpdated(stats: List<AppStats>) {}
+        /**
+         * [replaced] is set when the service sent a full list or apps went away, rather than
+         * updating some of them in place.
+         */
+        fun statsUpdated(stats: List<AppStats>, replaced: Boolean) {}
         fun observatoryResultsUpdated(groupId: Long) {}
 
         fun profilePersisted(profileId: Long) {}
@@ -98,7 +103,13 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
 
         override fun statsUpdated(statsList: AppStatsList) {
             val callback = callback ?: return
-            callback.statsUpdated(statsList.data)
+            val merged = synchronized(appStats) {
+                if (statsList.full) appStats.clear()
+                for (uid in statsList.removed) appStats.remove(uid)
+                for (stats in statsList.data) appStats.put(stats.uid, stats)
+                List(appStats.size()) { appStats.valueAt(it) }
+            }
+            callback.statsUpdated(merged, statsList.full || statsList.removed.isNotEmpty())
         }
 
         override fun routeAlert(type: Int, routeName: String) {
@@ -121,6 +132,9 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
 
     private var binder: IBinder? = null
 
+    // the service only sends the apps that changed, merged here by uid
+    private val appStats = SparseArray<AppStats>()
+
     var bandwidthTimeout = 0L
         set(value) {
             try {
@@ -32,6 +32,8 @@ import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
 import io.nekohasekai.sagernet.group.GroupUpdater
 import io.nekohasekai.sagernet.ktx.app
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import java.util.concurrent.TimeUnit
 
 object SubscriptionUpdater {
@@ -82,21 +84,26 @@ object SubscriptionUpdater {
                 subscriptions = subscriptions.filter { !it.subscription!!.updateWhenConnectedOnly }
             }
 
-            if (subscriptions.isNotEmpty()) for (profile in subscriptions) {
-                val subscription = profile.subscription!!
+            val now = (System.currentTimeMillis() / 1000).toInt()
+            subscriptions = subscriptions.filter {
+                val subscription = it.subscription!!
+                now - subscription.lastUpdated >= subscription.autoUpdateDelay * 60
+            }
 
-                if (((System.currentTimeMillis() / 1000).toInt() - subscription.lastUpdated) < subscription.autoUpdateDelay * 60) {
-                    continue
+            if (subscriptions.isNotEmpty()) {
+                val notifyLock = Mutex()
+                suspend fun notifyProgress(finished: Int) = notifyLock.withLock {
+                    notification.setContentText(
+                        applicationContext.getString(
+                            R.string.subscription_update_message,
+                            subscriptions.joinToString { it.displayName() })
+                    ).setProgress(subscriptions.size, finished, false)
+                        .setSubText("$finished/${subscriptions.size}")
+                    nm.notify(2, notification.build())
                 }
 
-                notification.setContentText(
-                    applicationContext.getString(
-                        R.string.subscription_update_message, profile.displayName()
-                    )
-                )
-                nm.notify(2, notification.build())
-
-                GroupUpdater.executeUpdate(profile, false)
+                notifyProgress(0)
+                GroupUpdater.executeUpdates(subscriptions, false) { notifyProgress(it) }
             }
 
             nm.cancel(2)
@@ -39,7 +39,9 @@ import io.nekohasekai.sagernet.*
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
 import io.nekohasekai.sagernet.database.StatsEntity
+import io.nekohasekai.sagernet.database.TrafficHistory
 import io.nekohasekai.sagernet.fmt.LOCALHOST
+import io.nekohasekai.sagernet.fmt.V2rayBuildResult
 import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ui.VpnRequestActivity
@@ -105,6 +107,21 @@ class VpnService : BaseVpnService(),
         startVpn()
     }
 
+    override suspend fun reloadCore(config: V2rayBuildResult) {
+        persistAppStats()
+        tun?.apply {
+            close()
+            tun = null
+            Seq.destroyRef(refnum)
+        }
+        val oldConn = conn
+        super.reloadCore(config)
+        // the tun stack is bound to the closed core and has to be rebuilt,
+        // establish() replaces the current interface in place
+        startVpn()
+        oldConn.close()
+    }
+
     override var wakeLock: PowerManager.WakeLock? = null
 
     @SuppressLint("WakelockTimeout")
@@ -400,41 +417,61 @@ class VpnService : BaseVpnService(),
         appStats.add(stats)
     }
 
-    fun persistAppStats() {
-        if (!DataStore.appTrafficStatistics) return
-        val tun = tun ?: return
+    private fun readAppStats(): List<AppStats>? {
+        if (!DataStore.appTrafficStatistics) return null
+        val tun = tun ?: return null
         appStats.clear()
         tun.readAppTraffics(this)
-        val toUpdate = mutableListOf<StatsEntity>()
-        val all = SagerDatabase.statsDao.all().associateBy { it.packageName }
+        return appStats
+    }
+
+    private fun packageName(stats: AppStats) = if (stats.uid >= 10000) {
+        PackageCache.packageName(stats.uid) ?: "android"
+    } else {
+        "android"
+    }
+
+    /**
+     * Record the per-app totals into the traffic history, for when no stats listener does.
+     */
+    @Synchronized
+    fun sampleAppStats() {
+        for (stats in readAppStats() ?: return) {
+            TrafficHistory.recordTotal(
+                TrafficHistory.KIND_APP, packageName(stats), stats.uid, stats.uplinkTotal, stats.downlinkTotal
+            )
+        }
+    }
+
+    @Synchronized
+    fun persistAppStats() {
+        val appStats = readAppStats() ?: return
+        val sessionStats = LinkedHashMap<String, StatsEntity>()
         for (stats in appStats) {
-            val packageName = if (stats.uid >= 10000) {
-                PackageCache.uidMap[stats.uid]?.iterator()?.next() ?: "android"
-            } else {
-                "android"
-            }
-            if (!all.containsKey(packageName)) {
-                SagerDatabase.statsDao.create(
-                    StatsEntity(
-                        packageName = packageName,
-                        tcpConnections = stats.tcpConnTotal,
-                        udpConnections = stats.udpConnTotal,
-                        uplink = stats.uplinkTotal,
-                        downlink = stats.downlinkTotal
-                    )
+            val packageName = packageName(stats)
+            TrafficHistory.recordTotal(
+                TrafficHistory.KIND_APP, packageName, stats.uid, stats.uplinkTotal, stats.downlinkTotal
+            )
+            val entity = sessionStats.getOrPut(packageName) { StatsEntity(packageName = packageName) }
+            entity.tcpConnections += stats.tcpConnTotal
+            entity.udpConnections += stats.udpConnTotal
+            entity.uplink += stats.uplinkTotal
+            entity.downlink += stats.downlinkTotal
+        }
+        if (sessionStats.isNotEmpty()) SagerDatabase.runInTransaction {
+            for (stats in sessionStats.values) {
+                val updated = SagerDatabase.statsDao.add(
+                    stats.packageName,
+                    stats.tcpConnections,
+                    stats.udpConnections,
+                    stats.uplink,
+                    stats.downlink
                 )
-            } else {
-                val entity = all[packageName]!!
-                entity.tcpConnections += stats.tcpConnTotal
-                entity.udpConnections += stats.udpConnTotal
-                entity.uplink += stats.uplinkTotal
-                entity.downlink += stats.downlinkTotal
-                toUpdate.add(entity)
+                if (updated == 0) SagerDatabase.statsDao.create(stats)
             }
         }
-        if (toUpdate.isNotEmpty()) {
-            SagerDatabase.statsDao.update(toUpdate)
-        }
+        TrafficHistory.flush()
+        TrafficHistory.resetTotals()
     }
 
     override fun onRevoke() = stopRunner()
@@ -0,0 +1,117 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.proto
+
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.runOnIoDispatcher
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Absorbs observatory results in memory and writes them back in batches.
+ *
+ * [update] only touches concurrent maps, so the core callback thread never waits for SQLite.
+ * Every [interval] milliseconds the dirty rows are written in one [ProxyEntity.Dao.updateProxy]
+ * transaction, and [onFlushed] is called once for each group that changed.
+ */
+class ObservatoryStatusPersister(
+    private val interval: Long = DEFAULT_INTERVAL,
+    private val resolve: (Long) -> ProxyEntity?,
+    private val onFlushed: suspend (Long) -> Unit,
+) {
+
+    companion object {
+        const val DEFAULT_INTERVAL = 2000L
+    }
+
+    data class Status(val status: Int, val ping: Int, val error: String?)
+
+    private val persisted = ConcurrentHashMap<Long, Status>()
+    private val pending = ConcurrentHashMap<Long, Status>()
+
+    private val flusher = runOnIoDispatcher {
+        while (isActive) {
+            delay(interval)
+            try {
+                flush()
+            } catch (e: Exception) {
+                Logs.w(e)
+            }
+        }
+    }
+
+    fun update(id: Long, status: Status) {
+        if (persisted[id] == status) {
+            pending.remove(id)
+        } else {
+            pending[id] = status
+        }
+    }
+
+    suspend fun flush() {
+        if (pending.isEmpty()) return
+
+        val updates = HashMap<Long, Status>()
+        for ((id, status) in pending) {
+            // a newer status may have arrived meanwhile, leave it for the next round
+            if (pending.remove(id, status)) updates[id] = status
+        }
+
+        val profiles = ArrayList<ProxyEntity>(updates.size)
+        val missing = ArrayList<Long>()
+        for (id in updates.keys) {
+            val profile = resolve(id)
+            if (profile != null) profiles.add(profile) else missing.add(id)
+        }
+        if (missing.isNotEmpty()) {
+            profiles.addAll(SagerDatabase.proxyDao.getEntities(missing))
+        }
+
+        val toUpdate = profiles.filter { profile ->
+            val status = updates[profile.id]!!
+            persisted[profile.id] = status
+            if (profile.status == status.status && profile.ping == status.ping && profile.error == status.error) {
+                return@filter false
+            }
+            profile.status = status.status
+            profile.ping = status.ping
+            profile.error = status.error
+            true
+        }
+        if (toUpdate.isEmpty()) return
+
+        SagerDatabase.proxyDao.updateProxy(toUpdate)
+        Logs.d("Persisted observatory results of ${toUpdate.size} profiles")
+
+        for (groupId in toUpdate.mapTo(HashSet()) { it.groupId }) {
+            onFlushed(groupId)
+        }
+    }
+
+    suspend fun close() {
+        flusher.cancelAndJoin()
+        flush()
+    }
+
+}
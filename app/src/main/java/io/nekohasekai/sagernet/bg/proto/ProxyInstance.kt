@@ -21,11 +21,17 @@ package io.nekohasekai.sagernet.bg.proto
 
 import cn.hutool.core.util.NumberUtil
 import com.v2ray.core.app.observatory.OutboundStatus
+import go.Seq
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.bg.BaseService
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.ProxyEntity
 import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.database.TrafficHistory
+import io.nekohasekai.sagernet.fmt.V2rayBuildResult
+import io.nekohasekai.sagernet.fmt.V2rayConfigDiff
+import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.fmt.diff
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
 import io.nekohasekai.sagernet.utils.DirectBoot
@@ -35,9 +41,6 @@ import libcore.ErrorHandler
 import libcore.Libcore
 import libcore.ObservatoryStatusUpdateListener
 import java.io.IOException
-import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import kotlin.concurrent.timerTask
 
 class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) : V2RayInstance(
     profile
@@ -60,12 +63,7 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
     override fun launch() {
         super.launch()
 
-        if (config.observerTag.isNotBlank()) {
-            v2rayPoint.setStatusUpdateListener(config.observerTag, this)
-            observatoryJob = runOnDefaultDispatcher {
-                sendInitStatuses()
-            }
-        }
+        listenObservatory()
 
         if (DataStore.allowAccess) {
             val api = ApiInstance()
@@ -81,36 +79,93 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         SagerNet.started = true
     }
 
+    private fun listenObservatory() {
+        if (config.observerTag.isNotBlank()) {
+            v2rayPoint.setStatusUpdateListener(config.observerTag, this)
+            observatoryJob = runOnDefaultDispatcher {
+                sendInitStatuses()
+            }
+        }
+    }
+
+    /**
+     * Build the configuration again and diff it against the running one.
+     */
+    fun rebuildConfig(): Pair<V2rayBuildResult, V2rayConfigDiff> {
+        val entity = SagerDatabase.proxyDao.getById(profile.id) ?: profile
+        val newConfig = buildV2RayConfig(entity, previous = config)
+        return newConfig to newConfig.diff(config)
+    }
+
+    /**
+     * Replace the running core with one loaded from [newConfig].
+     *
+     * Plugin processes and external instances are kept, so this is only valid
+     * if [V2rayConfigDiff.canHotReload] holds. The old core is closed, so its
+     * connections are dropped.
+     */
+    fun reloadCore(newConfig: V2rayBuildResult) {
+        // counters of the old core are gone after close
+        runBlocking { outboundStats() }
+        if (::observatoryJob.isInitialized) observatoryJob.cancel()
+        Libcore.setCurrentDomainNameSystemQueryInstance(null)
+
+        val oldPoint = v2rayPoint
+        oldPoint.close()
+        Seq.destroyRef(oldPoint.refnum)
+
+        config = newConfig
+        statsQueries = null
+        Logs.d(config.config)
+        v2rayPoint = libcore.V2RayInstance()
+        loadConfig()
+        v2rayPoint.start(this)
+
+        listenObservatory()
+        Libcore.setCurrentDomainNameSystemQueryInstance(v2rayPoint)
+    }
+
     fun sendInitStatuses() {
         val time = (System.currentTimeMillis() / 1000) - 300
-        for (observatoryTag in config.observatoryTags) {
+        val subjects = config.observatoryTags.mapNotNull { observatoryTag ->
             val profileId = observatoryTag.substringAfter("global-")
-            if (NumberUtil.isLong(profileId)) {
-                val id = profileId.toLong()
-                val profile = when {
-                    id == profile.id -> profile
-                    statsOutbounds.containsKey(id) -> statsOutbounds[id]!!.proxyEntity
-                    else -> SagerDatabase.proxyDao.getById(id)
-                } ?: continue
-
-                if (profile.status > 0) v2rayPoint.updateStatus(
-                    config.observerTag,
-                    OutboundStatus.newBuilder()
-                        .setOutboundTag(observatoryTag)
-                        .setAlive(profile.status == 1)
-                        .setDelay(profile.ping.toLong())
-                        .setLastErrorReason(profile.error ?: "")
-                        .setLastTryTime(time)
-                        .setLastSeenTime(time)
-                        .build()
-                        .toByteArray()
-                )
-            }
+            if (NumberUtil.isLong(profileId)) observatoryTag to profileId.toLong() else null
+        }
+        // profiles of this config are at hand, look up the rest with one query
+        val profiles = HashMap<Long, ProxyEntity>()
+        val missing = ArrayList<Long>()
+        for ((observatoryTag, id) in subjects) {
+            val profile = statsProfile(id) ?: config.outboundTagsAll[observatoryTag]
+            if (profile != null) profiles[id] = profile else missing.add(id)
+        }
+        if (missing.isNotEmpty()) {
+            SagerDatabase.proxyDao.getEntities(missing).forEach { profiles[it.id] = it }
+        }
+        for ((observatoryTag, id) in subjects) {
+            val profile = profiles[id] ?: continue
+
+            if (profile.status > 0) v2rayPoint.updateStatus(
+                config.observerTag,
+                OutboundStatus.newBuilder()
+                    .setOutboundTag(observatoryTag)
+                    .setAlive(profile.status == 1)
+                    .setDelay(profile.ping.toLong())
+                    .setLastErrorReason(profile.error ?: "")
+                    .setLastTryTime(time)
+                    .setLastSeenTime(time)
+                    .build()
+                    .toByteArray()
+            )
         }
     }
 
-    val updateTimer = lazy { Timer("Observatory Timer") }
-    val updateTasks by lazy { ConcurrentHashMap<Long, TimerTask>() }
+    private val statusPersister = lazy {
+        ObservatoryStatusPersister(resolve = { statsProfile(it) }) { groupId ->
+            service.data.binder.broadcast {
+                it.observatoryResultsUpdated(groupId)
+            }
+        }
+    }
 
     @Throws(Exception::class)
     override fun onUpdateObservatoryStatus(statusPb: ByteArray?) {
@@ -120,46 +175,11 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         val status = OutboundStatus.parseFrom(statusPb)
         val profileId = status.outboundTag.substringAfter("global-")
         if (NumberUtil.isLong(profileId)) {
-            val id = profileId.toLong()
-            val profile = when {
-                id == profile.id -> profile
-                statsOutbounds.containsKey(id) -> statsOutbounds[id]!!.proxyEntity
-                else -> {
-                    SagerDatabase.proxyDao.getById(id)
-                }
-            }
-
-            if (profile != null) {
-                val newStatus = if (status.alive) 1 else 3
-                val newDelay = status.delay.toInt()
-                val newErrorReason = status.lastErrorReason
-
-                if (profile.status != newStatus || profile.ping != newDelay || profile.error != newErrorReason) {
-                    profile.status = newStatus
-                    profile.ping = newDelay
-                    profile.error = newErrorReason
-
-                    SagerDatabase.proxyDao.updateProxy(profile)
-
-                    Logs.d("Send result for #$profileId ${profile.displayName()}")
-
-                    val groupId = profile.groupId
-                    val task = timerTask {
-                        if (updateTasks[groupId] == this) {
-                            runOnDefaultDispatcher {
-                                service.data.binder.broadcast {
-                                    it.observatoryResultsUpdated(groupId)
-                                }
-                            }
-                            updateTasks.remove(groupId)
-                        }
-                    }
-                    updateTimer.value.schedule(task, 2000L)
-                    updateTasks.put(groupId, task)?.cancel()
-                }
-            } else {
-                Logs.d("Profile with id #$profileId not found")
-            }
+            statusPersister.value.update(
+                profileId.toLong(), ObservatoryStatusPersister.Status(
+                    if (status.alive) 1 else 3, status.delay.toInt(), status.lastErrorReason
+                )
+            )
         } else {
             Logs.d("Persist skipped on outbound ${status.outboundTag}")
         }
@@ -172,7 +192,7 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         persistStats()
         super.close()
 
-        if (updateTimer.isInitialized()) updateTimer.value.cancel()
+        if (statusPersister.isInitialized()) runBlocking { statusPersister.value.close() }
         if (::observatoryJob.isInitialized) observatoryJob.cancel()
     }
 
@@ -182,106 +202,103 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         return v2rayPoint.queryStats(tag, direct)
     }
 
-    private val currentTags by lazy {
-        mapOf(* config.outboundTagsCurrent.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
-    }
+    /**
+     * Every outbound tag to query, in one flat table: [kinds] tells how the counters are
+     * accounted and [slots] where they are accumulated, -1 for none.
+     */
+    private class StatsQueries(val tags: Array<String>, val kinds: IntArray, val slots: IntArray)
 
-    private val statsTags by lazy {
-        mapOf(*  config.outboundTags.toMutableList().apply {
-            removeAll(config.outboundTagsCurrent)
-        }.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
+    private companion object {
+        const val STATS_CURRENT = 0
+        const val STATS_OTHER = 1
+        const val STATS_INTER = 2
     }
 
-    private val interTags by lazy {
-        config.outboundTagsAll.filterKeys { !config.outboundTags.contains(it) }
+    // accumulated counters of outbounds other than the main profile, indexed by slot
+    private val slotProfiles = ArrayList<ProxyEntity>()
+    private val profileSlots = HashMap<Long, Int>()
+    private var slotUplink = LongArray(8)
+    private var slotDownlink = LongArray(8)
+
+    private fun slotOf(proxyEntity: ProxyEntity?): Int {
+        if (proxyEntity == null || proxyEntity.id == profile.id) return -1
+        return profileSlots.getOrPut(proxyEntity.id) {
+            slotProfiles.add(proxyEntity)
+            if (slotProfiles.size > slotUplink.size) {
+                slotUplink = slotUplink.copyOf(slotUplink.size * 2)
+                slotDownlink = slotDownlink.copyOf(slotDownlink.size * 2)
+            }
+            slotProfiles.size - 1
+        }
     }
 
-    class OutboundStats(
-        val proxyEntity: ProxyEntity, var uplinkTotal: Long = 0L, var downlinkTotal: Long = 0L
-    )
-
-    private val statsOutbounds = hashMapOf<Long, OutboundStats>()
-    private fun registerStats(
-        proxyEntity: ProxyEntity, uplink: Long? = null, downlink: Long? = null
-    ) {
-        if (proxyEntity.id == outboundStats.proxyEntity.id) return
-        val stats = statsOutbounds.getOrPut(proxyEntity.id) {
-            OutboundStats(proxyEntity)
-        }
-        if (uplink != null) {
-            stats.uplinkTotal += uplink
-        }
-        if (downlink != null) {
-            stats.downlinkTotal += downlink
+    fun statsProfile(id: Long) = if (id == profile.id) profile else profileSlots[id]?.let { slotProfiles[it] }
+
+    private fun buildStatsQueries(): StatsQueries {
+        val tags = ArrayList<String>()
+        val kinds = ArrayList<Int>()
+        val slots = ArrayList<Int>()
+        fun add(tag: String, kind: Int) {
+            tags.add(tag)
+            kinds.add(kind)
+            slots.add(slotOf(config.outboundTagsAll[tag]))
         }
+        config.outboundTagsCurrent.forEach { add(it, STATS_CURRENT) }
+        config.outboundTags.forEach { if (it !in config.outboundTagsCurrent) add(it, STATS_OTHER) }
+        config.outboundTagsAll.keys.forEach { if (it !in config.outboundTags) add(it, STATS_INTER) }
+        return StatsQueries(tags.toTypedArray(), kinds.toIntArray(), slots.toIntArray())
     }
 
+    private var statsQueries: StatsQueries? = null
+
     var uplinkProxy = 0L
     var downlinkProxy = 0L
+    var uplinkTotal = 0L
+    var downlinkTotal = 0L
     var uplinkTotalDirect = 0L
     var downlinkTotalDirect = 0L
 
-    private val outboundStats = OutboundStats(profile)
-    suspend fun outboundStats(): Pair<OutboundStats, HashMap<Long, OutboundStats>> {
-        if (!isInitialized()) return outboundStats to statsOutbounds
+    suspend fun outboundStats() {
+        if (!isInitialized()) return
         uplinkProxy = 0L
         downlinkProxy = 0L
 
-        val currentUpLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "uplink").apply {
-                profile?.also {
-                    registerStats(
-                        it, uplink = this
+        val queries = statsQueries ?: buildStatsQueries().also { statsQueries = it }
+        for (index in queries.tags.indices) {
+            val tag = queries.tags[index]
+            val uplink = queryStats(tag, "uplink")
+            val downlink = queryStats(tag, "downlink")
+
+            val slot = queries.slots[index]
+            if (slot >= 0) {
+                slotUplink[slot] += uplink
+                slotDownlink[slot] += downlink
+                TrafficHistory.record(
+                    TrafficHistory.KIND_OUTBOUND, slotProfiles[slot].id.toString(), uplink, downlink
+                )
+            }
+            when (queries.kinds[index]) {
+                STATS_CURRENT -> {
+                    TrafficHistory.record(
+                        TrafficHistory.KIND_OUTBOUND, profile.id.toString(), uplink, downlink
                     )
+                    uplinkProxy += uplink
+                    downlinkProxy += downlink
+                    uplinkTotal += uplink
+                    downlinkTotal += downlink
                 }
-            }
-        }
-        val currentDownLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "downlink").apply {
-                profile?.also {
-                    registerStats(it, downlink = this)
+                STATS_OTHER -> {
+                    uplinkProxy += uplink
+                    downlinkProxy += downlink
                 }
             }
         }
-        uplinkProxy += currentUpLink.fold(0L) { acc, l -> acc + l }
-        downlinkProxy += currentDownLink.fold(0L) { acc, l -> acc + l }
-
-        outboundStats.uplinkTotal += uplinkProxy
-        outboundStats.downlinkTotal += downlinkProxy
-
-        if (statsTags.isNotEmpty()) {
-            uplinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").apply {
-                    profile?.also {
-                        registerStats(it, uplink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
-            downlinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").apply {
-                    profile?.also {
-                        registerStats(it, downlink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
-        }
+    }
 
-        if (interTags.isNotEmpty()) {
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").also { registerStats(profile, uplink = it) }
-            }
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").also {
-                    registerStats(profile, downlink = it)
-                }
-            }
+    fun forEachOutboundStats(block: (profileId: Long, uplinkTotal: Long, downlinkTotal: Long) -> Unit) {
+        for (slot in slotProfiles.indices) {
+            block(slotProfiles[slot].id, slotUplink[slot], slotDownlink[slot])
         }
-
-        return outboundStats to statsOutbounds
     }
 
     suspend fun bypassStats(direct: String): Long {
@@ -303,28 +320,30 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
                 outboundStats()
 
                 val toUpdate = mutableListOf<ProxyEntity>()
-                if (outboundStats.uplinkTotal + outboundStats.downlinkTotal != 0L) {
-                    profile.tx += outboundStats.uplinkTotal
-                    profile.rx += outboundStats.downlinkTotal
+                if (uplinkTotal + downlinkTotal != 0L) {
+                    profile.tx += uplinkTotal
+                    profile.rx += downlinkTotal
                     toUpdate.add(profile)
                 }
 
-                statsOutbounds.values.forEach {
-                    if (it.uplinkTotal + it.downlinkTotal != 0L) {
-                        it.proxyEntity.tx += it.uplinkTotal
-                        it.proxyEntity.rx += it.downlinkTotal
-                        toUpdate.add(it.proxyEntity)
+                for (slot in slotProfiles.indices) {
+                    if (slotUplink[slot] + slotDownlink[slot] != 0L) {
+                        val proxyEntity = slotProfiles[slot]
+                        proxyEntity.tx += slotUplink[slot]
+                        proxyEntity.rx += slotDownlink[slot]
+                        toUpdate.add(proxyEntity)
                     }
                 }
 
                 if (toUpdate.isNotEmpty()) {
                     SagerDatabase.proxyDao.updateProxy(toUpdate)
                 }
+                TrafficHistory.flush()
             } catch (e: IOException) {
                 if (!DataStore.directBootAware) throw e // we should only reach here because we're in direct boot
                 val profile = DirectBoot.getDeviceProfile()!!
-                profile.tx += outboundStats.uplinkTotal
-                profile.rx += outboundStats.downlinkTotal
+                profile.tx += uplinkTotal
+                profile.rx += downlinkTotal
                 profile.dirty = true
                 DirectBoot.update(profile)
                 DirectBoot.listenForUnlock()
@@ -0,0 +1,106 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.test
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+
+/**
+ * Concurrency limit for connection tests, following the observed failure rate:
+ * grows by one for each success while failures are rare, and is cut by a quarter,
+ * at most once per round of in-flight tests, when most recent tests timed out or failed.
+ */
+class AdaptiveLimiter(
+    initial: Int = 16, private val minLimit: Int = 4, private val maxLimit: Int = 64
+) {
+
+    private val lock = Any()
+    private var limit = initial
+    private var inFlight = 0
+    private var failureRate = 0.0
+    private var sinceDecrease = 0
+    private val waiters = ArrayDeque<CancellableContinuation<Unit>>()
+
+    val currentLimit get() = synchronized(lock) { limit }
+
+    suspend fun acquire() {
+        suspendCancellableCoroutine<Unit> { c ->
+            synchronized(lock) {
+                if (inFlight < limit) {
+                    inFlight++
+                    c.resume(Unit)
+                } else {
+                    waiters.addLast(c)
+                    c.invokeOnCancellation {
+                        synchronized(lock) { waiters.remove(c) }
+                    }
+                }
+            }
+        }
+    }
+
+    fun release(failed: Boolean?) {
+        val wakeup = ArrayList<CancellableContinuation<Unit>>()
+        synchronized(lock) {
+            inFlight--
+            if (failed != null) {
+                failureRate = failureRate * (1 - ALPHA) + if (failed) ALPHA else 0.0
+                sinceDecrease++
+                if (failureRate > DECREASE_THRESHOLD) {
+                    if (sinceDecrease >= limit) {
+                        limit = (limit * 3 / 4).coerceAtLeast(minLimit)
+                        sinceDecrease = 0
+                    }
+                } else if (!failed && failureRate < INCREASE_THRESHOLD) {
+                    limit = (limit + 1).coerceAtMost(maxLimit)
+                }
+            }
+            while (inFlight < limit) {
+                val waiter = waiters.removeFirstOrNull() ?: break
+                if (!waiter.isActive) continue
+                inFlight++
+                wakeup.add(waiter)
+            }
+        }
+        for (waiter in wakeup) waiter.resume(Unit)
+    }
+
+    suspend fun <T> withPermit(block: suspend () -> T): T {
+        acquire()
+        var failed: Boolean? = true
+        try {
+            return block().also { failed = false }
+        } catch (e: CancellationException) {
+            failed = null
+            throw e
+        } finally {
+            release(failed)
+        }
+    }
+
+    companion object {
+        private const val ALPHA = 0.1
+        private const val INCREASE_THRESHOLD = 0.2
+        private const val DECREASE_THRESHOLD = 0.5
+    }
+
+}
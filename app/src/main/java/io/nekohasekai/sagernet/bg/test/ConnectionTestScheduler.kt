@@ -0,0 +1,180 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.test
+
+import android.os.SystemClock
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.tryResume
+import io.nekohasekai.sagernet.ktx.tryResumeWithException
+import kotlinx.coroutines.*
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.concurrent.thread
+
+/**
+ * Shared scheduler for one run of connection tests.
+ *
+ * Tests run under an [AdaptiveLimiter] instead of a fixed number of workers, tests with the
+ * same key are only run once, and TCP pings are non-blocking connects driven by one selector
+ * thread, so no thread is held while waiting for a handshake.
+ */
+class ConnectionTestScheduler(
+    private val limiter: AdaptiveLimiter = AdaptiveLimiter()
+) : CoroutineScope {
+
+    override val coroutineContext = SupervisorJob() + Dispatchers.IO
+    private val tasks = ConcurrentHashMap<Any, Deferred<*>>()
+    private val resolved = ConcurrentHashMap<String, Deferred<InetAddress?>>()
+
+    /**
+     * Runs [block] under the concurrency limit, callers with an equal [key] share one run.
+     */
+    @Suppress("UNCHECKED_CAST")
+    suspend fun <T> schedule(key: Any, block: suspend () -> T): T {
+        val task = tasks.getOrPut(key) {
+            async(start = CoroutineStart.LAZY) { limiter.withPermit(block) }
+        } as Deferred<T>
+        return task.await()
+    }
+
+    suspend fun resolve(host: String): InetAddress? {
+        return resolved.getOrPut(host) {
+            async(start = CoroutineStart.LAZY) {
+                try {
+                    runInterruptible { InetAddress.getAllByName(host).firstOrNull() }
+                } catch (e: IOException) {
+                    null
+                }
+            }
+        }.await()
+    }
+
+    /**
+     * Connect to [address] and return the elapsed time of the handshake in milliseconds.
+     */
+    suspend fun tcpPing(
+        address: InetSocketAddress, timeout: Int, protect: (SocketChannel) -> Unit
+    ): Int = schedule("tcp" to address) {
+        connect(address, timeout, protect)
+    }
+
+    private class PendingConnect(
+        val channel: SocketChannel,
+        val continuation: CancellableContinuation<Int>,
+        val start: Long,
+        val deadline: Long
+    )
+
+    private val pending = ConcurrentLinkedQueue<PendingConnect>()
+    private val selectorLazy = lazy {
+        Selector.open().also {
+            thread(name = "Connection test selector", isDaemon = true) { selectLoop(it) }
+        }
+    }
+    private val selector by selectorLazy
+
+    private suspend fun connect(
+        address: InetSocketAddress, timeout: Int, protect: (SocketChannel) -> Unit
+    ) = suspendCancellableCoroutine<Int> { c ->
+        val channel = SocketChannel.open()
+        c.invokeOnCancellation { runCatching { channel.close() } }
+        try {
+            channel.configureBlocking(false)
+            protect(channel)
+            val start = SystemClock.elapsedRealtime()
+            if (channel.connect(address)) {
+                channel.close()
+                c.tryResume((SystemClock.elapsedRealtime() - start).toInt())
+            } else {
+                pending.add(PendingConnect(channel, c, start, start + timeout))
+                selector.wakeup()
+            }
+        } catch (e: Exception) {
+            runCatching { channel.close() }
+            c.tryResumeWithException(e)
+        }
+    }
+
+    private fun selectLoop(selector: Selector) {
+        try {
+            while (isActive) {
+                val now = SystemClock.elapsedRealtime()
+                var nextDeadline = Long.MAX_VALUE
+                for (key in selector.keys()) {
+                    val request = key.attachment() as PendingConnect
+                    if (now >= request.deadline) {
+                        key.cancel()
+                        runCatching { request.channel.close() }
+                        request.continuation.tryResumeWithException(SocketTimeoutException("connect timed out"))
+                    } else if (request.deadline < nextDeadline) {
+                        nextDeadline = request.deadline
+                    }
+                }
+                while (true) {
+                    val request = pending.poll() ?: break
+                    try {
+                        request.channel.register(selector, SelectionKey.OP_CONNECT, request)
+                        if (request.deadline < nextDeadline) nextDeadline = request.deadline
+                    } catch (e: IOException) {
+                        // closed by cancellation
+                        request.continuation.tryResumeWithException(e)
+                    }
+                }
+                if (nextDeadline == Long.MAX_VALUE) {
+                    selector.select()
+                } else {
+                    selector.select((nextDeadline - SystemClock.elapsedRealtime()).coerceAtLeast(1L))
+                }
+                val selected = selector.selectedKeys().iterator()
+                while (selected.hasNext()) {
+                    val key = selected.next()
+                    selected.remove()
+                    val request = key.attachment() as PendingConnect
+                    key.cancel()
+                    try {
+                        request.channel.finishConnect()
+                        request.continuation.tryResume((SystemClock.elapsedRealtime() - request.start).toInt())
+                    } catch (e: IOException) {
+                        request.continuation.tryResumeWithException(e)
+                    } finally {
+                        runCatching { request.channel.close() }
+                    }
+                }
+            }
+        } catch (ignored: ClosedSelectorException) {
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+    }
+
+    fun close() {
+        cancel()
+        if (selectorLazy.isInitialized()) runCatching { selector.close() }
+    }
+
+}
@@ -0,0 +1,75 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.test
+
+import io.nekohasekai.sagernet.bg.GuardedProcessPool
+import io.nekohasekai.sagernet.bg.proto.V2RayInstance
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.fmt.testInboundTag
+import io.nekohasekai.sagernet.ktx.Logs
+import libcore.Libcore
+
+/**
+ * Tests a batch of profiles through one core and one set of plugin processes,
+ * instead of starting a [V2RayTestInstance] for every profile.
+ *
+ * Each profile gets its own outbound, selected by [testInboundTag] when calling urlTest,
+ * so [doTest] can be called concurrently once [start] returned.
+ */
+class V2RayBatchTestInstance(
+    val profiles: List<ProxyEntity>, val link: String, val timeout: Int
+) : V2RayInstance(profiles.first()) {
+
+    @Volatile
+    private var failure: Exception? = null
+    val failed get() = failure != null
+
+    fun start() {
+        processes = GuardedProcessPool {
+            Logs.w(it)
+            failure = it
+        }
+        init()
+        launch()
+    }
+
+    /**
+     * Throws if the core or a plugin process of this batch failed, the caller
+     * should retry the profile with a standalone [V2RayTestInstance].
+     */
+    fun doTest(profile: ProxyEntity): Int {
+        failure?.let { throw it }
+        return Libcore.urlTest(v2rayPoint, testInboundTag(profile.id), link, timeout)
+    }
+
+    override fun buildConfig() {
+        config = buildV2RayConfig(profile, true, testProxies = profiles)
+    }
+
+    override fun handleError(err: String) {
+        failure = Exception(err)
+    }
+
+    companion object {
+        const val BATCH_SIZE = 32
+    }
+
+}
@@ -35,7 +35,7 @@ import io.nekohasekai.sagernet.utils.DirectBoot
 
 object DataStore : OnPreferenceDataStoreChangeListener {
 
-    val configurationStore = RoomPreferenceDataStore(PublicDatabase.kvPairDao)
+    val configurationStore = RoomPreferenceDataStore(PublicDatabase.kvPairDao, PublicDatabase.invalidationTracker)
     val profileCacheStore = RoomPreferenceDataStore(InMemoryDatabase.kvPairDao)
 
     fun init() {
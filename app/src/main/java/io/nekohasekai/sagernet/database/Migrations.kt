@@ -6,6 +6,7 @@ import androidx.room.DeleteTable
 import androidx.room.migration.AutoMigrationSpec
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
+import io.nekohasekai.sagernet.ktx.Logs
 
 object SagerDatabase_Migration_1_2 : Migration(1, 2) {
     override fun migrate(database: SupportSQLiteDatabase): Unit {
@@ -87,6 +88,67 @@ object SagerDatabase_Migration_11_12 : Migration(11, 12) {
     }
 }
 
+object SagerDatabase_Migration_17_18 : Migration(17, 18) {
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `name` TEXT NOT NULL DEFAULT ''""")
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `address` TEXT NOT NULL DEFAULT ''""")
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `port` INTEGER NOT NULL DEFAULT 0""")
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `typeName` TEXT NOT NULL DEFAULT ''""")
+
+        // backfill the summary columns, the only time existing beans have to be decoded
+        database.query("""SELECT * FROM `proxy_entities`""").use { cursor ->
+            val idIndex = cursor.getColumnIndexOrThrow("id")
+            val typeIndex = cursor.getColumnIndexOrThrow("type")
+            val beanIndexes = cursor.columnNames.indices.filter { cursor.getColumnName(it).endsWith("Bean") }
+            while (cursor.moveToNext()) {
+                val entity = ProxyEntity(id = cursor.getLong(idIndex), type = cursor.getInt(typeIndex))
+                val bean = beanIndexes.firstOrNull { !cursor.isNull(it) } ?: continue
+                try {
+                    entity.putByteArray(cursor.getBlob(bean))
+                    database.execSQL(
+                        """UPDATE `proxy_entities` SET `name` = ?, `address` = ?, `port` = ?, `typeName` = ? WHERE `id` = ?""",
+                        arrayOf(entity.profileName, entity.profileAddress, entity.profilePort, entity.profileType, entity.id)
+                    )
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
+            }
+        }
+    }
+}
+
+object SagerDatabase_Migration_18_19 : Migration(18, 19) {
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("""CREATE TABLE IF NOT EXISTS `traffic_history` (`resolution` INTEGER NOT NULL, `kind` INTEGER NOT NULL, `name` TEXT NOT NULL, `time` INTEGER NOT NULL, `uplink` INTEGER NOT NULL, `downlink` INTEGER NOT NULL, PRIMARY KEY(`resolution`, `kind`, `name`, `time`))""")
+    }
+}
+
+object SagerDatabase_Migration_19_20 : Migration(19, 20) {
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `advisory` INTEGER NOT NULL DEFAULT 0""")
+
+        database.query("""SELECT * FROM `proxy_entities`""").use { cursor ->
+            val idIndex = cursor.getColumnIndexOrThrow("id")
+            val typeIndex = cursor.getColumnIndexOrThrow("type")
+            val beanIndexes = cursor.columnNames.indices.filter { cursor.getColumnName(it).endsWith("Bean") }
+            while (cursor.moveToNext()) {
+                val entity = ProxyEntity(id = cursor.getLong(idIndex), type = cursor.getInt(typeIndex))
+                val bean = beanIndexes.firstOrNull { !cursor.isNull(it) } ?: continue
+                try {
+                    entity.putByteArray(cursor.getBlob(bean))
+                    val advisory = entity.profileAdvisory
+                    if (advisory != 0) database.execSQL(
+                        """UPDATE `proxy_entities` SET `advisory` = ? WHERE `id` = ?""",
+                        arrayOf(advisory, entity.id)
+                    )
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
+            }
+        }
+    }
+}
+
 @DeleteTable(
     tableName = "KeyValuePair"
 )
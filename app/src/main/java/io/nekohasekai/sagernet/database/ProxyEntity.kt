@@ -27,6 +27,7 @@ import androidx.room.*
 import com.esotericsoftware.kryo.Kryo
 import com.esotericsoftware.kryo.io.ByteBufferInput
 import com.esotericsoftware.kryo.io.ByteBufferOutput
+import com.google.gson.JsonParser
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.TrojanProvider
 import io.nekohasekai.sagernet.aidl.TrafficStats
@@ -35,6 +36,7 @@ import io.nekohasekai.sagernet.fmt.KryoConverters
 import io.nekohasekai.sagernet.fmt.Serializable
 import io.nekohasekai.sagernet.fmt.brook.BrookBean
 import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.fmt.gson.gson
 import io.nekohasekai.sagernet.fmt.http.HttpBean
 import io.nekohasekai.sagernet.fmt.http.toUri
 import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
@@ -74,6 +76,8 @@ import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean
 import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
+import io.nekohasekai.sagernet.ktx.isInsecure
+import io.nekohasekai.sagernet.ktx.toAdvisory
 import io.nekohasekai.sagernet.ui.profile.*
 
 @Entity(
@@ -112,6 +116,35 @@ data class ProxyEntity(
     var balancerBean: BalancerBean? = null
 ) : Serializable() {
 
+    /**
+     * Denormalized copies of the bean's display fields, so that list queries can use
+     * [ProxySummary] without decoding the bean columns.
+     * Room reads them through the getters on every insert or update, so they always
+     * follow the bean, no matter how it was modified.
+     */
+    @ColumnInfo(name = "name", defaultValue = "")
+    var profileName: String = ""
+        get() = beanOrNull()?.displayName() ?: field
+
+    @ColumnInfo(name = "address", defaultValue = "")
+    var profileAddress: String = ""
+        get() = beanOrNull()?.displayAddress() ?: field
+
+    @ColumnInfo(name = "port", defaultValue = "0")
+    var profilePort: Int = 0
+        get() = beanOrNull()?.serverPort ?: field
+
+    @ColumnInfo(name = "typeName", defaultValue = "")
+    var profileType: String = ""
+        get() = if (beanOrNull() != null) displayType() else field
+
+    /**
+     * Security advisory of the bean, see [toAdvisory].
+     */
+    @ColumnInfo(name = "advisory", defaultValue = "0")
+    var profileAdvisory: Int = 0
+        get() = beanOrNull()?.isInsecure()?.toAdvisory() ?: field
+
     companion object {
         const val TYPE_SOCKS = 0
         const val TYPE_HTTP = 1
@@ -167,7 +200,7 @@ data class ProxyEntity(
     }
 
     override fun serializeToBuffer(output: ByteBufferOutput) {
-        output.writeInt(0)
+        output.writeInt(1)
 
         output.writeLong(id)
         output.writeLong(groupId)
@@ -180,9 +213,7 @@ data class ProxyEntity(
         output.writeString(uuid)
         output.writeString(error)
 
-        val data = KryoConverters.serialize(requireBean())
-        output.writeVarInt(data.size, true)
-        output.writeBytes(data)
+        requireBean().serializeToBuffer(output)
 
         output.writeBoolean(dirty)
     }
@@ -200,11 +231,42 @@ data class ProxyEntity(
         ping = input.readInt()
         uuid = input.readString()
         error = input.readString()
-        putByteArray(input.readBytes(input.readVarInt(true)))
+        if (version >= 1) {
+            putBean(KryoConverters.deserialize(newBean(), input))
+        } else {
+            putByteArray(input.readBytes(input.readVarInt(true)))
+        }
 
         dirty = input.readBoolean()
     }
 
+    private fun newBean(): AbstractBean {
+        return when (type) {
+            TYPE_SOCKS -> SOCKSBean()
+            TYPE_HTTP -> HttpBean()
+            TYPE_SS -> ShadowsocksBean()
+            TYPE_SSR -> ShadowsocksRBean()
+            TYPE_VMESS -> VMessBean()
+            TYPE_VLESS -> VLESSBean()
+            TYPE_TROJAN -> TrojanBean()
+            TYPE_TROJAN_GO -> TrojanGoBean()
+            TYPE_NAIVE -> NaiveBean()
+            TYPE_PING_TUNNEL -> PingTunnelBean()
+            TYPE_RELAY_BATON -> RelayBatonBean()
+            TYPE_BROOK -> BrookBean()
+            TYPE_HYSTERIA -> HysteriaBean()
+            TYPE_SSH -> SSHBean()
+            TYPE_WG -> WireGuardBean()
+            TYPE_MIERU -> MieruBean()
+            TYPE_TUIC -> TuicBean()
+
+            TYPE_CONFIG -> ConfigBean()
+            TYPE_CHAIN -> ChainBean()
+            TYPE_BALANCER -> BalancerBean()
+            else -> error("Undefined type $type")
+        }
+    }
+
 
     fun putByteArray(byteArray: ByteArray) {
         when (type) {
@@ -259,9 +321,18 @@ data class ProxyEntity(
     }
 
     fun displayName() = requireBean().displayName()
+
+    fun toSummary() = ProxySummary(
+        id, groupId, type, userOrder, tx, rx, status, ping, error,
+        profileName, profileAddress, profilePort, profileType, profileAdvisory
+    )
     fun displayAddress() = requireBean().displayAddress()
 
     fun requireBean(): AbstractBean {
+        return beanOrNull() ?: SOCKSBean().applyDefaultValues()
+    }
+
+    private fun beanOrNull(): AbstractBean? {
         return when (type) {
             TYPE_SOCKS -> socksBean
             TYPE_HTTP -> httpBean
@@ -285,7 +356,7 @@ data class ProxyEntity(
             TYPE_CHAIN -> chainBean
             TYPE_BALANCER -> balancerBean
             else -> null
-        } ?: SOCKSBean().applyDefaultValues()
+        }
     }
 
     fun haveLink(): Boolean {
@@ -335,7 +406,8 @@ data class ProxyEntity(
         return with(requireBean()) {
             StringBuilder().apply {
                 val config = buildV2RayConfig(this@ProxyEntity)
-                append(config.config)
+                // the core gets compact json, reformat it for people
+                append(gson.toJson(JsonParser.parseString(config.config)))
 
                 if (!config.index.all { it.chain.isEmpty() }) {
                     name = "${displayName()}.txt"
@@ -579,12 +651,24 @@ data class ProxyEntity(
         @Query("select * from proxy_entities")
         fun getAll(): List<ProxyEntity>
 
+        @Query("SELECT * FROM proxy_entities WHERE id > :after ORDER BY id LIMIT :limit")
+        fun getPage(after: Long, limit: Int): List<ProxyEntity>
+
         @Query("SELECT id FROM proxy_entities WHERE groupId = :groupId ORDER BY userOrder")
         fun getIdsByGroup(groupId: Long): List<Long>
 
         @Query("SELECT * FROM proxy_entities WHERE groupId = :groupId ORDER BY userOrder")
         fun getByGroup(groupId: Long): List<ProxyEntity>
 
+        @Query("SELECT * FROM proxy_entities WHERE groupId IN (:groupIds) ORDER BY groupId, userOrder")
+        fun getByGroups(groupIds: List<Long>): List<ProxyEntity>
+
+        @Query("SELECT id, groupId, type, userOrder, tx, rx, status, ping, error, name, address, port, typeName, advisory FROM proxy_entities WHERE groupId = :groupId ORDER BY userOrder")
+        fun getSummaryByGroup(groupId: Long): List<ProxySummary>
+
+        @Query("UPDATE proxy_entities SET userOrder = :userOrder WHERE id = :proxyId")
+        fun updateOrder(proxyId: Long, userOrder: Long)
+
         @Query("SELECT * FROM proxy_entities WHERE id in (:proxyIds)")
         fun getEntities(proxyIds: List<Long>): List<ProxyEntity>
 
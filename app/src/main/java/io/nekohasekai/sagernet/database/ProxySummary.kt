@@ -0,0 +1,65 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.database
+
+import android.content.Context
+import android.content.Intent
+import androidx.room.ColumnInfo
+import androidx.room.Ignore
+import io.nekohasekai.sagernet.aidl.TrafficStats
+import io.nekohasekai.sagernet.ktx.advisoryResult
+
+/**
+ * Bean-less projection of [ProxyEntity] for list queries.
+ * Load the full entity through [ProfileManager.getProfile], off the main thread,
+ * only when the bean itself is needed.
+ */
+data class ProxySummary(
+    var id: Long = 0L,
+    var groupId: Long = 0L,
+    var type: Int = 0,
+    var userOrder: Long = 0L,
+    var tx: Long = 0L,
+    var rx: Long = 0L,
+    var status: Int = 0,
+    var ping: Int = 0,
+    var error: String? = null,
+    @ColumnInfo(name = "name") var profileName: String = "",
+    @ColumnInfo(name = "address") var profileAddress: String = "",
+    @ColumnInfo(name = "port") var profilePort: Int = 0,
+    @ColumnInfo(name = "typeName") var profileType: String = "",
+    @ColumnInfo(name = "advisory") var profileAdvisory: Int = 0,
+) {
+
+    @Ignore
+    var stats: TrafficStats? = null
+
+    /**
+     * [profileName] falls back to [profileAddress] when the bean has no name.
+     */
+    fun hasName() = profileName != profileAddress
+
+    fun advisory() = advisoryResult(profileAdvisory)
+
+    fun settingIntent(ctx: Context, isSubscription: Boolean): Intent {
+        return ProxyEntity(id = id, type = type).settingIntent(ctx, isSubscription)
+    }
+
+}
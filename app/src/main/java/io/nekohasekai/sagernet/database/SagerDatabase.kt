@@ -28,10 +28,11 @@ import io.nekohasekai.sagernet.fmt.KryoConverters
 import io.nekohasekai.sagernet.fmt.gson.GsonConverters
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import java.util.concurrent.Callable
 
 @Database(
-    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class],
-    version = 17,
+    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class, TrafficBucket::class],
+    version = 20,
     autoMigrations = [AutoMigration(
         from = 12,
         to = 14,
@@ -67,7 +68,10 @@ abstract class SagerDatabase : RoomDatabase() {
                     SagerDatabase_Migration_8_9,
                     SagerDatabase_Migration_9_10,
                     SagerDatabase_Migration_10_11,
-                    SagerDatabase_Migration_11_12
+                    SagerDatabase_Migration_11_12,
+                    SagerDatabase_Migration_17_18,
+                    SagerDatabase_Migration_18_19,
+                    SagerDatabase_Migration_19_20
                 )
                 .fallbackToDestructiveMigrationOnDowngrade()
                 .allowMainThreadQueries()
@@ -76,10 +80,13 @@ abstract class SagerDatabase : RoomDatabase() {
                 .build()
         }
 
+        fun <T> runInTransaction(block: () -> T): T = instance.runInTransaction(Callable(block))
+
         val groupDao get() = instance.groupDao()
         val proxyDao get() = instance.proxyDao()
         val rulesDao get() = instance.rulesDao()
         val statsDao get() = instance.statsDao()
+        val trafficDao get() = instance.trafficDao()
 
     }
 
@@ -87,5 +94,6 @@ abstract class SagerDatabase : RoomDatabase() {
     abstract fun proxyDao(): ProxyEntity.Dao
     abstract fun rulesDao(): RuleEntity.Dao
     abstract fun statsDao(): StatsEntity.Dao
+    abstract fun trafficDao(): TrafficBucket.Dao
 
 }
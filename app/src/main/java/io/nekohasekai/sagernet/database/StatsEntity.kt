@@ -71,6 +71,17 @@ class StatsEntity(
         @Insert
         fun create(stats: StatsEntity)
 
+        @Query(
+            "UPDATE stats SET tcpConnections = tcpConnections + :tcpConnections, udpConnections = udpConnections + :udpConnections, uplink = uplink + :uplink, downlink = downlink + :downlink WHERE packageName = :packageName"
+        )
+        fun add(
+            packageName: String,
+            tcpConnections: Int,
+            udpConnections: Int,
+            uplink: Long,
+            downlink: Long
+        ): Int
+
         @Update
         fun update(stats: List<StatsEntity>)
 
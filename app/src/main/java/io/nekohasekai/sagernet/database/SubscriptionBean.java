@@ -46,6 +46,12 @@ public class SubscriptionBean extends Serializable {
     public Integer autoUpdateDelay;
     public Integer lastUpdated;
 
+    // validators of the last fetched body
+
+    public String lastETag;
+    public String lastModified;
+    public String lastContentHash;
+
     // SIP008
 
     public Long bytesUsed;
@@ -66,7 +72,7 @@ public class SubscriptionBean extends Serializable {
 
     @Override
     public void serializeToBuffer(ByteBufferOutput output) {
-        output.writeInt(2);
+        output.writeInt(3);
 
         output.writeInt(type);
 
@@ -98,6 +104,9 @@ public class SubscriptionBean extends Serializable {
             KryosKt.writeStringList(output, selectedTags);
         }
 
+        output.writeString(lastETag);
+        output.writeString(lastModified);
+        output.writeString(lastContentHash);
     }
 
     public void serializeForShare(ByteBufferOutput output) {
@@ -165,6 +174,12 @@ public class SubscriptionBean extends Serializable {
                 selectedTags = KryosKt.readStringSet(input);
             }
         }
+
+        if (version >= 3) {
+            lastETag = input.readString();
+            lastModified = input.readString();
+            lastContentHash = input.readString();
+        }
     }
 
     public void deserializeFromShare(ByteBufferInput input) {
@@ -206,6 +221,9 @@ public class SubscriptionBean extends Serializable {
         if (autoUpdate == null) autoUpdate = false;
         if (autoUpdateDelay == null) autoUpdateDelay = 280;
         if (lastUpdated == null) lastUpdated = 0;
+        if (lastETag == null) lastETag = "";
+        if (lastModified == null) lastModified = "";
+        if (lastContentHash == null) lastContentHash = "";
 
         if (bytesUsed == null) bytesUsed = 0L;
         if (bytesRemaining == null) bytesRemaining = 0L;
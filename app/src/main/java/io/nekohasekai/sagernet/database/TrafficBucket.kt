@@ -0,0 +1,63 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.database
+
+import androidx.room.*
+
+/**
+ * Traffic of one app or outbound during the [resolution] seconds starting at [time].
+ */
+@Entity(tableName = "traffic_history", primaryKeys = ["resolution", "kind", "name", "time"])
+class TrafficBucket(
+    var resolution: Int = 0,
+    var kind: Int = 0,
+    var name: String = "",
+    var time: Long = 0L,
+    var uplink: Long = 0L,
+    var downlink: Long = 0L
+) {
+
+    @androidx.room.Dao
+    interface Dao {
+
+        @Query("UPDATE traffic_history SET uplink = uplink + :uplink, downlink = downlink + :downlink WHERE resolution = :resolution AND kind = :kind AND name = :name AND time = :time")
+        fun add(resolution: Int, kind: Int, name: String, time: Long, uplink: Long, downlink: Long): Int
+
+        @Insert
+        fun insert(bucket: TrafficBucket)
+
+        @Query("SELECT * FROM traffic_history WHERE resolution = :resolution AND kind = :kind AND name = :name AND time >= :since ORDER BY time")
+        fun series(resolution: Int, kind: Int, name: String, since: Long): List<TrafficBucket>
+
+        @Query("SELECT 0 AS resolution, kind, name, 0 AS time, SUM(uplink) AS uplink, SUM(downlink) AS downlink FROM traffic_history WHERE kind = :kind AND time >= :since GROUP BY name")
+        fun totals(kind: Int, since: Long): List<TrafficBucket>
+
+        @Query("SELECT :to AS resolution, kind, name, (time / :to) * :to AS time, SUM(uplink) AS uplink, SUM(downlink) AS downlink FROM traffic_history WHERE resolution = :from AND time < :before GROUP BY kind, name, time / :to")
+        fun rollup(from: Int, to: Int, before: Long): List<TrafficBucket>
+
+        @Query("DELETE FROM traffic_history WHERE resolution = :resolution AND time < :before")
+        fun deleteBefore(resolution: Int, before: Long): Int
+
+        @Query("DELETE FROM traffic_history")
+        fun deleteAll()
+
+    }
+
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.database
+
+import io.nekohasekai.sagernet.ktx.Logs
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Append-only traffic history of apps and outbounds.
+ *
+ * Samples are summed in memory into one-minute buckets and written by [flush] in a single
+ * transaction. Minute buckets older than a day are rolled up into hours, hours older than a
+ * month into days, and days are kept for a year.
+ */
+object TrafficHistory : TrafficHistoryStore(
+    { SagerDatabase.trafficDao },
+    { SagerDatabase.runInTransaction(it) },
+    { System.currentTimeMillis() / 1000 }) {
+
+    const val KIND_APP = 0
+    const val KIND_OUTBOUND = 1
+
+    const val MINUTE = 60
+    const val HOUR = 60 * 60
+    const val DAY = 24 * 60 * 60
+
+    const val MINUTE_RETENTION = DAY.toLong()
+    const val HOUR_RETENTION = 30L * DAY
+    const val DAY_RETENTION = 365L * DAY
+
+}
+
+/**
+ * Implementation of [TrafficHistory] over any [TrafficBucket.Dao], [clock] returns epoch seconds.
+ */
+open class TrafficHistoryStore(
+    private val dao: () -> TrafficBucket.Dao,
+    private val transaction: (() -> Unit) -> Unit,
+    private val clock: () -> Long
+) {
+
+    private data class Key(val kind: Int, val name: String, val time: Long)
+
+    private val pending = ConcurrentHashMap<Key, LongArray>()
+    private val lastTotals = ConcurrentHashMap<Pair<Int, Int>, LongArray>()
+
+    @Volatile
+    private var lastRollup = 0L
+
+    fun record(kind: Int, name: String, uplink: Long, downlink: Long) {
+        if (uplink == 0L && downlink == 0L) return
+        val key = Key(kind, name, clock() / TrafficHistory.MINUTE * TrafficHistory.MINUTE)
+        // atomic per key, so that nothing is added to counters already taken by flush
+        pending.compute(key) { _, counters ->
+            (counters ?: LongArray(2)).apply {
+                this[0] += uplink
+                this[1] += downlink
+            }
+        }
+    }
+
+    /**
+     * Record from counters that only grow during a session, such as the per-uid totals of the tun.
+     * [counter] identifies the counter, as several of them may be recorded under one [name].
+     */
+    fun recordTotal(kind: Int, name: String, counter: Int, uplinkTotal: Long, downlinkTotal: Long) {
+        val last = lastTotals.getOrPut(kind to counter) { LongArray(2) }
+        val uplink: Long
+        val downlink: Long
+        synchronized(last) {
+            // a smaller total means the counters were reset
+            uplink = if (uplinkTotal >= last[0]) uplinkTotal - last[0] else uplinkTotal
+            downlink = if (downlinkTotal >= last[1]) downlinkTotal - last[1] else downlinkTotal
+            last[0] = uplinkTotal
+            last[1] = downlinkTotal
+        }
+        record(kind, name, uplink, downlink)
+    }
+
+    /**
+     * Forget the session totals seen by [recordTotal], to be called when a new session starts.
+     */
+    fun resetTotals() {
+        lastTotals.clear()
+    }
+
+    /**
+     * Flush the buckets of minutes that are over, for callers that sample often.
+     */
+    fun flushCompleted() {
+        val minute = clock() / TrafficHistory.MINUTE * TrafficHistory.MINUTE
+        if (pending.keys.any { it.time < minute }) flush()
+    }
+
+    fun flush() {
+        if (pending.isEmpty()) return
+        val buckets = ArrayList<TrafficBucket>()
+        for (key in pending.keys) {
+            val counters = pending.remove(key) ?: continue
+            buckets.add(
+                TrafficBucket(
+                    TrafficHistory.MINUTE, key.kind, key.name, key.time, counters[0], counters[1]
+                )
+            )
+        }
+        try {
+            transaction {
+                buckets.forEach(::add)
+                val now = clock()
+                if (now - lastRollup >= TrafficHistory.HOUR) {
+                    lastRollup = now
+                    rollup(TrafficHistory.MINUTE, TrafficHistory.HOUR, now - TrafficHistory.MINUTE_RETENTION)
+                    rollup(TrafficHistory.HOUR, TrafficHistory.DAY, now - TrafficHistory.HOUR_RETENTION)
+                    dao().deleteBefore(TrafficHistory.DAY, now - TrafficHistory.DAY_RETENTION)
+                }
+            }
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+    }
+
+    private fun add(bucket: TrafficBucket) {
+        val dao = dao()
+        if (dao.add(
+                bucket.resolution, bucket.kind, bucket.name, bucket.time, bucket.uplink, bucket.downlink
+            ) == 0
+        ) {
+            dao.insert(bucket)
+        }
+    }
+
+    private fun rollup(from: Int, to: Int, before: Long) {
+        // only roll up whole target buckets
+        val end = before / to * to
+        dao().rollup(from, to, end).forEach(::add)
+        dao().deleteBefore(from, end)
+    }
+
+    /**
+     * Traffic of [name] since [since] (epoch seconds), oldest first, summed into buckets of
+     * [resolution] seconds. Periods only kept at a coarser resolution keep their own buckets.
+     */
+    fun series(kind: Int, name: String, since: Long, resolution: Int): List<TrafficBucket> {
+        flush()
+        val series = TreeMap<Long, TrafficBucket>()
+        for (from in intArrayOf(TrafficHistory.DAY, TrafficHistory.HOUR, TrafficHistory.MINUTE)) {
+            for (bucket in dao().series(from, kind, name, since)) {
+                val to = maxOf(from, resolution)
+                val time = bucket.time / to * to
+                val merged = series.getOrPut(time) { TrafficBucket(to, kind, name, time) }
+                merged.uplink += bucket.uplink
+                merged.downlink += bucket.downlink
+            }
+        }
+        return series.values.toList()
+    }
+
+    /**
+     * Traffic of each app or outbound since [since] (epoch seconds).
+     */
+    fun totals(kind: Int, since: Long): List<TrafficBucket> {
+        flush()
+        return dao().totals(kind, since)
+    }
+
+    fun reset() {
+        pending.clear()
+        dao().deleteAll()
+    }
+
+}
@@ -28,6 +28,7 @@ import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.SagerNet
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import java.util.concurrent.Callable
 
 @Database(
     entities = [KeyValuePair::class], version = 1
@@ -46,6 +47,9 @@ abstract class PublicDatabase : RoomDatabase() {
         }
 
         val kvPairDao get() = instance.keyValuePairDao()
+        val invalidationTracker get() = instance.invalidationTracker
+
+        fun <T> runInTransaction(block: () -> T): T = instance.runInTransaction(Callable(block))
     }
 
     abstract fun keyValuePairDao(): KeyValuePair.Dao
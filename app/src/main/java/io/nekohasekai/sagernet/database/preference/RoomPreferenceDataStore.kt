@@ -22,18 +22,140 @@
 package io.nekohasekai.sagernet.database.preference
 
 import androidx.preference.PreferenceDataStore
-
+import androidx.room.InvalidationTracker
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Preference store backed by a [KeyValuePair] table.
+ *
+ * All pairs are loaded once and decoded into [Entry] slots, so reads never touch SQLite.
+ * Writes go through to the table and update the slot in place.
+ * When [invalidationTracker] is given, writes from elsewhere (another process, or direct
+ * [KeyValuePair.Dao] access such as a backup restore) reload the cache in the background.
+ * Invalidations arrive asynchronously, so a process that must see another process's writes
+ * at a given point calls [reloadAll] there.
+ */
 @Suppress("MemberVisibilityCanBePrivate", "unused")
-open class RoomPreferenceDataStore(private val kvPairDao: KeyValuePair.Dao) :
-    PreferenceDataStore() {
+open class RoomPreferenceDataStore(
+    private val kvPairDao: KeyValuePair.Dao,
+    invalidationTracker: InvalidationTracker? = null,
+) : PreferenceDataStore() {
+
+    /**
+     * A decoded pair: booleans, floats (as raw bits) and longs live in [primitive],
+     * strings and string sets in [reference].
+     */
+    private class Entry(val type: Int, val primitive: Long, val reference: Any?) {
+        @Suppress("DEPRECATION")
+        constructor(pair: KeyValuePair) : this(
+            pair.valueType, when (pair.valueType) {
+                KeyValuePair.TYPE_BOOLEAN -> if (pair.boolean!!) 1L else 0L
+                KeyValuePair.TYPE_FLOAT -> pair.float!!.toRawBits().toLong()
+                KeyValuePair.TYPE_INT, KeyValuePair.TYPE_LONG -> pair.long!!
+                else -> 0L
+            }, when (pair.valueType) {
+                KeyValuePair.TYPE_STRING -> pair.string
+                KeyValuePair.TYPE_STRING_SET -> pair.stringSet
+                else -> null
+            }
+        )
+
+        val boolean get() = if (type == KeyValuePair.TYPE_BOOLEAN) primitive != 0L else null
+        val float get() = if (type == KeyValuePair.TYPE_FLOAT) Float.fromBits(primitive.toInt()) else null
+
+        @Suppress("DEPRECATION")
+        val long
+            get() = when (type) {
+                KeyValuePair.TYPE_INT, KeyValuePair.TYPE_LONG -> primitive
+                else -> null
+            }
+        val string get() = if (type == KeyValuePair.TYPE_STRING) reference as String else null
+
+        @Suppress("UNCHECKED_CAST")
+        val stringSet
+            get() = if (type == KeyValuePair.TYPE_STRING_SET) HashSet(reference as Set<String>) else null
+    }
+
+    @Volatile
+    private var cache: ConcurrentHashMap<String, Entry>? = null
+
+    // bumped by every local write, before the slot is updated
+    private val version = AtomicInteger()
+
+    init {
+        invalidationTracker?.addObserver(object : InvalidationTracker.Observer("KeyValuePair") {
+
+            // local writes already seen by the previous invalidation
+            private var observedVersion = 0
+
+            override fun onInvalidated(tables: MutableSet<String>) {
+                // the tracker reports our own writes too, which are already in the cache;
+                // a remote write racing with one is picked up by the next reloadAll()
+                val current = version.get()
+                if (current != observedVersion) {
+                    observedVersion = current
+                    return
+                }
+                refresh()
+            }
+        })
+    }
+
+    private fun load() = ConcurrentHashMap<String, Entry>().apply {
+        for (pair in kvPairDao.all()) {
+            put(pair.key, Entry(pair))
+        }
+    }
+
+    private fun entries(): ConcurrentHashMap<String, Entry> {
+        cache?.let { return it }
+        synchronized(this) {
+            cache?.let { return it }
+            val loadVersion = version.get()
+            val entries = load()
+            // written while loading: serve this read, but load again next time
+            if (version.get() == loadVersion) cache = entries
+            return entries
+        }
+    }
+
+    /**
+     * Replace the cache with the table content, so that writes of other processes are seen
+     * right away instead of when their invalidation arrives.
+     */
+    fun reloadAll() = refresh()
+
+    private fun refresh() {
+        synchronized(this) {
+            if (cache == null) return
+            do {
+                // a local write racing with the swap may have gone to the old map, load again
+                val loadVersion = version.get()
+                cache = load()
+            } while (version.get() != loadVersion)
+        }
+    }
+
+    private fun entry(key: String) = entries()[key]
 
-    fun getBoolean(key: String) = kvPairDao[key]?.boolean
-    fun getFloat(key: String) = kvPairDao[key]?.float
-    fun getInt(key: String) = kvPairDao[key]?.long?.toInt()
-    fun getLong(key: String) = kvPairDao[key]?.long
-    fun getString(key: String) = kvPairDao[key]?.string
-    fun getStringSet(key: String) = kvPairDao[key]?.stringSet
-    fun reset() = kvPairDao.reset()
+    private fun write(pair: KeyValuePair) {
+        kvPairDao.put(pair)
+        version.incrementAndGet()
+        cache?.put(pair.key, Entry(pair))
+        fireChangeListener(pair.key)
+    }
+
+    fun getBoolean(key: String) = entry(key)?.boolean
+    fun getFloat(key: String) = entry(key)?.float
+    fun getInt(key: String) = entry(key)?.long?.toInt()
+    fun getLong(key: String) = entry(key)?.long
+    fun getString(key: String) = entry(key)?.string
+    fun getStringSet(key: String) = entry(key)?.stringSet
+    fun reset() = kvPairDao.reset().also {
+        version.incrementAndGet()
+        cache?.clear()
+    }
 
     override fun getBoolean(key: String, defValue: Boolean) = getBoolean(key) ?: defValue
     override fun getFloat(key: String, defValue: Float) = getFloat(key) ?: defValue
@@ -54,38 +176,34 @@ open class RoomPreferenceDataStore(private val kvPairDao: KeyValuePair.Dao) :
 
     fun putLong(key: String, value: Long?) = if (value == null) remove(key) else putLong(key, value)
     override fun putBoolean(key: String, value: Boolean) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value))
     }
 
     override fun putFloat(key: String, value: Float) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value))
     }
 
     override fun putInt(key: String, value: Int) {
-        kvPairDao.put(KeyValuePair(key).put(value.toLong()))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value.toLong()))
     }
 
     override fun putLong(key: String, value: Long) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value))
     }
 
     override fun putString(key: String, value: String?) = if (value == null) remove(key) else {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value))
     }
 
     override fun putStringSet(key: String, values: MutableSet<String>?) =
         if (values == null) remove(key) else {
-            kvPairDao.put(KeyValuePair(key).put(values))
-            fireChangeListener(key)
+            write(KeyValuePair(key).put(values))
         }
 
     fun remove(key: String) {
         kvPairDao.delete(key)
+        version.incrementAndGet()
+        cache?.remove(key)
         fireChangeListener(key)
     }
 
@@ -31,6 +31,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import cn.hutool.core.clone.Cloneable;
+import cn.hutool.core.lang.hash.MurmurHash;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import io.nekohasekai.sagernet.ExtraType;
@@ -84,6 +85,7 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
 
     @Override
     public void initializeDefaultValues() {
+        fingerprint = null;
         if (StrUtil.isBlank(serverAddress)) {
             serverAddress = "127.0.0.1";
         } else if (serverAddress.startsWith("[") && serverAddress.endsWith("]")) {
@@ -125,6 +127,7 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
 
     @Override
     public void deserializeFromBuffer(@NonNull ByteBufferInput input) {
+        fingerprint = null;
         deserialize(input);
 
         int extraVersion = input.readInt();
@@ -157,28 +160,42 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
     @Override
     public abstract AbstractBean clone();
 
+    private transient long[] fingerprint;
+
+    /**
+     * 128-bit hash of the serialized content without {@link #name}, computed once.
+     * Code that modifies a bean after it was compared or hashed must call
+     * {@link #invalidateFingerprint()}.
+     */
+    public long[] fingerprint() {
+        long[] result = fingerprint;
+        if (result == null) {
+            try {
+                serializeWithoutName = true;
+                result = MurmurHash.hash128(KryoConverters.serialize(this));
+            } finally {
+                serializeWithoutName = false;
+            }
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    public void invalidateFingerprint() {
+        fingerprint = null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        try {
-            serializeWithoutName = true;
-            ((AbstractBean) o).serializeWithoutName = true;
-            return Arrays.equals(KryoConverters.serialize(this), KryoConverters.serialize((AbstractBean) o));
-        } finally {
-            serializeWithoutName = false;
-            ((AbstractBean) o).serializeWithoutName = false;
-        }
+        return Arrays.equals(fingerprint(), ((AbstractBean) o).fingerprint());
     }
 
     @Override
     public int hashCode() {
-        try {
-            serializeWithoutName = true;
-            return Arrays.hashCode(KryoConverters.serialize(this));
-        } finally {
-            serializeWithoutName = false;
-        }
+        long hash = fingerprint()[0];
+        return (int) (hash ^ (hash >>> 32));
     }
 
     @NotNull
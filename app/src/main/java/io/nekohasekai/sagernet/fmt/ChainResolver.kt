@@ -0,0 +1,128 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.fmt.internal.BalancerBean
+import io.nekohasekai.sagernet.fmt.internal.ChainBean
+
+/**
+ * Resolves the chains and balancers referenced by a config.
+ *
+ * Profiles are loaded level by level: one query for every id referenced at the current nesting
+ * depth, and one more for the members of all group balancers, instead of a query per chain and
+ * per balancer. [resolve] then works on the loaded graph only, and hands out copies of it.
+ *
+ * @param roots profiles already at hand, usually the selected one
+ * @param extraIds further profiles to load and resolve, e.g. outbounds of routing rules
+ */
+internal class ChainResolver(roots: List<ProxyEntity>, extraIds: Collection<Long> = emptyList()) {
+
+    private val entities = HashMap<Long, ProxyEntity>()
+    private val groups = HashMap<Long, List<ProxyEntity>>()
+
+    init {
+        roots.forEach { entities[it.id] = it }
+        val groupIds = HashSet<Long>()
+        // chains and roots need their references loaded, balancer members are only checked
+        var expand = roots + load(extraIds)
+        while (expand.isNotEmpty()) {
+            val references = LinkedHashSet<Long>()
+            val members = LinkedHashSet<Long>()
+            for (entity in expand) {
+                when (val bean = entity.requireBean()) {
+                    is ChainBean -> bean.proxies.filterTo(references) { it !in entities }
+                    is BalancerBean -> if (bean.type == BalancerBean.TYPE_LIST) {
+                        bean.proxies.filterTo(members) { it !in entities }
+                    } else {
+                        groupIds.add(bean.groupId)
+                    }
+                }
+            }
+            members.removeAll(references)
+            val loaded = load(references + members)
+            expand = loaded.filter { it.id in references }
+        }
+        if (groupIds.isNotEmpty()) {
+            SagerDatabase.proxyDao.getByGroups(groupIds.toList()).groupByTo(groups) { it.groupId }
+        }
+    }
+
+    private fun load(ids: Collection<Long>): List<ProxyEntity> {
+        if (ids.isEmpty()) return emptyList()
+        return SagerDatabase.proxyDao.getEntities(ids.toList()).onEach { entities[it.id] = it }
+    }
+
+    operator fun get(id: Long) = entities[id]
+
+    /**
+     * Profiles [entity] expands to: chain members in connection order, balancer members, or
+     * the profile itself.
+     *
+     * Building a chain rewrites the final address of its beans, as does mapping a member run by
+     * an external process, and a profile may be shared by several chains or balancers. So chain
+     * members and external balancer members are fresh copies on every call, while the other
+     * balancer members are handed out as they are.
+     */
+    fun resolve(entity: ProxyEntity): MutableList<ProxyEntity> {
+        val chain = entity.requireBean() is ChainBean
+        return resolve(entity, HashSet()).mapTo(ArrayList()) {
+            if (it === entity || !chain && !it.needExternal()) it
+            else it.copy().putBean(it.requireBean().clone())
+        }
+    }
+
+    private fun resolve(entity: ProxyEntity, path: MutableSet<Long>): MutableList<ProxyEntity> {
+        val bean = entity.requireBean()
+        if (bean is ChainBean) {
+            if (!path.add(entity.id)) error("Chain ${entity.displayName()} contains itself")
+            val beanList = ArrayList<ProxyEntity>()
+            for (proxyId in bean.proxies) {
+                val item = entities[proxyId] ?: continue
+                when (item.type) {
+                    ProxyEntity.TYPE_BALANCER -> error("Balancer is incompatible with chain")
+                    ProxyEntity.TYPE_CONFIG -> error("Custom config is incompatible with chain")
+                }
+                beanList.addAll(resolve(item, path))
+            }
+            path.remove(entity.id)
+            return beanList.asReversed()
+        } else if (bean is BalancerBean) {
+            val beans = if (bean.type == BalancerBean.TYPE_LIST) {
+                bean.proxies.distinct().mapNotNull { entities[it] }
+            } else {
+                groups[bean.groupId] ?: emptyList()
+            }
+            val beanList = ArrayList<ProxyEntity>()
+            for (item in beans) {
+                if (item.id == entity.id) continue
+                when (item.type) {
+                    ProxyEntity.TYPE_BALANCER -> error("Nested balancers are not supported")
+                    ProxyEntity.TYPE_CHAIN -> error("Chain is incompatible with balancer")
+                }
+                beanList.add(item)
+            }
+            return beanList
+        }
+        return mutableListOf(entity)
+    }
+
+}
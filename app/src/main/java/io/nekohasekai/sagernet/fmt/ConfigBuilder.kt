@@ -41,7 +41,6 @@ import io.nekohasekai.sagernet.fmt.V2rayBuildResult.IndexEntity
 import io.nekohasekai.sagernet.fmt.gson.gson
 import io.nekohasekai.sagernet.fmt.http.HttpBean
 import io.nekohasekai.sagernet.fmt.internal.BalancerBean
-import io.nekohasekai.sagernet.fmt.internal.ChainBean
 import io.nekohasekai.sagernet.fmt.shadowsocks.ShadowsocksBean
 import io.nekohasekai.sagernet.fmt.shadowsocks.methodsSing
 import io.nekohasekai.sagernet.fmt.shadowsocksr.ShadowsocksRBean
@@ -58,8 +57,8 @@ import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.isIpAddress
 import io.nekohasekai.sagernet.ktx.mkPort
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.utils.PackageCache
-import libcore.Libcore
 
 const val TAG_SOCKS = "socks"
 const val TAG_HTTP = "http"
@@ -91,65 +90,49 @@ class V2rayBuildResult(
     var observatoryTags: Set<String>,
     val dumpUid: Boolean,
     val alerts: List<Pair<Int, String>>,
+    val ports: Map<String, Int> = emptyMap(),
+    val sections: Map<String, String> = emptyMap(),
 ) {
     data class IndexEntity(var isBalancer: Boolean, var chain: LinkedHashMap<Int, ProxyEntity>)
 }
 
+/**
+ * Build the core config for [proxy].
+ *
+ * When [previous] is set, local ports allocated by that build are reused for the same purpose,
+ * so that unchanged outbounds serialize identically and the two results can be diffed.
+ *
+ * When [forTest] is set, [testProxies] are built into the same config next to [proxy], each
+ * routed from the virtual inbound named by [testInboundTag], so one core can test them all.
+ */
 fun buildV2RayConfig(
-    proxy: ProxyEntity, forTest: Boolean = false
+    proxy: ProxyEntity,
+    forTest: Boolean = false,
+    previous: V2rayBuildResult? = null,
+    testProxies: List<ProxyEntity> = emptyList()
 ): V2rayBuildResult {
 
     val outboundTags = ArrayList<String>()
     val outboundTagsCurrent = ArrayList<String>()
     val outboundTagsAll = HashMap<String, ProxyEntity>()
     val globalOutbounds = ArrayList<String>()
+    val ports = HashMap<String, Int>()
 
-    fun ProxyEntity.resolveChain(): MutableList<ProxyEntity> {
-        val bean = requireBean()
-        if (bean is ChainBean) {
-            val beans = SagerDatabase.proxyDao.getEntities(bean.proxies)
-            val beansMap = beans.associateBy { it.id }
-            val beanList = ArrayList<ProxyEntity>()
-            for (proxyId in bean.proxies) {
-                val item = beansMap[proxyId] ?: continue
-                when (item.type) {
-                    ProxyEntity.TYPE_BALANCER -> error("Balancer is incompatible with chain")
-                    ProxyEntity.TYPE_CONFIG -> error("Custom config is incompatible with chain")
-                }
-                beanList.addAll(item.resolveChain())
-            }
-            return beanList.asReversed()
-        } else if (bean is BalancerBean) {
-            val beans = if (bean.type == BalancerBean.TYPE_LIST) {
-                SagerDatabase.proxyDao.getEntities(bean.proxies)
-            } else {
-                SagerDatabase.proxyDao.getByGroup(bean.groupId)
-            }
-
-            val beansMap = beans.associateBy { it.id }
-            val beanList = ArrayList<ProxyEntity>()
-            for (proxyId in beansMap.keys) {
-                val item = beansMap[proxyId] ?: continue
-                if (item.id == id) continue
-                when (item.type) {
-                    ProxyEntity.TYPE_BALANCER -> error("Nested balancers are not supported")
-                    ProxyEntity.TYPE_CHAIN -> error("Chain is incompatible with balancer")
-                }
-                beanList.add(item)
-            }
-            return beanList
-        }
-        return mutableListOf(this)
+    fun allocatePort(key: String): Int {
+        return ports.getOrPut(key) { previous?.ports?.get(key) ?: mkPort() }
     }
 
-    val proxies = proxy.resolveChain()
     val extraRules = if (forTest) listOf() else SagerDatabase.rulesDao.enabledRules()
-    val extraProxies = if (forTest) mapOf() else SagerDatabase.proxyDao.getEntities(extraRules.mapNotNull { rule ->
+    val extraRoots = if (forTest) testProxies.filter { it.id != proxy.id } else listOf()
+    val extraIds = extraRules.mapNotNull { rule ->
         rule.outbound.takeIf { it > 0 && it != proxy.id }
-    }.toHashSet().toList()).associate {
+    }.toHashSet()
+    val resolver = ChainResolver(listOf(proxy) + extraRoots, extraIds)
+    val proxies = resolver.resolve(proxy)
+    val extraProxies = (extraRoots + extraIds.mapNotNull { resolver[it] }).associate {
         (it.id to ((it.type == ProxyEntity.TYPE_BALANCER) to lazy {
             it.balancerBean
-        })) to it.resolveChain()
+        })) to resolver.resolve(it)
     }
 
     val allowAccess = DataStore.allowAccess
@@ -171,6 +154,9 @@ fun buildV2RayConfig(
     val destinationOverride = DataStore.destinationOverride
     val trafficStatistics = !forTest && DataStore.profileTrafficStatistics
     val needIncludeSelf = DataStore.tunImplementation == TunImplementation.SYSTEM
+    val keepAliveInterval = DataStore.tcpKeepAliveInterval
+    val enableMux = DataStore.enableMux
+    val muxConcurrency = DataStore.muxConcurrency
 
     val outboundDomainStrategy = when {
         destinationOverride && !resolveDestination -> "AsIs"
@@ -198,11 +184,9 @@ fun buildV2RayConfig(
                     valueY = DnsObject.ServerObject().apply {
                         var url = it
                         if (it != "localhost") {
-                            val lnk = Libcore.parseURL(it)
-                            if (lnk.scheme.isBlank()) {
-                                lnk.scheme = "udp"
+                            if (parseURL(it).scheme.isBlank()) {
+                                url = "udp://$it"
                             }
-                            url = lnk.string
                         }
                         address = url
                         concurrency = true
@@ -413,7 +397,7 @@ fun buildV2RayConfig(
                     var currentDomainStrategy = outboundDomainStrategy
 
                     if (proxyEntity.needExternal()) {
-                        val localPort = mkPort()
+                        val localPort = allocatePort("external-$tagIn")
                         chainMap[localPort] = proxyEntity
                         currentOutbound.apply {
                             protocol = "socks"
@@ -433,504 +417,515 @@ fun buildV2RayConfig(
                             currentDomainStrategy = "UseIP"
                         }
                     } else {
-                        currentOutbound.apply {
-                            val keepAliveInterval = DataStore.tcpKeepAliveInterval
-                            val needKeepAliveInterval = keepAliveInterval !in intArrayOf(0, 15)
-
-                            if (bean is SOCKSBean) {
-                                protocol = "socks"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    SocksOutboundConfigurationObject().apply {
-                                        servers = listOf(SocksOutboundConfigurationObject.ServerObject()
-                                            .apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                if (!bean.username.isNullOrBlank()) {
-                                                    users = listOf(SocksOutboundConfigurationObject.ServerObject.UserObject()
-                                                        .apply {
-                                                            user = bean.username
-                                                            pass = bean.password
-                                                        })
-                                                }
-                                            })
-                                        version = bean.protocolVersionName()
-                                    })
-                                if (bean.tls || needKeepAliveInterval) {
-                                    streamSettings = StreamSettingsObject().apply {
-                                        network = "tcp"
-                                        if (bean.tls) {
-                                            security = "tls"
-                                            tlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
-                                                }
-                                            }
-                                        }
-                                        if (needKeepAliveInterval) {
-                                            sockopt = StreamSettingsObject.SockoptObject().apply {
-                                                tcpKeepAliveInterval = keepAliveInterval
-                                            }
-                                        }
-                                    }
-                                }
-                            } else if (bean is HttpBean) {
-                                protocol = "http"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    HTTPOutboundConfigurationObject().apply {
-                                        servers = listOf(HTTPOutboundConfigurationObject.ServerObject()
-                                            .apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                if (!bean.username.isNullOrBlank()) {
-                                                    users = listOf(HTTPInboundConfigurationObject.AccountObject()
-                                                        .apply {
-                                                            user = bean.username
-                                                            pass = bean.password
-                                                        })
-                                                }
-                                            })
-                                    })
-                                if (bean.tls || needKeepAliveInterval) {
-                                    streamSettings = StreamSettingsObject().apply {
-                                        network = "tcp"
-                                        if (bean.tls) {
-                                            security = "tls"
-                                            tlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
-                                                }
-                                            }
-                                        }
-                                        if (needKeepAliveInterval) {
-                                            sockopt = StreamSettingsObject.SockoptObject().apply {
-                                                tcpKeepAliveInterval = keepAliveInterval
-                                            }
-                                        }
-                                    }
-                                }
-                            } else if (bean is StandardV2RayBean) {
-                                if (bean is VMessBean) {
-                                    protocol = "vmess"
+                        val needMux = (isBalancer || index == 0) && proxyEntity.needCoreMux() && enableMux
+                        val fragmentKey = OutboundFragments.key(
+                            bean, keepAliveInterval, needMux, muxConcurrency, currentDomainStrategy
+                        )
+                        val fragment = OutboundFragments.shared.getOrBuild(fragmentKey) {
+                            var fragmentDomainStrategy = currentDomainStrategy
+                            var fragmentRequireWs = false
+                            val outbound = OutboundObject().apply {
+                                val needKeepAliveInterval = keepAliveInterval !in intArrayOf(0, 15)
+
+                                if (bean is SOCKSBean) {
+                                    protocol = "socks"
                                     settings = LazyOutboundConfigurationObject(this,
-                                        VMessOutboundConfigurationObject().apply {
-                                            vnext = listOf(VMessOutboundConfigurationObject.ServerObject()
+                                        SocksOutboundConfigurationObject().apply {
+                                            servers = listOf(SocksOutboundConfigurationObject.ServerObject()
                                                 .apply {
                                                     address = bean.serverAddress
                                                     port = bean.serverPort
-                                                    users = listOf(VMessOutboundConfigurationObject.ServerObject.UserObject()
-                                                        .apply {
-                                                            id = bean.uuidOrGenerate()
-                                                            security = bean.encryption.takeIf { it.isNotBlank() }
-                                                                ?: "auto"
-                                                            experimental = ""
-                                                            if (bean.experimentalAuthenticatedLength) {
-                                                                experimental += "AuthenticatedLength"
-                                                            }
-                                                            if (bean.experimentalNoTerminationSignal) {
-                                                                experimental += "NoTerminationSignal"
-                                                            }
-                                                            if (experimental.isBlank()) experimental = null;
-                                                        })
+                                                    if (!bean.username.isNullOrBlank()) {
+                                                        users = listOf(SocksOutboundConfigurationObject.ServerObject.UserObject()
+                                                            .apply {
+                                                                user = bean.username
+                                                                pass = bean.password
+                                                            })
+                                                    }
                                                 })
-                                            when (bean.packetEncoding) {
-                                                PacketAddrType.Packet_VALUE -> {
-                                                    packetEncoding = "packet"
-                                                    if (currentDomainStrategy == "AsIs") {
-                                                        currentDomainStrategy = "UseIP"
+                                            version = bean.protocolVersionName()
+                                        })
+                                    if (bean.tls || needKeepAliveInterval) {
+                                        streamSettings = StreamSettingsObject().apply {
+                                            network = "tcp"
+                                            if (bean.tls) {
+                                                security = "tls"
+                                                tlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
                                                     }
                                                 }
-                                                PacketAddrType.XUDP_VALUE -> packetEncoding = "xudp"
                                             }
-                                        })
-                                } else if (bean is VLESSBean) {
-                                    protocol = "vless"
+                                            if (needKeepAliveInterval) {
+                                                sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                    tcpKeepAliveInterval = keepAliveInterval
+                                                }
+                                            }
+                                        }
+                                    }
+                                } else if (bean is HttpBean) {
+                                    protocol = "http"
                                     settings = LazyOutboundConfigurationObject(this,
-                                        VLESSOutboundConfigurationObject().apply {
-                                            vnext = listOf(VLESSOutboundConfigurationObject.ServerObject()
+                                        HTTPOutboundConfigurationObject().apply {
+                                            servers = listOf(HTTPOutboundConfigurationObject.ServerObject()
                                                 .apply {
                                                     address = bean.serverAddress
                                                     port = bean.serverPort
-                                                    users = listOf(VLESSOutboundConfigurationObject.ServerObject.UserObject()
-                                                        .apply {
-                                                            id = bean.uuidOrGenerate()
-                                                            encryption = bean.encryption
-                                                            if (bean.flow.isNotBlank()) {
-                                                                flow = bean.flow
-                                                            } else if (bean.security == "xtls") {
-                                                                flow = "xtls-rprx-direct"
-                                                            }
-                                                        })
+                                                    if (!bean.username.isNullOrBlank()) {
+                                                        users = listOf(HTTPInboundConfigurationObject.AccountObject()
+                                                            .apply {
+                                                                user = bean.username
+                                                                pass = bean.password
+                                                            })
+                                                    }
                                                 })
-                                            when (bean.packetEncoding) {
-                                                PacketAddrType.Packet_VALUE -> {
-                                                    packetEncoding = "packet"
-                                                    if (currentDomainStrategy == "AsIs") {
-                                                        currentDomainStrategy = "UseIP"
+                                        })
+                                    if (bean.tls || needKeepAliveInterval) {
+                                        streamSettings = StreamSettingsObject().apply {
+                                            network = "tcp"
+                                            if (bean.tls) {
+                                                security = "tls"
+                                                tlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
                                                     }
                                                 }
-                                                PacketAddrType.XUDP_VALUE -> packetEncoding = "xudp"
                                             }
-                                        })
-                                }
-
-                                streamSettings = StreamSettingsObject().apply {
-                                    network = bean.type
-                                    if (bean.security.isNotBlank()) {
-                                        security = bean.security
-                                    }
-                                    when (security) {
-                                        "xtls" -> {
-                                            xtlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
-                                                }
-                                                if (bean.alpn.isNotBlank()) {
-                                                    alpn = bean.alpn.split("\n")
+                                            if (needKeepAliveInterval) {
+                                                sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                    tcpKeepAliveInterval = keepAliveInterval
                                                 }
                                             }
                                         }
-                                        "tls" -> {
-                                            tlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
+                                    }
+                                } else if (bean is StandardV2RayBean) {
+                                    if (bean is VMessBean) {
+                                        protocol = "vmess"
+                                        settings = LazyOutboundConfigurationObject(this,
+                                            VMessOutboundConfigurationObject().apply {
+                                                vnext = listOf(VMessOutboundConfigurationObject.ServerObject()
+                                                    .apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        users = listOf(VMessOutboundConfigurationObject.ServerObject.UserObject()
+                                                            .apply {
+                                                                id = bean.uuidOrGenerate()
+                                                                security = bean.encryption.takeIf { it.isNotBlank() }
+                                                                    ?: "auto"
+                                                                experimental = ""
+                                                                if (bean.experimentalAuthenticatedLength) {
+                                                                    experimental += "AuthenticatedLength"
+                                                                }
+                                                                if (bean.experimentalNoTerminationSignal) {
+                                                                    experimental += "NoTerminationSignal"
+                                                                }
+                                                                if (experimental.isBlank()) experimental = null;
+                                                            })
+                                                    })
+                                                when (bean.packetEncoding) {
+                                                    PacketAddrType.Packet_VALUE -> {
+                                                        packetEncoding = "packet"
+                                                        if (fragmentDomainStrategy == "AsIs") {
+                                                            fragmentDomainStrategy = "UseIP"
+                                                        }
+                                                    }
+                                                    PacketAddrType.XUDP_VALUE -> packetEncoding = "xudp"
                                                 }
-
-                                                if (bean.alpn.isNotBlank()) {
-                                                    alpn = bean.alpn.split("\n")
+                                            })
+                                    } else if (bean is VLESSBean) {
+                                        protocol = "vless"
+                                        settings = LazyOutboundConfigurationObject(this,
+                                            VLESSOutboundConfigurationObject().apply {
+                                                vnext = listOf(VLESSOutboundConfigurationObject.ServerObject()
+                                                    .apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        users = listOf(VLESSOutboundConfigurationObject.ServerObject.UserObject()
+                                                            .apply {
+                                                                id = bean.uuidOrGenerate()
+                                                                encryption = bean.encryption
+                                                                if (bean.flow.isNotBlank()) {
+                                                                    flow = bean.flow
+                                                                } else if (bean.security == "xtls") {
+                                                                    flow = "xtls-rprx-direct"
+                                                                }
+                                                            })
+                                                    })
+                                                when (bean.packetEncoding) {
+                                                    PacketAddrType.Packet_VALUE -> {
+                                                        packetEncoding = "packet"
+                                                        if (fragmentDomainStrategy == "AsIs") {
+                                                            fragmentDomainStrategy = "UseIP"
+                                                        }
+                                                    }
+                                                    PacketAddrType.XUDP_VALUE -> packetEncoding = "xudp"
                                                 }
+                                            })
+                                    }
 
-                                                if (bean.certificates.isNotBlank()) {
-                                                    disableSystemRoot = true
-                                                    certificates = listOf(TLSObject.CertificateObject()
-                                                        .apply {
-                                                            usage = "verify"
-                                                            certificate = bean.certificates.split(
-                                                                "\n"
-                                                            ).filter { it.isNotBlank() }
-                                                        })
+                                    streamSettings = StreamSettingsObject().apply {
+                                        network = bean.type
+                                        if (bean.security.isNotBlank()) {
+                                            security = bean.security
+                                        }
+                                        when (security) {
+                                            "xtls" -> {
+                                                xtlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
+                                                    }
+                                                    if (bean.alpn.isNotBlank()) {
+                                                        alpn = bean.alpn.split("\n")
+                                                    }
                                                 }
+                                            }
+                                            "tls" -> {
+                                                tlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
+                                                    }
 
-                                                if (bean.pinnedPeerCertificateChainSha256.isNotBlank()) {
-                                                    pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.split(
-                                                        "\n"
-                                                    ).filter { it.isNotBlank() }
-                                                }
+                                                    if (bean.alpn.isNotBlank()) {
+                                                        alpn = bean.alpn.split("\n")
+                                                    }
 
-                                                if (bean.allowInsecure) {
-                                                    allowInsecure = true
+                                                    if (bean.certificates.isNotBlank()) {
+                                                        disableSystemRoot = true
+                                                        certificates = listOf(TLSObject.CertificateObject()
+                                                            .apply {
+                                                                usage = "verify"
+                                                                certificate = bean.certificates.split(
+                                                                    "\n"
+                                                                ).filter { it.isNotBlank() }
+                                                            })
+                                                    }
+
+                                                    if (bean.pinnedPeerCertificateChainSha256.isNotBlank()) {
+                                                        pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.split(
+                                                            "\n"
+                                                        ).filter { it.isNotBlank() }
+                                                    }
+
+                                                    if (bean.allowInsecure) {
+                                                        allowInsecure = true
+                                                    }
                                                 }
                                             }
                                         }
-                                    }
 
-                                    when (network) {
-                                        "tcp" -> {
-                                            tcpSettings = TcpObject().apply {
-                                                if (bean.headerType == "http") {
-                                                    header = TcpObject.HeaderObject().apply {
-                                                        type = "http"
-                                                        if (bean.host.isNotBlank() || bean.path.isNotBlank()) {
-                                                            request = TcpObject.HeaderObject.HTTPRequestObject()
-                                                                .apply {
-                                                                    headers = mutableMapOf()
-                                                                    if (bean.host.isNotBlank()) {
-                                                                        headers["Host"] = TcpObject.HeaderObject.StringOrListObject()
-                                                                            .apply {
-                                                                                valueY = bean.host.split(
-                                                                                    ","
-                                                                                ).map { it.trim() }
-                                                                            }
-                                                                    }
-                                                                    if (bean.path.isNotBlank()) {
-                                                                        path = bean.path.split(",")
+                                        when (network) {
+                                            "tcp" -> {
+                                                tcpSettings = TcpObject().apply {
+                                                    if (bean.headerType == "http") {
+                                                        header = TcpObject.HeaderObject().apply {
+                                                            type = "http"
+                                                            if (bean.host.isNotBlank() || bean.path.isNotBlank()) {
+                                                                request = TcpObject.HeaderObject.HTTPRequestObject()
+                                                                    .apply {
+                                                                        headers = mutableMapOf()
+                                                                        if (bean.host.isNotBlank()) {
+                                                                            headers["Host"] = TcpObject.HeaderObject.StringOrListObject()
+                                                                                .apply {
+                                                                                    valueY = bean.host.split(
+                                                                                        ","
+                                                                                    ).map { it.trim() }
+                                                                                }
+                                                                        }
+                                                                        if (bean.path.isNotBlank()) {
+                                                                            path = bean.path.split(",")
+                                                                        }
                                                                     }
-                                                                }
+                                                            }
                                                         }
                                                     }
                                                 }
                                             }
-                                        }
-                                        "kcp" -> {
-                                            kcpSettings = KcpObject().apply {
-                                                mtu = 1350
-                                                tti = 50
-                                                uplinkCapacity = 12
-                                                downlinkCapacity = 100
-                                                congestion = false
-                                                readBufferSize = 1
-                                                writeBufferSize = 1
-                                                header = KcpObject.HeaderObject().apply {
-                                                    type = bean.headerType
-                                                }
-                                                if (bean.mKcpSeed.isNotBlank()) {
-                                                    seed = bean.mKcpSeed
+                                            "kcp" -> {
+                                                kcpSettings = KcpObject().apply {
+                                                    mtu = 1350
+                                                    tti = 50
+                                                    uplinkCapacity = 12
+                                                    downlinkCapacity = 100
+                                                    congestion = false
+                                                    readBufferSize = 1
+                                                    writeBufferSize = 1
+                                                    header = KcpObject.HeaderObject().apply {
+                                                        type = bean.headerType
+                                                    }
+                                                    if (bean.mKcpSeed.isNotBlank()) {
+                                                        seed = bean.mKcpSeed
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "ws" -> {
-                                            wsSettings = WebSocketObject().apply {
-                                                headers = mutableMapOf()
+                                            "ws" -> {
+                                                wsSettings = WebSocketObject().apply {
+                                                    headers = mutableMapOf()
 
-                                                if (bean.host.isNotBlank()) {
-                                                    headers["Host"] = bean.host
-                                                }
+                                                    if (bean.host.isNotBlank()) {
+                                                        headers["Host"] = bean.host
+                                                    }
 
-                                                path = bean.path.takeIf { it.isNotBlank() } ?: "/"
+                                                    path = bean.path.takeIf { it.isNotBlank() } ?: "/"
 
-                                                if (bean.wsMaxEarlyData > 0) {
-                                                    maxEarlyData = bean.wsMaxEarlyData
-                                                }
+                                                    if (bean.wsMaxEarlyData > 0) {
+                                                        maxEarlyData = bean.wsMaxEarlyData
+                                                    }
 
-                                                if (bean.earlyDataHeaderName.isNotBlank()) {
-                                                    earlyDataHeaderName = bean.earlyDataHeaderName
-                                                }
+                                                    if (bean.earlyDataHeaderName.isNotBlank()) {
+                                                        earlyDataHeaderName = bean.earlyDataHeaderName
+                                                    }
 
-                                                if (bean.wsUseBrowserForwarder) {
-                                                    useBrowserForwarding = true
-                                                    requireWs = true
+                                                    if (bean.wsUseBrowserForwarder) {
+                                                        useBrowserForwarding = true
+                                                        fragmentRequireWs = true
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "http" -> {
-                                            network = "http"
+                                            "http" -> {
+                                                network = "http"
 
-                                            httpSettings = HttpObject().apply {
-                                                if (bean.host.isNotBlank()) {
-                                                    host = bean.host.split(",")
-                                                }
+                                                httpSettings = HttpObject().apply {
+                                                    if (bean.host.isNotBlank()) {
+                                                        host = bean.host.split(",")
+                                                    }
 
-                                                path = bean.path.takeIf { it.isNotBlank() } ?: "/"
+                                                    path = bean.path.takeIf { it.isNotBlank() } ?: "/"
+                                                }
                                             }
-                                        }
-                                        "quic" -> {
-                                            quicSettings = QuicObject().apply {
-                                                security = bean.quicSecurity.takeIf { it.isNotBlank() }
-                                                    ?: "none"
-                                                key = bean.quicKey
-                                                header = QuicObject.HeaderObject().apply {
-                                                    type = bean.headerType.takeIf { it.isNotBlank() }
+                                            "quic" -> {
+                                                quicSettings = QuicObject().apply {
+                                                    security = bean.quicSecurity.takeIf { it.isNotBlank() }
                                                         ?: "none"
+                                                    key = bean.quicKey
+                                                    header = QuicObject.HeaderObject().apply {
+                                                        type = bean.headerType.takeIf { it.isNotBlank() }
+                                                            ?: "none"
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "grpc" -> {
-                                            grpcSettings = GrpcObject().apply {
-                                                serviceName = bean.grpcServiceName
-                                                if (bean.grpcMode.isNotBlank()) {
-                                                    mode = bean.grpcMode
+                                            "grpc" -> {
+                                                grpcSettings = GrpcObject().apply {
+                                                    serviceName = bean.grpcServiceName
+                                                    if (bean.grpcMode.isNotBlank()) {
+                                                        mode = bean.grpcMode
+                                                    }
                                                 }
                                             }
                                         }
-                                    }
 
-                                    if (needKeepAliveInterval) {
-                                        sockopt = StreamSettingsObject.SockoptObject().apply {
-                                            tcpKeepAliveInterval = keepAliveInterval
+                                        if (needKeepAliveInterval) {
+                                            sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                tcpKeepAliveInterval = keepAliveInterval
+                                            }
                                         }
-                                    }
 
-                                }
-                            } else if (bean is ShadowsocksBean || bean is ShadowsocksRBean) {
-                                protocol = "shadowsocks"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    ShadowsocksOutboundConfigurationObject().apply {
-                                        servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject()
-                                            .apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                when (bean) {
-                                                    is ShadowsocksBean -> {
-                                                        method = bean.method
-                                                        password = bean.password
-                                                        if (bean.uot) {
-                                                            uot = true
-                                                        }
-                                                        if (bean.experimentReducedIvHeadEntropy) {
-                                                            experimentReducedIvHeadEntropy = true
+                                    }
+                                } else if (bean is ShadowsocksBean || bean is ShadowsocksRBean) {
+                                    protocol = "shadowsocks"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        ShadowsocksOutboundConfigurationObject().apply {
+                                            servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject()
+                                                .apply {
+                                                    address = bean.serverAddress
+                                                    port = bean.serverPort
+                                                    when (bean) {
+                                                        is ShadowsocksBean -> {
+                                                            method = bean.method
+                                                            password = bean.password
+                                                            if (bean.uot) {
+                                                                uot = true
+                                                            }
+                                                            if (bean.experimentReducedIvHeadEntropy) {
+                                                                experimentReducedIvHeadEntropy = true
+                                                            }
+                                                            if (bean.encryptedProtocolExtension) {
+                                                                encryptedProtocolExtension = true
+                                                            }
                                                         }
-                                                        if (bean.encryptedProtocolExtension) {
-                                                            encryptedProtocolExtension = true
+                                                        is ShadowsocksRBean -> {
+                                                            method = bean.method
+                                                            password = bean.password
                                                         }
                                                     }
-                                                    is ShadowsocksRBean -> {
-                                                        method = bean.method
-                                                        password = bean.password
-                                                    }
+                                                })
+                                            if (needKeepAliveInterval) {
+                                                streamSettings = StreamSettingsObject().apply {
+                                                    sockopt = StreamSettingsObject.SockoptObject()
+                                                        .apply {
+                                                            tcpKeepAliveInterval = keepAliveInterval
+                                                        }
                                                 }
-                                            })
-                                        if (needKeepAliveInterval) {
-                                            streamSettings = StreamSettingsObject().apply {
-                                                sockopt = StreamSettingsObject.SockoptObject()
-                                                    .apply {
-                                                        tcpKeepAliveInterval = keepAliveInterval
-                                                    }
                                             }
-                                        }
-                                        if (bean is ShadowsocksRBean) {
-                                            plugin = "shadowsocksr"
-                                            pluginArgs = listOf(
-                                                "--obfs=${bean.obfs}",
-                                                "--obfs-param=${bean.obfsParam}",
-                                                "--protocol=${bean.protocol}",
-                                                "--protocol-param=${bean.protocolParam}"
-                                            )
-                                        } else if (bean is ShadowsocksBean && bean.plugin.isNotBlank()) {
-                                            val pluginConfiguration = PluginConfiguration(bean.plugin)
-                                            try {
-                                                PluginManager.init(pluginConfiguration)
-                                                    ?.let { (path, opts, _) ->
-                                                        plugin = path
-                                                        pluginOpts = opts.toString()
+                                            if (bean is ShadowsocksRBean) {
+                                                plugin = "shadowsocksr"
+                                                pluginArgs = listOf(
+                                                    "--obfs=${bean.obfs}",
+                                                    "--obfs-param=${bean.obfsParam}",
+                                                    "--protocol=${bean.protocol}",
+                                                    "--protocol-param=${bean.protocolParam}"
+                                                )
+                                            } else if (bean is ShadowsocksBean && bean.plugin.isNotBlank()) {
+                                                val pluginConfiguration = PluginConfiguration(bean.plugin)
+                                                try {
+                                                    PluginManager.init(pluginConfiguration)
+                                                        ?.let { (path, opts, _) ->
+                                                            plugin = path
+                                                            pluginOpts = opts.toString()
+                                                        }
+                                                } catch (e: PluginManager.PluginNotFoundException) {
+                                                    if (e.plugin in arrayOf(
+                                                            "v2ray-plugin", "obfs-local"
+                                                        )
+                                                    ) {
+                                                        plugin = e.plugin
+                                                        pluginOpts = pluginConfiguration.getOptions()
+                                                            .toString()
+                                                    } else {
+                                                        throw e
                                                     }
-                                            } catch (e: PluginManager.PluginNotFoundException) {
-                                                if (e.plugin in arrayOf(
-                                                        "v2ray-plugin", "obfs-local"
-                                                    )
-                                                ) {
-                                                    plugin = e.plugin
-                                                    pluginOpts = pluginConfiguration.getOptions()
-                                                        .toString()
-                                                } else {
-                                                    throw e
                                                 }
                                             }
-                                        }
-                                    })
-                            } else if (bean is TrojanBean && bean.security != "xtls") {
-                                protocol = "trojan_sing"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    TrojanSingOutboundConfigurationObject().apply {
-                                        address = bean.serverAddress
-                                        port = bean.serverPort
-                                        password = bean.password
-                                        if (bean.sni.isNotBlank()) {
-                                            serverName = bean.sni
-                                        }
-                                        if (bean.alpn.isNotBlank()) {
-                                            nextProtos = bean.alpn.split("\n")
-                                        }
-                                        if (bean.allowInsecure) {
-                                            insecure = true
-                                        }
-                                    })
-                            } else if (bean is TrojanBean) {
-                                protocol = "trojan"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    TrojanOutboundConfigurationObject().apply {
-                                        servers = listOf(TrojanOutboundConfigurationObject.ServerObject()
-                                            .apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                password = bean.password
-                                                if (bean.flow.isNotBlank()) {
-                                                    flow = bean.flow
-                                                } else if (bean.security == "xtls") {
-                                                    flow = "xtls-rprx-direct"
-                                                }
-                                            })
-                                    })
-                                streamSettings = StreamSettingsObject().apply {
-                                    network = "tcp"
-                                    when (bean.security) {
-                                        "xtls" -> {
-                                            security = bean.security
-                                            xtlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
-                                                }
-                                                if (bean.alpn.isNotBlank()) {
-                                                    alpn = bean.alpn.split("\n")
+                                        })
+                                } else if (bean is TrojanBean && bean.security != "xtls") {
+                                    protocol = "trojan_sing"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        TrojanSingOutboundConfigurationObject().apply {
+                                            address = bean.serverAddress
+                                            port = bean.serverPort
+                                            password = bean.password
+                                            if (bean.sni.isNotBlank()) {
+                                                serverName = bean.sni
+                                            }
+                                            if (bean.alpn.isNotBlank()) {
+                                                nextProtos = bean.alpn.split("\n")
+                                            }
+                                            if (bean.allowInsecure) {
+                                                insecure = true
+                                            }
+                                        })
+                                } else if (bean is TrojanBean) {
+                                    protocol = "trojan"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        TrojanOutboundConfigurationObject().apply {
+                                            servers = listOf(TrojanOutboundConfigurationObject.ServerObject()
+                                                .apply {
+                                                    address = bean.serverAddress
+                                                    port = bean.serverPort
+                                                    password = bean.password
+                                                    if (bean.flow.isNotBlank()) {
+                                                        flow = bean.flow
+                                                    } else if (bean.security == "xtls") {
+                                                        flow = "xtls-rprx-direct"
+                                                    }
+                                                })
+                                        })
+                                    streamSettings = StreamSettingsObject().apply {
+                                        network = "tcp"
+                                        when (bean.security) {
+                                            "xtls" -> {
+                                                security = bean.security
+                                                xtlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
+                                                    }
+                                                    if (bean.alpn.isNotBlank()) {
+                                                        alpn = bean.alpn.split("\n")
+                                                    }
                                                 }
                                             }
-                                        }
-                                        else -> {
-                                            security = "tls"
-                                            tlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotBlank()) {
-                                                    serverName = bean.sni
+                                            else -> {
+                                                security = "tls"
+                                                tlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotBlank()) {
+                                                        serverName = bean.sni
+                                                    }
+                                                    if (bean.alpn.isNotBlank()) {
+                                                        alpn = bean.alpn.split("\n")
+                                                    }
                                                 }
-                                                if (bean.alpn.isNotBlank()) {
-                                                    alpn = bean.alpn.split("\n")
+                                                if (bean.allowInsecure) {
+                                                    tlsSettings = tlsSettings ?: TLSObject()
+                                                    tlsSettings.allowInsecure = true
                                                 }
                                             }
-                                            if (bean.allowInsecure) {
-                                                tlsSettings = tlsSettings ?: TLSObject()
-                                                tlsSettings.allowInsecure = true
+                                        }
+                                        if (needKeepAliveInterval) {
+                                            sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                tcpKeepAliveInterval = keepAliveInterval
                                             }
                                         }
                                     }
-                                    if (needKeepAliveInterval) {
-                                        sockopt = StreamSettingsObject.SockoptObject().apply {
-                                            tcpKeepAliveInterval = keepAliveInterval
+                                } else if (bean is WireGuardBean) {
+                                    protocol = "wireguard"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        WireGuardOutbounzConfigurationObject().apply {
+                                            address = bean.finalAddress
+                                            port = bean.finalPort
+                                            network = "udp"
+                                            localAddresses = bean.localAddress.split("\n")
+                                            privateKey = bean.privateKey
+                                            peerPublicKey = bean.peerPublicKey
+                                            preSharedKey = bean.peerPreSharedKey
+                                            mtu = bean.mtu
+                                        })
+                                    streamSettings = StreamSettingsObject().apply {
+                                        if (needKeepAliveInterval) {
+                                            sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                tcpKeepAliveInterval = keepAliveInterval
+                                            }
                                         }
                                     }
-                                }
-                            } else if (bean is WireGuardBean) {
-                                protocol = "wireguard"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    WireGuardOutbounzConfigurationObject().apply {
-                                        address = bean.finalAddress
-                                        port = bean.finalPort
-                                        network = "udp"
-                                        localAddresses = bean.localAddress.split("\n")
-                                        privateKey = bean.privateKey
-                                        peerPublicKey = bean.peerPublicKey
-                                        preSharedKey = bean.peerPreSharedKey
-                                        mtu = bean.mtu
-                                    })
-                                streamSettings = StreamSettingsObject().apply {
-                                    if (needKeepAliveInterval) {
-                                        sockopt = StreamSettingsObject.SockoptObject().apply {
-                                            tcpKeepAliveInterval = keepAliveInterval
-                                        }
+                                    if (fragmentDomainStrategy == "AsIs") {
+                                        fragmentDomainStrategy = "UseIP"
                                     }
-                                }
-                                if (currentDomainStrategy == "AsIs") {
-                                    currentDomainStrategy = "UseIP"
-                                }
-                            } else if (bean is SSHBean) {
-                                protocol = "ssh"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    SSHOutbountConfigurationObject().apply {
-                                        address = bean.finalAddress
-                                        port = bean.finalPort
-                                        user = bean.username
-                                        when (bean.authType) {
-                                            SSHBean.AUTH_TYPE_PRIVATE_KEY -> {
-                                                privateKey = bean.privateKey
-                                                password = bean.privateKeyPassphrase
+                                } else if (bean is SSHBean) {
+                                    protocol = "ssh"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        SSHOutbountConfigurationObject().apply {
+                                            address = bean.finalAddress
+                                            port = bean.finalPort
+                                            user = bean.username
+                                            when (bean.authType) {
+                                                SSHBean.AUTH_TYPE_PRIVATE_KEY -> {
+                                                    privateKey = bean.privateKey
+                                                    password = bean.privateKeyPassphrase
+                                                }
+                                                else -> {
+                                                    password = bean.password
+                                                }
                                             }
-                                            else -> {
-                                                password = bean.password
+                                            publicKey = bean.publicKey
+                                        })
+                                    streamSettings = StreamSettingsObject().apply {
+                                        if (needKeepAliveInterval) {
+                                            sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                tcpKeepAliveInterval = keepAliveInterval
                                             }
                                         }
-                                        publicKey = bean.publicKey
-                                    })
-                                streamSettings = StreamSettingsObject().apply {
-                                    if (needKeepAliveInterval) {
-                                        sockopt = StreamSettingsObject.SockoptObject().apply {
-                                            tcpKeepAliveInterval = keepAliveInterval
-                                        }
                                     }
                                 }
-                            }
-                            if ((isBalancer || index == 0) && proxyEntity.needCoreMux() && DataStore.enableMux) {
-                                mux = OutboundObject.MuxObject().apply {
-                                    enabled = true
-                                    concurrency = DataStore.muxConcurrency
-                                    if (bean is StandardV2RayBean) {
-                                        when (bean.packetEncoding) {
-                                            PacketAddrType.Packet_VALUE -> {
-                                                packetEncoding = "packet"
-                                            }
-                                            PacketAddrType.XUDP_VALUE -> {
-                                                packetEncoding = "xudp"
+                                if (needMux) {
+                                    mux = OutboundObject.MuxObject().apply {
+                                        enabled = true
+                                        concurrency = muxConcurrency
+                                        if (bean is StandardV2RayBean) {
+                                            when (bean.packetEncoding) {
+                                                PacketAddrType.Packet_VALUE -> {
+                                                    packetEncoding = "packet"
+                                                }
+                                                PacketAddrType.XUDP_VALUE -> {
+                                                    packetEncoding = "xudp"
+                                                }
                                             }
                                         }
                                     }
                                 }
                             }
+                            OutboundFragment(outbound, fragmentDomainStrategy, fragmentRequireWs)
                         }
+                        currentOutbound = fragment.build()
+                        currentDomainStrategy = fragment.domainStrategy
+                        if (fragment.requireWs) requireWs = true
                     }
 
                     currentOutbound.tag = tagIn
@@ -957,7 +952,7 @@ fun buildV2RayConfig(
                 }
 
                 if (proxyEntity.needExternal() && !isBalancer && index != profileList.lastIndex) {
-                    val mappingPort = mkPort()
+                    val mappingPort = allocatePort("$tagOutbound-mapping-${proxyEntity.id}")
                     bean.finalAddress = LOCALHOST
                     bean.finalPort = mappingPort
                     bean.isChain = true
@@ -977,7 +972,7 @@ fun buildV2RayConfig(
                         pastInboundTag = tag
                     })
                 } else if (bean.canMapping() && proxyEntity.needExternal()) {
-                    val mappingPort = mkPort()
+                    val mappingPort = allocatePort("$tagOutbound-mapping-${proxyEntity.id}")
                     bean.finalAddress = LOCALHOST
                     bean.finalPort = mappingPort
 
@@ -1210,10 +1205,31 @@ fun buildV2RayConfig(
 
         }
 
+        if (forTest && extraProxies.isNotEmpty()) {
+            routing.rules.add(RoutingObject.RuleObject().apply {
+                type = "field"
+                inboundTag = listOf(testInboundTag(proxy.id))
+                if (mainIsBalancer) {
+                    balancerTag = "balancer-$TAG_AGENT"
+                } else {
+                    outboundTag = tagProxy
+                }
+            })
+            for ((id, tag) in tagMap) routing.rules.add(RoutingObject.RuleObject().apply {
+                type = "field"
+                inboundTag = listOf(testInboundTag(id))
+                if (balancerMap.containsKey(id)) {
+                    balancerTag = balancerMap[id]
+                } else {
+                    outboundTag = tag
+                }
+            })
+        }
+
         if (requireWs) {
             browserForwarder = BrowserForwarderObject().apply {
                 listenAddr = LOCALHOST
-                listenPort = mkPort()
+                listenPort = allocatePort("browser-forwarder")
             }
         }
 
@@ -1309,19 +1325,18 @@ fun buildV2RayConfig(
                     valueY = DnsObject.ServerObject().apply {
                         var url = it
                         if (it != "localhost") {
-                            val lnk = Libcore.parseURL(it)
-                            if (lnk.scheme.isBlank()) {
-                                lnk.scheme = "udp+local"
+                            val scheme = parseURL(it).scheme
+                            url = if (scheme.isBlank()) {
+                                "udp+local://$it"
                             } else {
-                                lnk.scheme = when (lnk.scheme) {
+                                when (scheme) {
                                     "tls" -> "tls+local"
                                     "https" -> "https+local"
                                     "quic" -> "quic+local"
                                     "udp" -> "udp+local"
-                                    else -> lnk.scheme
-                                }
+                                    else -> scheme
+                                } + it.substring(it.indexOf(':'))
                             }
-                            url = lnk.string
                         }
                         address = url
                         domains = bypassDomain.toList()
@@ -1364,8 +1379,9 @@ fun buildV2RayConfig(
             disableIPv6 = DataStore.ipv6Mode == IPv6Mode.DISABLE
         }
 
+        val encoded = encode()
         result = V2rayBuildResult(
-            gson.toJson(this),
+            encoded.config,
             indexMap,
             requireWs,
             if (requireWs) browserForwarder.listenPort else 0,
@@ -1376,7 +1392,9 @@ fun buildV2RayConfig(
             rootObserver?.tag ?: "",
             rootObserver?.settings?.subjectSelector ?: HashSet(),
             dumpUid,
-            alerts
+            alerts,
+            ports,
+            encoded.toSections(indexMap, requireWs)
         )
     }
 
@@ -1384,6 +1402,11 @@ fun buildV2RayConfig(
 
 }
 
+/**
+ * Inbound tag which routes test requests to the outbound of profile [id], see [buildV2RayConfig].
+ */
+fun testInboundTag(id: Long) = "test-$id"
+
 fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
 
     val bind = LOCALHOST
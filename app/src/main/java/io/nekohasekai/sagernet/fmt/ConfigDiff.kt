@@ -0,0 +1,82 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import cn.hutool.core.codec.Base64
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.fmt.V2rayBuildResult.IndexEntity
+
+private const val SECTION_EXTERNAL = "external"
+
+/**
+ * Changed sections between two [V2rayBuildResult]s.
+ *
+ * Everything but [processes] lives inside the core and can be applied by swapping the core
+ * instance, while [processes] means plugin processes or external instances must be restarted.
+ * Swapping the core still drops open connections; it only saves restarting the processes.
+ */
+class V2rayConfigDiff(val sections: Set<String>) {
+
+    val routing = sections.any { it == "routing" || it == "reverse" || it.startsWith("outbounds/reverse-out-") }
+    val dns = sections.any { it == "dns" || it == "fakedns" || it == "outbounds/$TAG_DNS_OUT" }
+    val processes = SECTION_EXTERNAL in sections
+    val outbounds = sections.any { it.startsWith("outbounds/") && !it.startsWith("outbounds/reverse-out-") && it != "outbounds/$TAG_DNS_OUT" }
+
+    fun isEmpty() = sections.isEmpty()
+
+    fun canHotReload() = !processes
+
+    override fun toString(): String {
+        return "V2rayConfigDiff(routing=$routing, dns=$dns, outbounds=$outbounds, processes=$processes, sections=$sections)"
+    }
+
+}
+
+fun V2rayBuildResult.diff(previous: V2rayBuildResult): V2rayConfigDiff {
+    if (sections.isEmpty() || previous.sections.isEmpty()) {
+        return V2rayConfigDiff(setOf(SECTION_EXTERNAL))
+    }
+    val changed = HashSet<String>()
+    for (key in sections.keys + previous.sections.keys) {
+        if (sections[key] != previous.sections[key]) changed.add(key)
+    }
+    return V2rayConfigDiff(changed)
+}
+
+/**
+ * Sections of the serialized config as produced by [encode]: top-level objects as is, inbounds
+ * and outbounds per tag, plus a synthetic section describing everything started outside the core.
+ */
+internal fun EncodedConfig.toSections(
+    index: List<IndexEntity>, requireWs: Boolean
+): Map<String, String> {
+    sections[SECTION_EXTERNAL] = StringBuilder().apply {
+        append("mux=${DataStore.enableMux},ca=${DataStore.providerRootCA},log=${DataStore.enableLog}")
+        append(",api=${DataStore.allowAccess},ws=$requireWs")
+        for ((isBalancer, chain) in index) {
+            append("\n").append(isBalancer)
+            for ((port, entity) in chain) {
+                append(" ").append(port).append(":").append(entity.type).append(":")
+                append(Base64.encode(KryoConverters.serialize(entity.requireBean())))
+            }
+        }
+    }.toString()
+    return sections
+}
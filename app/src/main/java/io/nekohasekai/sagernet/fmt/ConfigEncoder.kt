@@ -0,0 +1,84 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import com.google.gson.stream.JsonWriter
+import io.nekohasekai.sagernet.fmt.gson.gson
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig
+import java.io.StringWriter
+import java.lang.reflect.Modifier
+
+/**
+ * Serialized form of a [V2RayConfig]: the document loaded by the core, and the same content
+ * split into the sections compared by [diff].
+ */
+internal class EncodedConfig(val config: String, val sections: LinkedHashMap<String, String>)
+
+private val configFields by lazy {
+    V2RayConfig::class.java.declaredFields.filter {
+        !Modifier.isStatic(it.modifiers) && !Modifier.isTransient(it.modifiers)
+    }.onEach { it.isAccessible = true }
+}
+
+private fun encodeValue(value: Any?): String {
+    if (value == null) return "null"
+    val out = StringWriter()
+    // compact on purpose: the shared gson pretty prints, which only costs time here
+    gson.toJson(value, value.javaClass, JsonWriter(out))
+    return out.toString()
+}
+
+/**
+ * Serialize the config in one pass.
+ *
+ * Every top-level value and every inbound and outbound is written exactly once, compact, and
+ * the document is joined from those strings, instead of building a JsonElement tree, pretty
+ * printing it and then stringifying each section of the tree again for [toSections].
+ */
+internal fun V2RayConfig.encode(): EncodedConfig {
+    val sections = LinkedHashMap<String, String>()
+    val document = StringBuilder("{")
+    for (field in configFields) {
+        val value = field.get(this) ?: continue
+        if (document.length > 1) document.append(',')
+        document.append('"').append(field.name).append("\":")
+        if (value is List<*> && (field.name == "inbounds" || field.name == "outbounds")) {
+            document.append('[')
+            value.forEachIndexed { i, item ->
+                val encoded = encodeValue(item)
+                val tag = when (item) {
+                    is V2RayConfig.InboundObject -> item.tag
+                    is V2RayConfig.OutboundObject -> item.tag
+                    else -> null
+                }
+                sections["${field.name}/${tag ?: "#$i"}"] = encoded
+                if (i > 0) document.append(',')
+                document.append(encoded)
+            }
+            document.append(']')
+        } else {
+            val encoded = encodeValue(value)
+            sections[field.name] = encoded
+            document.append(encoded)
+        }
+    }
+    document.append('}')
+    return EncodedConfig(document.toString(), sections)
+}
@@ -25,10 +25,8 @@ import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.ByteBufferOutput;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
-import cn.hutool.core.io.IoUtil;
 import cn.hutool.core.util.ArrayUtil;
 import io.nekohasekai.sagernet.database.SubscriptionBean;
 import io.nekohasekai.sagernet.fmt.brook.BrookBean;
@@ -51,30 +49,77 @@ import io.nekohasekai.sagernet.fmt.tuic.TuicBean;
 import io.nekohasekai.sagernet.fmt.v2ray.VLESSBean;
 import io.nekohasekai.sagernet.fmt.v2ray.VMessBean;
 import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean;
-import io.nekohasekai.sagernet.ktx.KryosKt;
 import io.nekohasekai.sagernet.ktx.Logs;
 
 public class KryoConverters {
 
     private static final byte[] NULL = new byte[0];
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+
+    // Buffers reused by every call on the same thread, set to null while in use so that a
+    // nested call allocates its own instead of overwriting the outer one.
+    private static final ThreadLocal<ByteBufferOutput> OUTPUT = new ThreadLocal<ByteBufferOutput>() {
+        @Override
+        protected ByteBufferOutput initialValue() {
+            return new ByteBufferOutput(BUFFER_SIZE, -1);
+        }
+    };
+
+    private static final ThreadLocal<ByteBufferInput> INPUT = new ThreadLocal<ByteBufferInput>() {
+        @Override
+        protected ByteBufferInput initialValue() {
+            return new ByteBufferInput();
+        }
+    };
 
     @TypeConverter
     public static byte[] serialize(Serializable bean) {
         if (bean == null) return NULL;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteBufferOutput buffer = KryosKt.byteBuffer(out);
-        bean.serializeToBuffer(buffer);
-        IoUtil.flush(buffer);
-        IoUtil.close(buffer);
-        return out.toByteArray();
+        ByteBufferOutput output = OUTPUT.get();
+        boolean reused = output != null;
+        if (reused) {
+            OUTPUT.set(null);
+            output.reset();
+        } else {
+            output = new ByteBufferOutput(BUFFER_SIZE, -1);
+        }
+        try {
+            bean.serializeToBuffer(output);
+            return output.toBytes();
+        } finally {
+            if (reused && output.getByteBuffer().capacity() <= MAX_REUSED_BUFFER_SIZE) {
+                OUTPUT.set(output);
+            } else if (reused) {
+                OUTPUT.remove();
+            }
+        }
     }
 
     public static <T extends Serializable> T deserialize(T bean, byte[] bytes) {
         if (bytes == null) return bean;
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
-        ByteBufferInput buffer = KryosKt.byteBuffer(input);
+        ByteBufferInput input = INPUT.get();
+        boolean reused = input != null;
+        if (reused) {
+            INPUT.set(null);
+            input.setBuffer(ByteBuffer.wrap(bytes));
+        } else {
+            input = new ByteBufferInput(ByteBuffer.wrap(bytes));
+        }
+        try {
+            return deserialize(bean, input);
+        } finally {
+            if (reused) {
+                input.setBuffer(EMPTY);
+                INPUT.set(input);
+            }
+        }
+    }
+
+    public static <T extends Serializable> T deserialize(T bean, ByteBufferInput input) {
         try {
-            bean.deserializeFromBuffer(buffer);
+            bean.deserializeFromBuffer(input);
         } catch (KryoException e) {
             Logs.INSTANCE.w(e);
         }
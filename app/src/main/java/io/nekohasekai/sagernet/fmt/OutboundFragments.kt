@@ -0,0 +1,113 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.fmt.shadowsocks.ShadowsocksBean
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.OutboundObject
+
+/**
+ * Core outbound built from a bean, without the parts that depend on where it is placed in the
+ * config (tag, proxy settings, chain domain strategy fix-ups).
+ *
+ * The settings objects are shared between every config built from the same fragment and must
+ * not be modified after [build].
+ */
+internal class OutboundFragment(
+    private val outbound: OutboundObject,
+    val domainStrategy: String,
+    val requireWs: Boolean,
+) {
+
+    fun build() = OutboundObject().also {
+        it.sendThrough = outbound.sendThrough
+        it.protocol = outbound.protocol
+        it.settings = outbound.settings
+        it.streamSettings = outbound.streamSettings
+        it.mux = outbound.mux
+        it.fallbackDelayMs = outbound.fallbackDelayMs
+        it.domainStrategy = domainStrategy
+    }
+
+}
+
+/**
+ * Content addressed cache of [OutboundFragment]s.
+ *
+ * Keys are the bean's [AbstractBean.fingerprint] plus every global setting read while building
+ * the outbound, so an edited profile or a changed setting simply misses and old entries age out.
+ */
+internal class OutboundFragments(private val maxSize: Int = 1024) {
+
+    companion object {
+
+        /**
+         * Cache shared by every build in this process.
+         */
+        val shared = OutboundFragments()
+
+        /**
+         * Cache key of the outbound built from [bean], or null if it must not be cached:
+         * Shadowsocks plugins are resolved to the binary of the installed plugin app, which may
+         * be updated or removed while this process lives.
+         */
+        fun key(
+            bean: AbstractBean,
+            keepAliveInterval: Int,
+            mux: Boolean,
+            muxConcurrency: Int,
+            domainStrategy: String,
+        ): String? {
+            if (bean is ShadowsocksBean && bean.plugin.isNotBlank()) return null
+            val fingerprint = bean.fingerprint()
+            return StringBuilder(bean.javaClass.simpleName).apply {
+                append(":").append(fingerprint[0].toString(16))
+                append(":").append(fingerprint[1].toString(16))
+                append(":").append(bean.finalAddress).append(":").append(bean.finalPort)
+                append(":").append(keepAliveInterval)
+                append(":").append(if (mux) muxConcurrency else 0)
+                append(":").append(domainStrategy)
+            }.toString()
+        }
+
+    }
+
+    private val cache = object : LinkedHashMap<String, OutboundFragment>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, OutboundFragment>?): Boolean {
+            return size > maxSize
+        }
+    }
+
+    /**
+     * Fragment for [key], built with [builder] on a miss or without a key. Concurrent builds of
+     * the same key may both run, which is harmless since they produce the same content.
+     */
+    inline fun getOrBuild(key: String?, builder: () -> OutboundFragment): OutboundFragment {
+        if (key == null) return builder()
+        get(key)?.let { return it }
+        return builder().also { put(key, it) }
+    }
+
+    fun get(key: String) = synchronized(cache) { cache[key] }
+
+    fun put(key: String, fragment: OutboundFragment) {
+        synchronized(cache) { cache[key] = fragment }
+    }
+
+}
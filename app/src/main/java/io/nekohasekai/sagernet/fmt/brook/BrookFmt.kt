@@ -27,7 +27,7 @@ import libcore.Libcore
 fun parseBrook(text: String): AbstractBean {
     // https://github.com/txthinking/brook/issues/811
 
-    val link = Libcore.parseURL(text)
+    val link = parseURL(text)
 
     val bean = if (link.host == "socks5") SOCKSBean() else BrookBean()
     bean.name = link.queryParameter("remarks")
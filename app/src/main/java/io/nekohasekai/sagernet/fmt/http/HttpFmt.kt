@@ -19,12 +19,12 @@
 
 package io.nekohasekai.sagernet.fmt.http
 
-import io.nekohasekai.sagernet.ktx.queryParameter
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
 
 fun parseHttp(link: String): HttpBean {
-    val url = Libcore.parseURL(link)
+    val url = parseURL(link)
     if (url.rawPath != "/") error("Not http proxy")
 
     return HttpBean().apply {
@@ -31,7 +31,7 @@ import java.io.File
 // hysteria://host:port?auth=123456&peer=sni.domain&insecure=1|0&upmbps=100&downmbps=100&alpn=hysteria&obfs=xplus&obfsParam=123456#remarks
 
 fun parseHysteria(url: String): HysteriaBean {
-    val link = Libcore.parseURL(url)
+    val link = parseURL(url)
 
     return HysteriaBean().apply {
         serverAddress = link.host
@@ -19,6 +19,7 @@
 
 package io.nekohasekai.sagernet.fmt.pingtunnel
 
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
 
@@ -30,7 +31,7 @@ import libcore.Libcore
  */
 
 fun parsePingTunnel(server: String): PingTunnelBean {
-    val link = Libcore.parseURL(server)
+    val link = parseURL(server)
     return PingTunnelBean().apply {
         serverAddress = link.host
         key = link.username
@@ -20,11 +20,12 @@
 package io.nekohasekai.sagernet.fmt.relaybaton
 
 import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
 
 fun parseRelayBaton(link: String): RelayBatonBean {
-    val url = Libcore.parseURL(link)
+    val url = parseURL(link)
     return RelayBatonBean().apply {
         serverAddress = url.host
         username = url.username
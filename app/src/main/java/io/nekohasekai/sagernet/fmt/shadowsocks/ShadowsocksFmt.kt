@@ -28,7 +28,7 @@ import io.nekohasekai.sagernet.IPv6Mode
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.fmt.LOCALHOST
 import io.nekohasekai.sagernet.ktx.decodeBase64UrlSafe
-import io.nekohasekai.sagernet.ktx.queryParameter
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.unUrlSafe
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
@@ -73,10 +73,10 @@ fun parseShadowsocks(url: String): ShadowsocksBean {
 
     if (url.contains("@")) {
 
-        var link = Libcore.parseURL(url)
+        var link = parseURL(url)
 
         if (link.username.isBlank()) { // fix justmysocks's shit link
-            link = Libcore.parseURL(
+            link = parseURL(
                 ("ss://" + url.substringAfter("ss://").substringBefore("#").decodeBase64UrlSafe())
             )
             link.setRawFragment(url.substringAfter("#"))
@@ -127,7 +127,7 @@ fun parseShadowsocks(url: String): ShadowsocksBean {
 
         if (v2Url.contains("#")) v2Url = v2Url.substringBefore("#")
 
-        val link = Libcore.parseURL(
+        val link = parseURL(
             ("ss://" + v2Url.substringAfter("ss://").decodeBase64UrlSafe())
         )
 
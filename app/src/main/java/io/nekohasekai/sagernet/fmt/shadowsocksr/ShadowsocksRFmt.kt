@@ -25,8 +25,7 @@ import io.nekohasekai.sagernet.IPv6Mode
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
 import io.nekohasekai.sagernet.ktx.decodeBase64UrlSafe
-import io.nekohasekai.sagernet.ktx.queryParameter
-import libcore.Libcore
+import io.nekohasekai.sagernet.ktx.parseURL
 import java.util.*
 
 fun parseShadowsocksR(url: String): ShadowsocksRBean {
@@ -42,7 +41,7 @@ fun parseShadowsocksR(url: String): ShadowsocksRBean {
         password = params[5].substringBefore("/").decodeBase64UrlSafe()
     }
 
-    val httpUrl = Libcore.parseURL("https://localhost" + params[5].substringAfter("/"))
+    val httpUrl = parseURL("https://localhost" + params[5].substringAfter("/"))
 
     httpUrl.queryParameter("obfsparam")?.let {
         bean.obfsParam = it.decodeBase64UrlSafe()
@@ -20,7 +20,7 @@
 package io.nekohasekai.sagernet.fmt.socks
 
 import cn.hutool.core.codec.Base64
-import io.nekohasekai.sagernet.ktx.queryParameter
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.unUrlSafe
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
@@ -28,7 +28,7 @@ import libcore.Libcore
 fun parseSOCKS(link: String): SOCKSBean {
     if (!link.substringAfter("://").contains(":")) {
         // v2rayN shit format
-        val url = Libcore.parseURL(link)
+        val url = parseURL(link)
         return SOCKSBean().apply {
             serverAddress = url.host
             serverPort = url.port
@@ -39,7 +39,7 @@ fun parseSOCKS(link: String): SOCKSBean {
             }
         }
     } else {
-        val url = Libcore.parseURL(link)
+        val url = parseURL(link)
 
         return SOCKSBean().apply {
             protocol = when {
@@ -26,7 +26,7 @@ import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.fmt.LOCALHOST
 import io.nekohasekai.sagernet.ktx.isExpert
 import io.nekohasekai.sagernet.ktx.isIpAddress
-import io.nekohasekai.sagernet.ktx.queryParameter
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
 
@@ -34,7 +34,7 @@ import libcore.Libcore
 // https://github.com/trojan-gfw/igniter/issues/318
 fun parseTrojan(server: String): TrojanBean {
 
-    val link = Libcore.parseURL(server)
+    val link = parseURL(server)
 
     return TrojanBean().apply {
         serverAddress = link.host
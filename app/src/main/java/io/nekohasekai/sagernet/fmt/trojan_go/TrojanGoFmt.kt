@@ -30,12 +30,12 @@ import io.nekohasekai.sagernet.fmt.LOCALHOST
 import io.nekohasekai.sagernet.fmt.shadowsocks.fixInvalidParams
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
 import io.nekohasekai.sagernet.ktx.isIpAddress
-import io.nekohasekai.sagernet.ktx.queryParameter
+import io.nekohasekai.sagernet.ktx.parseURL
 import io.nekohasekai.sagernet.ktx.urlSafe
 import libcore.Libcore
 
 fun parseTrojanGo(server: String): TrojanGoBean {
-    val link = Libcore.parseURL(server)
+    val link = parseURL(server)
 
     return TrojanGoBean().apply {
         serverAddress = link.host
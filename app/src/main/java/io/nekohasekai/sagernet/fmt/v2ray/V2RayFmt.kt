@@ -30,7 +30,7 @@ fun parseV2Ray(link: String): StandardV2RayBean {
         return parseV2RayN(link)
     }
 
-    val url = Libcore.parseURL(link)
+    val url = parseURL(link)
     val bean = if (url.scheme == "vmess") {
         VMessBean()
     } else {
@@ -0,0 +1,154 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.group
+
+import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.app
+import io.nekohasekai.sagernet.ktx.readableMessage
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import libcore.Libcore
+import java.io.File
+import java.net.InetAddress
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * DNS over HTTPS lookups for [GroupUpdater.forceResolve].
+ *
+ * Every hostname is queried once per batch, over one keep-alive client. Answers are kept in a
+ * size-bounded LRU cache that is saved to disk, since a subscription resolves the same hosts on
+ * every update. The core only returns the addresses, not their TTL, so answers expire after
+ * [CACHE_TTL].
+ */
+object DohResolver {
+
+    private const val CACHE_SIZE = 2048
+    private const val CACHE_TTL = 30 * 60 * 1000L
+    private const val MAX_CONCURRENT = 8
+
+    private class Answer(val addresses: List<String>, val expireAt: Long)
+
+    private val cacheFile get() = File(app.cacheDir, "doh_cache")
+
+    private val cache by lazy {
+        object : LinkedHashMap<String, Answer>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Answer>?) =
+                size > CACHE_SIZE
+        }.apply {
+            try {
+                if (cacheFile.isFile) cacheFile.forEachLine { line ->
+                    val (key, expireAt, addresses) = line.split('\t', limit = 3)
+                    put(key, Answer(addresses.split(','), expireAt.toLong()))
+                }
+            } catch (e: Exception) {
+                Logs.w(e)
+            }
+        }
+    }
+
+    private fun save() {
+        val now = System.currentTimeMillis()
+        val content = synchronized(cache) {
+            cache.entries.filter { it.value.expireAt > now }.joinToString("\n") { (key, answer) ->
+                "$key\t${answer.expireAt}\t${answer.addresses.joinToString(",")}"
+            }
+        }
+        try {
+            cacheFile.writeText(content)
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+    }
+
+    /**
+     * Resolve [hosts] through [url], calling [onProgress] once for each unique host.
+     * Hosts that failed to resolve are missing from the result.
+     */
+    suspend fun resolveAll(
+        url: String, hosts: Collection<String>, ipv6Mode: Int, onProgress: suspend () -> Unit
+    ): Map<String, List<InetAddress>> {
+        val now = System.currentTimeMillis()
+        val results = ConcurrentHashMap<String, List<InetAddress>>()
+        val pending = ArrayList<String>()
+        synchronized(cache) {
+            for (host in hosts.toSet()) {
+                val answer = cache["$ipv6Mode/$host"]
+                if (answer != null && answer.expireAt > now) {
+                    results[host] = answer.addresses.map { InetAddress.getByName(it) }
+                } else {
+                    pending.add(host)
+                }
+            }
+        }
+        repeat(results.size) { onProgress() }
+        if (pending.isEmpty()) return results
+
+        Logs.d("Resolving ${pending.size} hosts with $url, ${results.size} cached")
+
+        val client = Libcore.newHttpClient().apply {
+            modernTLS()
+            keepAlive()
+            trySocks5(DataStore.socksPort)
+        }
+        val limit = Semaphore(MAX_CONCURRENT)
+        try {
+            coroutineScope {
+                for (host in pending) launch(Dispatchers.IO) {
+                    limit.withPermit {
+                        try {
+                            val message = Libcore.encodeDomainNameSystemQuery(1, host, ipv6Mode)
+                            val response = client.newRequest().apply {
+                                setMethod("POST")
+                                setURL(url)
+                                setContent(message)
+                                setHeader("Accept", "application/dns-message")
+                                setHeader("Content-Type", "application/dns-message")
+                            }.execute()
+
+                            val addresses = Libcore.decodeContentDomainNameSystemResponse(response.content)
+                                .trim()
+                                .split(" ")
+                                .filter { it.isNotBlank() }
+                            if (addresses.isEmpty()) error("empty response")
+
+                            results[host] = addresses.map { InetAddress.getByName(it) }
+                            synchronized(cache) {
+                                cache["$ipv6Mode/$host"] = Answer(addresses, now + CACHE_TTL)
+                            }
+                        } catch (e: Exception) {
+                            Logs.d("Lookup $host failed: ${e.readableMessage}", e)
+                        }
+                    }
+                    onProgress()
+                }
+            }
+        } finally {
+            client.close()
+        }
+
+        save()
+        return results
+    }
+
+}
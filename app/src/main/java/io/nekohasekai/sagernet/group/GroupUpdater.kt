@@ -19,13 +19,11 @@
 
 package io.nekohasekai.sagernet.group
 
+import cn.hutool.core.util.HexUtil
 import io.nekohasekai.sagernet.IPv6Mode
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SubscriptionType
-import io.nekohasekai.sagernet.database.DataStore
-import io.nekohasekai.sagernet.database.GroupManager
-import io.nekohasekai.sagernet.database.ProxyGroup
-import io.nekohasekai.sagernet.database.SubscriptionBean
+import io.nekohasekai.sagernet.database.*
 import io.nekohasekai.sagernet.fmt.AbstractBean
 import io.nekohasekai.sagernet.fmt.brook.BrookBean
 import io.nekohasekai.sagernet.fmt.http.HttpBean
@@ -38,9 +36,13 @@ import io.nekohasekai.sagernet.fmt.trojan_go.TrojanGoBean
 import io.nekohasekai.sagernet.fmt.v2ray.StandardV2RayBean
 import io.nekohasekai.sagernet.ktx.*
 import kotlinx.coroutines.*
-import libcore.Libcore
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.InputStream
 import java.net.Inet4Address
 import java.net.InetAddress
+import java.net.URI
+import java.security.MessageDigest
 import java.util.*
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -60,6 +62,180 @@ abstract class GroupUpdater {
         var progress by AtomicInteger()
     }
 
+    data class ProfileDiff(
+        val changed: Int,
+        val added: List<String>,
+        val updated: Map<String, String>,
+        val deleted: List<String>
+    )
+
+    /**
+     * Request headers that let the server answer 304 if nothing changed since the last update.
+     * Updates started by the user, and groups whose addresses are resolved on update, always
+     * fetch the full body.
+     */
+    protected fun validatorHeaders(subscription: SubscriptionBean, byUser: Boolean): Map<String, String> {
+        if (byUser || subscription.forceResolve) return emptyMap()
+        val headers = HashMap<String, String>()
+        if (subscription.lastETag.isNotBlank()) headers["If-None-Match"] = subscription.lastETag
+        if (subscription.lastModified.isNotBlank()) headers["If-Modified-Since"] = subscription.lastModified
+        return headers
+    }
+
+    // libcore does not expose the status code, a non-2xx response fails with the status line as the
+    // last part of the message, e.g. "304 Not Modified"
+    private val notModifiedStatus = Regex("(^|: )304 Not Modified$")
+
+    protected fun isNotModified(e: Exception, subscription: SubscriptionBean, byUser: Boolean) =
+        validatorHeaders(subscription, byUser).isNotEmpty() && e.message?.trim()?.let { notModifiedStatus.containsMatchIn(it) } == true
+
+    protected fun contentHash(input: InputStream): String = input.use {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteArray(8192)
+        while (true) {
+            val length = it.read(buffer)
+            if (length < 0) break
+            digest.update(buffer, 0, length)
+        }
+        HexUtil.encodeHexStr(digest.digest())
+    }
+
+    /**
+     * Whether a fetched body with [hash] can be skipped, because it is the one the group was built from.
+     * Never for groups with forced resolution, whose addresses may change with the same body.
+     */
+    protected fun isSameContent(
+        proxyGroup: ProxyGroup, subscription: SubscriptionBean, byUser: Boolean, hash: String
+    ) = !byUser && !subscription.forceResolve && hash == subscription.lastContentHash &&
+            SagerDatabase.proxyDao.countByGroup(proxyGroup.id) > 0
+
+    /**
+     * Finish an update whose content did not change, without parsing or touching the profiles.
+     */
+    protected suspend fun skipUpdate(
+        proxyGroup: ProxyGroup,
+        subscription: SubscriptionBean,
+        userInterface: GroupManager.Interface?,
+        byUser: Boolean
+    ) {
+        Logs.d("Subscription ${proxyGroup.displayName()} not modified")
+        subscription.lastUpdated = (System.currentTimeMillis() / 1000).toInt()
+        SagerDatabase.groupDao.updateGroup(proxyGroup)
+        finishUpdate(proxyGroup)
+
+        userInterface?.onUpdateSuccess(
+            proxyGroup, 0, emptyList(), emptyMap(), emptyList(), emptyList(), byUser
+        )
+    }
+
+    /**
+     * Drop profiles with the same content, keeping the first one.
+     * Each duplicate, and the profile it duplicates, is reported to [duplicate] once.
+     */
+    protected fun deduplicate(
+        profiles: List<AbstractBean>, duplicate: MutableList<String>
+    ): MutableList<AbstractBean> {
+        val unique = ArrayList<AbstractBean>()
+        val indexes = HashMap<AbstractBean, Int>()
+        val reported = HashSet<Int>()
+        for (profile in profiles) {
+            val index = indexes.putIfAbsent(profile, unique.size)
+            if (index == null) {
+                unique.add(profile)
+                continue
+            }
+            if (reported.add(index)) {
+                duplicate.add(unique[index].displayName() + " ($index)")
+            }
+            duplicate.add(profile.displayName() + " ($index)")
+        }
+        return unique
+    }
+
+    /**
+     * Replace the profiles of [proxyGroup] with [profiles] in a single transaction.
+     *
+     * Existing profiles are matched by [keyOf], then by content, so that profiles renamed by
+     * the provider keep their id. Inserts, updates and deletes are each issued as one batch.
+     */
+    protected fun applyProfiles(
+        proxyGroup: ProxyGroup, profiles: List<AbstractBean>, keyOf: (AbstractBean) -> String
+    ): ProfileDiff = SagerDatabase.runInTransaction {
+        val profileMap = profiles.associateBy(keyOf)
+        val exists = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
+        val existsByKey = HashMap<String, ProxyEntity>()
+        val existsByContent = HashMap<AbstractBean, MutableList<ProxyEntity>>()
+        for (entity in exists) {
+            val bean = entity.requireBean()
+            existsByKey[keyOf(bean)] = entity
+            existsByContent.getOrPut(bean) { ArrayList() }.add(entity)
+        }
+
+        val matched = HashSet<Long>()
+        val toInsert = ArrayList<ProxyEntity>()
+        val toUpdate = ArrayList<ProxyEntity>()
+        val added = mutableListOf<String>()
+        val updated = mutableMapOf<String, String>()
+
+        var userOrder = 1L
+        var changed = 0
+        for ((key, bean) in profileMap.entries) {
+            val name = bean.displayName()
+            val entity = existsByKey[key]?.takeIf { it.id !in matched }
+                ?: existsByContent[bean]?.find { it.id !in matched }
+            if (entity == null) {
+                changed++
+                toInsert.add(ProxyEntity(groupId = proxyGroup.id, userOrder = userOrder).apply {
+                    putBean(bean)
+                })
+                added.add(name)
+                Logs.d("Inserted profile: [$key] $name")
+            } else {
+                matched.add(entity.id)
+                val existsName = entity.displayName()
+                val existsBean = entity.requireBean()
+                existsBean.applyFeatureSettings(bean)
+                bean.invalidateFingerprint()
+                when {
+                    existsBean != bean || existsName != name -> {
+                        changed++
+                        entity.putBean(bean)
+                        entity.userOrder = userOrder
+                        toUpdate.add(entity)
+                        updated[existsName] = name
+
+                        Logs.d("Updated profile: [$key] $name")
+                    }
+                    entity.userOrder != userOrder -> {
+                        entity.putBean(bean)
+                        entity.userOrder = userOrder
+                        toUpdate.add(entity)
+
+                        Logs.d("Reordered profile: [$key] $name")
+                    }
+                    else -> {
+                        Logs.d("Ignored profile: [$key] $name")
+                    }
+                }
+            }
+            userOrder++
+        }
+
+        val toDelete = exists.filter { it.id !in matched }
+        changed += toDelete.size
+
+        SagerDatabase.proxyDao.deleteProxy(toDelete).also {
+            Logs.d("Deleted profiles: $it")
+        }
+        SagerDatabase.proxyDao.updateProxy(toUpdate).also {
+            Logs.d("Updated profiles: $it")
+        }
+        SagerDatabase.proxyDao.insert(toInsert)
+        Logs.d("Inserted profiles: ${toInsert.size}")
+
+        ProfileDiff(changed, added, updated, toDelete.map { it.displayName() })
+    }
+
     protected suspend fun forceResolve(
         profiles: List<AbstractBean>, groupId: Long?
     ) {
@@ -90,66 +266,37 @@ abstract class GroupUpdater {
             "https://doh.pub/dns-query"
         }
 
-        val client = Libcore.newHttpClient().apply {
-            modernTLS()
-            keepAlive()
-            trySocks5(DataStore.socksPort)
-        }
-
         Logs.d("Using doh url $dohHttpUrl")
 
+        val targets = profiles.filter { profile ->
+            when (profile) {
+                // SNI rewrite unsupported
+                is BrookBean -> if (profile.protocol == "wss") return@filter false
+                is NaiveBean, is RelayBatonBean -> return@filter false
+            }
+            !profile.serverAddress.isIpAddress()
+        }
+        val hosts = targets.mapTo(LinkedHashSet()) { it.serverAddress }
+
         val ipv6Mode = DataStore.ipv6Mode
-        val lookupPool = newFixedThreadPoolContext(5, "DNS Lookup")
-        val lookupJobs = mutableListOf<Job>()
-        val progress = Progress(profiles.size)
+        val progress = Progress(hosts.size)
         if (groupId != null) {
             GroupUpdater.progress[groupId] = progress
             GroupManager.postReload(groupId)
         }
         val ipv6First = ipv6Mode >= IPv6Mode.PREFER
 
-        for (profile in profiles) {
-            when (profile) {
-                // SNI rewrite unsupported
-                is BrookBean -> if (profile.protocol == "wss") continue
-                is NaiveBean, is RelayBatonBean -> continue
+        val results = DohResolver.resolveAll(dohHttpUrl, hosts, ipv6Mode) {
+            if (groupId != null) {
+                progress.progress++
+                GroupManager.postReload(groupId)
             }
-
-            if (profile.serverAddress.isIpAddress()) continue
-
-            lookupJobs.add(GlobalScope.launch(lookupPool) {
-                try {
-                    val message = Libcore.encodeDomainNameSystemQuery(
-                        1, profile.serverAddress, ipv6Mode
-                    )
-                    val response = client.newRequest().apply {
-                        setMethod("POST")
-                        setURL(dohHttpUrl)
-                        setContent(message)
-                        setHeader("Accept", "application/dns-message")
-                        setHeader("Content-Type", "application/dns-message")
-                    }.execute()
-
-                    val results = Libcore.decodeContentDomainNameSystemResponse(response.content)
-                        .trimStart()
-                        .split(" ")
-                        .map { InetAddress.getByName(it) }
-
-                    if (results.isEmpty()) error("empty response")
-                    rewriteAddress(profile, results, ipv6First)
-                } catch (e: Exception) {
-                    Logs.d("Lookup ${profile.serverAddress} failed: ${e.readableMessage}",e)
-                }
-                if (groupId != null) {
-                    progress.progress++
-                    GroupManager.postReload(groupId)
-                }
-            })
         }
-
-        client.close()
-        lookupJobs.joinAll()
-        lookupPool.close()
+        for (profile in targets) {
+            val addresses = results[profile.serverAddress] ?: continue
+            rewriteAddress(profile, addresses, ipv6First)
+            profile.invalidateFingerprint()
+        }
     }
 
     protected fun rewriteAddress(
@@ -187,6 +334,9 @@ abstract class GroupUpdater {
 
     companion object {
 
+        private const val MAX_PARALLEL_UPDATES = 4
+        private const val MAX_PARALLEL_UPDATES_PER_HOST = 2
+
         val updating = Collections.synchronizedSet<Long>(mutableSetOf())
         val progress = Collections.synchronizedMap<Long, Progress>(mutableMapOf())
 
@@ -196,6 +346,47 @@ abstract class GroupUpdater {
             }
         }
 
+        /**
+         * Update [groups] concurrently, at most [MAX_PARALLEL_UPDATES] at a time and
+         * [MAX_PARALLEL_UPDATES_PER_HOST] against the same host.
+         * [onProgress] is called each time a group finishes, with the number finished so far.
+         *
+         * @return the number of groups updated successfully
+         */
+        suspend fun executeUpdates(
+            groups: List<ProxyGroup>, byUser: Boolean, onProgress: suspend (Int) -> Unit
+        ): Int {
+            val limit = Semaphore(MAX_PARALLEL_UPDATES)
+            val hostLimits = HashMap<String, Semaphore>()
+            val finished = AtomicInteger()
+            val succeeded = AtomicInteger()
+            coroutineScope {
+                for (group in groups) {
+                    val host = try {
+                        URI(group.subscription!!.link).host
+                    } catch (e: Exception) {
+                        null
+                    } ?: "#${group.id}"
+                    val hostLimit = hostLimits.getOrPut(host) { Semaphore(MAX_PARALLEL_UPDATES_PER_HOST) }
+                    launch(Dispatchers.IO) {
+                        try {
+                            // take the host permit first, so that waiting on a busy host does not hold a global one
+                            hostLimit.withPermit {
+                                limit.withPermit {
+                                    if (executeUpdate(group, byUser)) succeeded.incrementAndGet()
+                                }
+                            }
+                        } finally {
+                            withContext(NonCancellable) {
+                                onProgress(finished.incrementAndGet())
+                            }
+                        }
+                    }
+                }
+            }
+            return succeeded.get()
+        }
+
         suspend fun executeUpdate(proxyGroup: ProxyGroup, byUser: Boolean): Boolean {
             return coroutineScope {
                 if (!updating.add(proxyGroup.id)) cancel()
@@ -150,105 +150,15 @@ object OpenOnlineConfigUpdater : GroupUpdater() {
 
         if (subscription.forceResolve) forceResolve(profiles, proxyGroup.id)
 
-        val exists = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
         val duplicate = ArrayList<String>()
         if (subscription.deduplication) {
             Logs.d("Before deduplication: ${profiles.size}")
-            val uniqueProfiles = LinkedHashSet<AbstractBean>()
-            val uniqueNames = HashMap<AbstractBean, String>()
-            for (proxy in profiles) {
-                if (!uniqueProfiles.add(proxy)) {
-                    val index = uniqueProfiles.indexOf(proxy)
-                    if (uniqueNames.containsKey(proxy)) {
-                        val name = uniqueNames[proxy]!!.replace(" ($index)", "")
-                        if (name.isNotBlank()) {
-                            duplicate.add("$name ($index)")
-                            uniqueNames[proxy] = ""
-                        }
-                    }
-                    duplicate.add(proxy.displayName() + " ($index)")
-                } else {
-                    uniqueNames[proxy] = proxy.displayName()
-                }
-            }
-            uniqueProfiles.retainAll(uniqueNames.keys)
-            profiles = uniqueProfiles.toMutableList()
+            profiles = deduplicate(profiles, duplicate)
         }
 
         Logs.d("New profiles: ${profiles.size}")
 
-        val profileMap = profiles.associateBy { it.profileId }
-        val toDelete = ArrayList<ProxyEntity>()
-        val toReplace = exists.mapNotNull { entity ->
-            val profileId = entity.requireBean().profileId
-            if (profileMap.contains(profileId)) profileId to entity else let {
-                toDelete.add(entity)
-                null
-            }
-        }.toMap()
-
-        Logs.d("toDelete profiles: ${toDelete.size}")
-        Logs.d("toReplace profiles: ${toReplace.size}")
-
-        val toUpdate = ArrayList<ProxyEntity>()
-        val added = mutableListOf<String>()
-        val updated = mutableMapOf<String, String>()
-        val deleted = toDelete.map { it.displayName() }
-
-        var userOrder = 1L
-        var changed = toDelete.size
-        for ((profileId, bean) in profileMap.entries) {
-            val name = bean.displayName()
-            if (toReplace.contains(profileId)) {
-                val entity = toReplace[profileId]!!
-                val existsBean = entity.requireBean()
-                existsBean.applyFeatureSettings(bean)
-                when {
-                    existsBean != bean -> {
-                        changed++
-                        entity.putBean(bean)
-                        toUpdate.add(entity)
-                        updated[entity.displayName()] = name
-
-                        Logs.d("Updated profile: [$profileId] $name")
-                    }
-                    entity.userOrder != userOrder -> {
-                        entity.putBean(bean)
-                        toUpdate.add(entity)
-                        entity.userOrder = userOrder
-
-                        Logs.d("Reordered profile: [$profileId] $name")
-                    }
-                    else -> {
-                        Logs.d("Ignored profile: [$profileId] $name")
-                    }
-                }
-            } else {
-                changed++
-                SagerDatabase.proxyDao.addProxy(ProxyEntity(
-                    groupId = proxyGroup.id, userOrder = userOrder
-                ).apply {
-                    putBean(bean)
-                })
-                added.add(name)
-                Logs.d("Inserted profile: $name")
-            }
-            userOrder++
-        }
-
-        SagerDatabase.proxyDao.updateProxy(toUpdate).also {
-            Logs.d("Updated profiles: $it")
-        }
-
-        SagerDatabase.proxyDao.deleteProxy(toDelete).also {
-            Logs.d("Deleted profiles: $it")
-        }
-
-        val existCount = SagerDatabase.proxyDao.countByGroup(proxyGroup.id).toInt()
-
-        if (existCount != profileMap.size) {
-            Logs.e("Exist profiles: $existCount, new profiles: ${profileMap.size}")
-        }
+        val (changed, added, updated, deleted) = applyProfiles(proxyGroup, profiles) { it.profileId }
 
         subscription.lastUpdated = (System.currentTimeMillis() / 1000).toInt()
         SagerDatabase.groupDao.updateGroup(proxyGroup)
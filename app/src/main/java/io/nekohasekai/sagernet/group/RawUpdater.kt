@@ -46,11 +46,21 @@ import org.ini4j.Ini
 import org.yaml.snakeyaml.TypeDescription
 import org.yaml.snakeyaml.Yaml
 import org.yaml.snakeyaml.error.YAMLException
+import org.yaml.snakeyaml.events.*
+import org.yaml.snakeyaml.nodes.NodeId
+import org.yaml.snakeyaml.nodes.Tag
+import org.yaml.snakeyaml.resolver.Resolver
+import java.io.File
+import java.io.InputStream
+import java.io.Reader
 import java.io.StringReader
 
 @Suppress("EXPERIMENTAL_API_USAGE")
 object RawUpdater : GroupUpdater() {
 
+    private const val SNIFF_SIZE = 64 * 1024
+    private const val BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/-_= \r\n\t"
+
     override suspend fun doUpdate(
         proxyGroup: ProxyGroup,
         subscription: SubscriptionBean,
@@ -59,31 +69,65 @@ object RawUpdater : GroupUpdater() {
     ) {
 
         val link = subscription.link
-        var proxies: List<AbstractBean>
+        // the content is streamed, but the beans are all kept: renaming, deduplication and
+        // applyProfiles need the whole subscription to decide what to delete
+        val parsed = ArrayList<AbstractBean>()
         if (link.startsWith("content://")) {
-            val contentText = app.contentResolver.openInputStream(Uri.parse(link))
-                ?.bufferedReader()
-                ?.readText()
-
-            proxies = contentText?.let { parseRaw(contentText) }
-                ?: error(app.getString(R.string.no_proxies_found_in_subscription))
+            val uri = Uri.parse(link)
+            val found = onDefaultDispatcher {
+                parseRaw({
+                    app.contentResolver.openInputStream(uri)
+                        ?: error(app.getString(R.string.no_proxies_found_in_subscription))
+                }) { parsed.add(it) }
+            }
+            if (!found) error(app.getString(R.string.no_proxies_found_in_subscription))
         } else {
 
-            val response = Libcore.newHttpClient().apply {
-                trySocks5(DataStore.socksPort)
-            }.newRequest().apply {
-                setURL(subscription.link)
-                if (subscription.customUserAgent.isNotBlank()) {
-                    setUserAgent(subscription.customUserAgent)
-                } else {
-                    randomUserAgent()
+            val response = try {
+                Libcore.newHttpClient().apply {
+                    trySocks5(DataStore.socksPort)
+                }.newRequest().apply {
+                    setURL(subscription.link)
+                    if (subscription.customUserAgent.isNotBlank()) {
+                        setUserAgent(subscription.customUserAgent)
+                    } else {
+                        randomUserAgent()
+                    }
+                    for ((name, value) in validatorHeaders(subscription, byUser)) {
+                        setHeader(name, value)
+                    }
+                }.execute()
+            } catch (e: Exception) {
+                if (isNotModified(e, subscription, byUser)) {
+                    skipUpdate(proxyGroup, subscription, userInterface, byUser)
+                    return
                 }
-            }.execute()
+                throw e
+            }
 
-            proxies = parseRaw(response.contentString)
-                ?: error(app.getString(R.string.no_proxies_found))
+            // write to disk instead of loading the whole response as a string
+            val cacheFile = File.createTempFile("subscription-", ".tmp", app.cacheDir)
+            try {
+                response.writeTo(cacheFile.canonicalPath)
+
+                val hash = contentHash(cacheFile.inputStream())
+                if (isSameContent(proxyGroup, subscription, byUser, hash)) {
+                    skipUpdate(proxyGroup, subscription, userInterface, byUser)
+                    return
+                }
+                subscription.lastETag = response.getHeader("ETag") ?: ""
+                subscription.lastModified = response.getHeader("Last-Modified") ?: ""
+                subscription.lastContentHash = hash
+
+                // parse on the bounded CPU pool, the fetch above may run on IO threads
+                val found = onDefaultDispatcher { parseRaw(cacheFile::inputStream) { parsed.add(it) } }
+                if (!found) error(app.getString(R.string.no_proxies_found))
+            } finally {
+                cacheFile.delete()
+            }
 
         }
+        var proxies: List<AbstractBean> = parsed
 
         val proxiesMap = LinkedHashMap<String, AbstractBean>()
         for (proxy in proxies) {
@@ -102,109 +146,15 @@ object RawUpdater : GroupUpdater() {
 
         if (subscription.forceResolve) forceResolve(proxies, proxyGroup.id)
 
-        val exists = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
         val duplicate = ArrayList<String>()
         if (subscription.deduplication) {
             Logs.d("Before deduplication: ${proxies.size}")
-            val uniqueProxies = LinkedHashSet<AbstractBean>()
-            val uniqueNames = HashMap<AbstractBean, String>()
-            for (proxy in proxies) {
-                if (!uniqueProxies.add(proxy)) {
-                    val index = uniqueProxies.indexOf(proxy)
-                    if (uniqueNames.containsKey(proxy)) {
-                        val name = uniqueNames[proxy]!!.replace(" ($index)", "")
-                        if (name.isNotBlank()) {
-                            duplicate.add("$name ($index)")
-                            uniqueNames[proxy] = ""
-                        }
-                    }
-                    duplicate.add(proxy.displayName() + " ($index)")
-                } else {
-                    uniqueNames[proxy] = proxy.displayName()
-                }
-            }
-            uniqueProxies.retainAll(uniqueNames.keys)
-            proxies = uniqueProxies.toList()
+            proxies = deduplicate(proxies, duplicate)
         }
 
         Logs.d("New profiles: ${proxies.size}")
 
-        val nameMap = proxies.associateBy { bean ->
-            bean.displayName()
-        }
-
-        Logs.d("Unique profiles: ${nameMap.size}")
-
-        val toDelete = ArrayList<ProxyEntity>()
-        val toReplace = exists.mapNotNull { entity ->
-            val name = entity.displayName()
-            if (nameMap.contains(name)) name to entity else let {
-                toDelete.add(entity)
-                null
-            }
-        }.toMap()
-
-        Logs.d("toDelete profiles: ${toDelete.size}")
-        Logs.d("toReplace profiles: ${toReplace.size}")
-
-        val toUpdate = ArrayList<ProxyEntity>()
-        val added = mutableListOf<String>()
-        val updated = mutableMapOf<String, String>()
-        val deleted = toDelete.map { it.displayName() }
-
-        var userOrder = 1L
-        var changed = toDelete.size
-        for ((name, bean) in nameMap.entries) {
-            if (toReplace.contains(name)) {
-                val entity = toReplace[name]!!
-                val existsBean = entity.requireBean()
-                existsBean.applyFeatureSettings(bean)
-                when {
-                    existsBean != bean -> {
-                        changed++
-                        entity.putBean(bean)
-                        toUpdate.add(entity)
-                        updated[entity.displayName()] = name
-
-                        Logs.d("Updated profile: $name")
-                    }
-                    entity.userOrder != userOrder -> {
-                        entity.putBean(bean)
-                        toUpdate.add(entity)
-                        entity.userOrder = userOrder
-
-                        Logs.d("Reordered profile: $name")
-                    }
-                    else -> {
-                        Logs.d("Ignored profile: $name")
-                    }
-                }
-            } else {
-                changed++
-                SagerDatabase.proxyDao.addProxy(ProxyEntity(
-                    groupId = proxyGroup.id, userOrder = userOrder
-                ).apply {
-                    putBean(bean)
-                })
-                added.add(name)
-                Logs.d("Inserted profile: $name")
-            }
-            userOrder++
-        }
-
-        SagerDatabase.proxyDao.updateProxy(toUpdate).also {
-            Logs.d("Updated profiles: $it")
-        }
-
-        SagerDatabase.proxyDao.deleteProxy(toDelete).also {
-            Logs.d("Deleted profiles: $it")
-        }
-
-        val existCount = SagerDatabase.proxyDao.countByGroup(proxyGroup.id).toInt()
-
-        if (existCount != proxies.size) {
-            Logs.e("Exist profiles: $existCount, new profiles: ${proxies.size}")
-        }
+        val (changed, added, updated, deleted) = applyProfiles(proxyGroup, proxies) { it.displayName() }
 
         subscription.lastUpdated = (System.currentTimeMillis() / 1000).toInt()
         SagerDatabase.groupDao.updateGroup(proxyGroup)
@@ -230,158 +180,7 @@ object RawUpdater : GroupUpdater() {
                 }.loadAs(text, Map::class.java)["proxies"] as? (List<Map<String, Any?>>) ?: error(
                     app.getString(R.string.no_proxies_found_in_file)
                 ))) {
-                    // Note: YAML numbers parsed as "Long"
-
-                    when (proxy["type"] as String) {
-                        "socks5" -> {
-                            proxies.add(SOCKSBean().apply {
-                                serverAddress = proxy["server"] as String
-                                serverPort = proxy["port"].toString().toInt()
-                                username = proxy["username"]?.toString()
-                                password = proxy["password"]?.toString()
-                                tls = proxy["tls"]?.toString() == "true"
-                                sni = proxy["sni"]?.toString()
-                                name = proxy["name"]?.toString()
-                            })
-                        }
-                        "http" -> {
-                            proxies.add(HttpBean().apply {
-                                serverAddress = proxy["server"] as String
-                                serverPort = proxy["port"].toString().toInt()
-                                username = proxy["username"]?.toString()
-                                password = proxy["password"]?.toString()
-                                tls = proxy["tls"]?.toString() == "true"
-                                sni = proxy["sni"]?.toString()
-                                name = proxy["name"]?.toString()
-                            })
-                        }
-                        "ss" -> {
-                            var pluginStr = ""
-                            if (proxy.contains("plugin")) {
-                                val opts = proxy["plugin-opts"] as Map<String, Any?>
-                                val pluginOpts = PluginOptions()
-                                fun put(clash: String, origin: String = clash) {
-                                    opts[clash]?.let {
-                                        pluginOpts[origin] = it.toString()
-                                    }
-                                }
-                                when (proxy["plugin"]) {
-                                    "obfs" -> {
-                                        pluginOpts.id = "obfs-local"
-                                        put("mode", "obfs")
-                                        put("host", "obfs-host")
-                                    }
-                                    "v2ray-plugin" -> {
-                                        pluginOpts.id = "v2ray-plugin"
-                                        put("mode")
-                                        if (opts["tls"]?.toString() == "true") {
-                                            pluginOpts["tls"] = null
-                                        }
-                                        put("host")
-                                        put("path")
-                                        if (opts["mux"]?.toString() == "true") {
-                                            pluginOpts["mux"] = "8"
-                                        }
-                                    }
-                                }
-                                pluginStr = pluginOpts.toString(false)
-                            }
-                            proxies.add(ShadowsocksBean().apply {
-                                serverAddress = proxy["server"] as String
-                                serverPort = proxy["port"].toString().toInt()
-                                password = proxy["password"]?.toString()
-                                method = clashCipher(proxy["cipher"] as String)
-                                plugin = pluginStr
-                                name = proxy["name"]?.toString()
-
-                                fixInvalidParams()
-                            })
-                        }
-                        "vmess" -> {
-                            val bean = VMessBean()
-                            for (opt in proxy) {
-                                when (opt.key) {
-                                    "name" -> bean.name = opt.value?.toString()
-                                    "server" -> bean.serverAddress = opt.value as String
-                                    "port" -> bean.serverPort = opt.value.toString().toInt()
-                                    "uuid" -> bean.uuid = opt.value as String
-//                                    "alterId" -> bean.alterId = opt.value.toString().toInt()
-                                    "cipher" -> bean.encryption = opt.value as String
-                                    "network" -> bean.type = opt.value as String
-                                    "tls" -> bean.security = if (opt.value?.toString() == "true") "tls" else ""
-                                    "skip-cert-verify" -> bean.allowInsecure = opt.value?.toString() == "true"
-                                    "ws-opts" -> for (wsOpt in (opt.value as Map<String, Any>)) {
-                                        when (wsOpt.key.lowercase()) {
-                                            "headers" -> for (wsHeader in (opt.value as Map<String, Any>)) {
-                                                when (wsHeader.key.lowercase()) {
-                                                    "host" -> bean.host = wsHeader.value as String
-                                                }
-                                            }
-                                            "path" -> {
-                                                bean.path = wsOpt.value.toString()
-                                            }
-                                            "max-early-data" -> {
-                                                bean.wsMaxEarlyData = wsOpt.value.toString().toInt()
-                                            }
-                                            "early-data-header-name" -> {
-                                                bean.earlyDataHeaderName = wsOpt.value.toString()
-                                            }
-                                        }
-                                    }
-                                    "servername" -> bean.host = opt.value?.toString()
-                                    "h2-opts" -> for (h2Opt in (opt.value as Map<String, Any>)) {
-                                        when (h2Opt.key.lowercase()) {
-                                            "host" -> bean.host = (h2Opt.value as List<String>).first()
-                                            "path" -> bean.path = h2Opt.value.toString()
-                                        }
-                                    }
-                                    "http-opts" -> for (httpOpt in (opt.value as Map<String, Any>)) {
-                                        when (httpOpt.key.lowercase()) {
-                                            "path" -> bean.path = (httpOpt.value as List<String>).first()
-                                        }
-                                    }
-                                    "grpc-opts" -> for (grpcOpt in (opt.value as Map<String, Any>)) {
-                                        when (grpcOpt.key.lowercase()) {
-                                            "grpc-service-name" -> bean.grpcServiceName = grpcOpt.value.toString()
-                                        }
-                                    }
-                                }
-                            }
-                            proxies.add(bean)
-                        }
-                        "trojan" -> {
-                            val bean = TrojanBean()
-                            for (opt in proxy) {
-                                when (opt.key) {
-                                    "name" -> bean.name = opt.value?.toString()
-                                    "server" -> bean.serverAddress = opt.value as String
-                                    "port" -> bean.serverPort = opt.value.toString().toInt()
-                                    "password" -> bean.password = opt.value?.toString()
-                                    "sni" -> bean.sni = opt.value?.toString()
-                                    "skip-cert-verify" -> bean.allowInsecure = opt.value?.toString() == "true"
-                                }
-                            }
-                            proxies.add(bean)
-                        }
-
-                        "ssr" -> {
-                            val entity = ShadowsocksRBean()
-                            for (opt in proxy) {
-                                when (opt.key) {
-                                    "name" -> entity.name = opt.value?.toString()
-                                    "server" -> entity.serverAddress = opt.value as String
-                                    "port" -> entity.serverPort = opt.value.toString().toInt()
-                                    "cipher" -> entity.method = clashCipher(opt.value as String)
-                                    "password" -> entity.password = opt.value?.toString()
-                                    "obfs" -> entity.obfs = opt.value as String
-                                    "protocol" -> entity.protocol = opt.value as String
-                                    "obfs-param" -> entity.obfsParam = opt.value?.toString()
-                                    "protocol-param" -> entity.protocolParam = opt.value?.toString()
-                                }
-                            }
-                            proxies.add(entity)
-                        }
-                    }
+                    parseClashProxy(proxy)?.also { proxies.add(it) }
                 }
                 proxies.forEach { it.initializeDefaultValues() }
                 return proxies
@@ -404,23 +203,322 @@ object RawUpdater : GroupUpdater() {
         } catch (ignored: JSONException) {
         }
 
+        val errors = LinkParseErrors()
         try {
-            return parseProxies(text.decodeBase64UrlSafe()).takeIf { it.isNotEmpty() }
+            return parseProxies(text.decodeBase64UrlSafe(), errors).takeIf { it.isNotEmpty() }
                 ?: error("Not found")
         } catch (e: Exception) {
             Logs.w(e)
+        } finally {
+            if (errors.failed.isNotEmpty()) Logs.w("Failed to parse ${errors.failed.values.sum()} links ($errors)")
         }
 
+        errors.failed.clear()
+        errors.unrecognized = 0
         try {
-            return parseProxies(text).takeIf { it.isNotEmpty() } ?: error("Not found")
+            return parseProxies(text, errors).takeIf { it.isNotEmpty() } ?: error("Not found")
         } catch (e: SubscriptionFoundException) {
             throw e
         } catch (ignored: Exception) {
+        } finally {
+            if (errors.failed.isNotEmpty()) Logs.w("Failed to parse ${errors.failed.values.sum()} links ($errors)")
         }
 
         return null
     }
 
+    /**
+     * Streaming variant of [parseRaw] for large subscriptions, [open] is called once for
+     * sniffing the format and again for parsing.
+     *
+     * Clash configs and share links, plain or base64 encoded, are parsed without loading the
+     * whole content, other formats fall back to [parseRaw]. Returns false if nothing was found.
+     */
+    fun parseRaw(open: () -> InputStream, consumer: (AbstractBean) -> Unit): Boolean {
+        val head = open().use { input ->
+            val buffer = ByteArray(SNIFF_SIZE)
+            var length = 0
+            while (length < buffer.size) {
+                val read = input.read(buffer, length, buffer.size - length)
+                if (read == -1) break
+                length += read
+            }
+            String(buffer, 0, length)
+        }
+
+        var count = 0
+        val emit = { bean: AbstractBean ->
+            count++
+            consumer(bean)
+        }
+        val errors = LinkParseErrors()
+        val start = head.trimStart()
+        when {
+            head.contains("proxies:") -> try {
+                open().bufferedReader().use { parseClashProxies(it, emit) }
+            } catch (e: YAMLException) {
+                Logs.w(e)
+            }
+            head.contains("[Interface]") || start.startsWith("{") || start.startsWith("[") -> {
+            }
+            head.all { it in BASE64_CHARS } -> try {
+                open().use { parseProxies(Base64DecodingInputStream(it).bufferedReader(), errors, emit) }
+            } catch (e: SubscriptionFoundException) {
+                throw e
+            } catch (e: Exception) {
+                Logs.w(e)
+            }
+            else -> open().bufferedReader().use { parseProxies(it, errors, emit) }
+        }
+        if (errors.failed.isNotEmpty()) Logs.w("Failed to parse ${errors.failed.values.sum()} links ($errors)")
+        if (count == 0) {
+            parseRaw(open().bufferedReader().use { it.readText() })?.forEach(emit)
+        }
+        return count > 0
+    }
+
+    /**
+     * Walk the YAML events up to the top level `proxies` sequence,
+     * building and converting only one proxy item at a time.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun parseClashProxies(reader: Reader, consumer: (AbstractBean) -> Unit) {
+        val events = Yaml().parse(reader).iterator()
+        val anchors = HashMap<String, Any?>()
+        val resolver = Resolver()
+
+        fun readNode(event: Event): Any? {
+            val node: Any? = when (event) {
+                is AliasEvent -> return anchors[event.anchor]
+                is ScalarEvent -> if (!event.isPlain || event.tag != null) event.value else {
+                    // keep the types the default constructor produces
+                    when (resolver.resolve(NodeId.scalar, event.value, true)) {
+                        Tag.NULL -> null
+                        Tag.BOOL -> event.value.lowercase() in arrayOf("true", "yes", "on")
+                        Tag.INT -> event.value.toLongOrNull() ?: event.value
+                        else -> event.value
+                    }
+                }
+                is SequenceStartEvent -> ArrayList<Any?>().also { list ->
+                    event.anchor?.let { anchors[it] = list }
+                    while (true) {
+                        val next = events.next()
+                        if (next is SequenceEndEvent) break
+                        list.add(readNode(next))
+                    }
+                }
+                is MappingStartEvent -> LinkedHashMap<String, Any?>().also { map ->
+                    event.anchor?.let { anchors[it] = map }
+                    while (true) {
+                        val next = events.next()
+                        if (next is MappingEndEvent) break
+                        val key = readNode(next).toString()
+                        val value = readNode(events.next())
+                        if (key == "<<" && value is Map<*, *>) {
+                            for ((mergeKey, mergeValue) in value) {
+                                map.putIfAbsent(mergeKey.toString(), mergeValue)
+                            }
+                        } else {
+                            map[key] = value
+                        }
+                    }
+                }
+                else -> throw YAMLException("Unexpected event $event")
+            }
+            if (event is NodeEvent) event.anchor?.let { anchors[it] = node }
+            return node
+        }
+
+        while (events.hasNext()) {
+            if (events.next() is MappingStartEvent) break
+        }
+        while (events.hasNext()) {
+            val keyEvent = events.next()
+            if (keyEvent is MappingEndEvent) break
+            val key = readNode(keyEvent)
+            val valueEvent = events.next()
+            if (key != "proxies" || valueEvent !is SequenceStartEvent) {
+                readNode(valueEvent)
+                continue
+            }
+            while (true) {
+                val item = events.next()
+                if (item is SequenceEndEvent) break
+                val proxy = readNode(item) as? Map<String, Any?> ?: continue
+                val bean = try {
+                    parseClashProxy(proxy)
+                } catch (e: Exception) {
+                    Logs.w(e)
+                    null
+                } ?: continue
+                bean.initializeDefaultValues()
+                consumer(bean)
+            }
+            // skip the rules
+            return
+        }
+    }
+
+    /**
+     * Convert a proxy item of a Clash config, returns null for unsupported types.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun parseClashProxy(proxy: Map<String, Any?>): AbstractBean? {
+        // Note: YAML numbers parsed as "Long"
+
+        return when (proxy["type"] as String) {
+            "socks5" -> {
+                SOCKSBean().apply {
+                    serverAddress = proxy["server"] as String
+                    serverPort = proxy["port"].toString().toInt()
+                    username = proxy["username"]?.toString()
+                    password = proxy["password"]?.toString()
+                    tls = proxy["tls"]?.toString() == "true"
+                    sni = proxy["sni"]?.toString()
+                    name = proxy["name"]?.toString()
+                }
+            }
+            "http" -> {
+                HttpBean().apply {
+                    serverAddress = proxy["server"] as String
+                    serverPort = proxy["port"].toString().toInt()
+                    username = proxy["username"]?.toString()
+                    password = proxy["password"]?.toString()
+                    tls = proxy["tls"]?.toString() == "true"
+                    sni = proxy["sni"]?.toString()
+                    name = proxy["name"]?.toString()
+                }
+            }
+            "ss" -> {
+                var pluginStr = ""
+                if (proxy.contains("plugin")) {
+                    val opts = proxy["plugin-opts"] as Map<String, Any?>
+                    val pluginOpts = PluginOptions()
+                    fun put(clash: String, origin: String = clash) {
+                        opts[clash]?.let {
+                            pluginOpts[origin] = it.toString()
+                        }
+                    }
+                    when (proxy["plugin"]) {
+                        "obfs" -> {
+                            pluginOpts.id = "obfs-local"
+                            put("mode", "obfs")
+                            put("host", "obfs-host")
+                        }
+                        "v2ray-plugin" -> {
+                            pluginOpts.id = "v2ray-plugin"
+                            put("mode")
+                            if (opts["tls"]?.toString() == "true") {
+                                pluginOpts["tls"] = null
+                            }
+                            put("host")
+                            put("path")
+                            if (opts["mux"]?.toString() == "true") {
+                                pluginOpts["mux"] = "8"
+                            }
+                        }
+                    }
+                    pluginStr = pluginOpts.toString(false)
+                }
+                ShadowsocksBean().apply {
+                    serverAddress = proxy["server"] as String
+                    serverPort = proxy["port"].toString().toInt()
+                    password = proxy["password"]?.toString()
+                    method = clashCipher(proxy["cipher"] as String)
+                    plugin = pluginStr
+                    name = proxy["name"]?.toString()
+
+                    fixInvalidParams()
+                }
+            }
+            "vmess" -> {
+                val bean = VMessBean()
+                for (opt in proxy) {
+                    when (opt.key) {
+                        "name" -> bean.name = opt.value?.toString()
+                        "server" -> bean.serverAddress = opt.value as String
+                        "port" -> bean.serverPort = opt.value.toString().toInt()
+                        "uuid" -> bean.uuid = opt.value as String
+    //                                    "alterId" -> bean.alterId = opt.value.toString().toInt()
+                        "cipher" -> bean.encryption = opt.value as String
+                        "network" -> bean.type = opt.value as String
+                        "tls" -> bean.security = if (opt.value?.toString() == "true") "tls" else ""
+                        "skip-cert-verify" -> bean.allowInsecure = opt.value?.toString() == "true"
+                        "ws-opts" -> for (wsOpt in (opt.value as Map<String, Any>)) {
+                            when (wsOpt.key.lowercase()) {
+                                "headers" -> for (wsHeader in (opt.value as Map<String, Any>)) {
+                                    when (wsHeader.key.lowercase()) {
+                                        "host" -> bean.host = wsHeader.value as String
+                                    }
+                                }
+                                "path" -> {
+                                    bean.path = wsOpt.value.toString()
+                                }
+                                "max-early-data" -> {
+                                    bean.wsMaxEarlyData = wsOpt.value.toString().toInt()
+                                }
+                                "early-data-header-name" -> {
+                                    bean.earlyDataHeaderName = wsOpt.value.toString()
+                                }
+                            }
+                        }
+                        "servername" -> bean.host = opt.value?.toString()
+                        "h2-opts" -> for (h2Opt in (opt.value as Map<String, Any>)) {
+                            when (h2Opt.key.lowercase()) {
+                                "host" -> bean.host = (h2Opt.value as List<String>).first()
+                                "path" -> bean.path = h2Opt.value.toString()
+                            }
+                        }
+                        "http-opts" -> for (httpOpt in (opt.value as Map<String, Any>)) {
+                            when (httpOpt.key.lowercase()) {
+                                "path" -> bean.path = (httpOpt.value as List<String>).first()
+                            }
+                        }
+                        "grpc-opts" -> for (grpcOpt in (opt.value as Map<String, Any>)) {
+                            when (grpcOpt.key.lowercase()) {
+                                "grpc-service-name" -> bean.grpcServiceName = grpcOpt.value.toString()
+                            }
+                        }
+                    }
+                }
+                bean
+            }
+            "trojan" -> {
+                val bean = TrojanBean()
+                for (opt in proxy) {
+                    when (opt.key) {
+                        "name" -> bean.name = opt.value?.toString()
+                        "server" -> bean.serverAddress = opt.value as String
+                        "port" -> bean.serverPort = opt.value.toString().toInt()
+                        "password" -> bean.password = opt.value?.toString()
+                        "sni" -> bean.sni = opt.value?.toString()
+                        "skip-cert-verify" -> bean.allowInsecure = opt.value?.toString() == "true"
+                    }
+                }
+                bean
+            }
+
+            "ssr" -> {
+                val entity = ShadowsocksRBean()
+                for (opt in proxy) {
+                    when (opt.key) {
+                        "name" -> entity.name = opt.value?.toString()
+                        "server" -> entity.serverAddress = opt.value as String
+                        "port" -> entity.serverPort = opt.value.toString().toInt()
+                        "cipher" -> entity.method = clashCipher(opt.value as String)
+                        "password" -> entity.password = opt.value?.toString()
+                        "obfs" -> entity.obfs = opt.value as String
+                        "protocol" -> entity.protocol = opt.value as String
+                        "obfs-param" -> entity.obfsParam = opt.value?.toString()
+                        "protocol-param" -> entity.protocolParam = opt.value?.toString()
+                    }
+                }
+                entity
+            }
+            else -> null
+        }
+    }
+
     fun clashCipher(cipher: String): String {
         return when (cipher) {
             "dummy" -> "none"
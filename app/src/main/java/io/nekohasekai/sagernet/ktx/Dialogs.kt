@@ -20,10 +20,14 @@
 package io.nekohasekai.sagernet.ktx
 
 import android.content.Context
+import android.text.format.DateFormat
+import android.text.format.Formatter
 import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.Fragment
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import io.nekohasekai.sagernet.R
+import io.nekohasekai.sagernet.database.TrafficHistory
+import java.util.*
 
 fun Context.alert(text: String): AlertDialog {
     return MaterialAlertDialogBuilder(this).setTitle(R.string.error_title)
@@ -32,4 +36,29 @@ fun Context.alert(text: String): AlertDialog {
         .create()
 }
 
-fun Fragment.alert(text: String) = requireContext().alert(text)
\ No newline at end of file
+fun Fragment.alert(text: String) = requireContext().alert(text)
+
+/**
+ * Show the hourly traffic of an app or outbound during the last day.
+ */
+fun Fragment.showTrafficHistory(kind: Int, name: String, title: CharSequence) {
+    val context = requireContext()
+    runOnDefaultDispatcher {
+        val since = System.currentTimeMillis() / 1000 - TrafficHistory.DAY
+        val series = TrafficHistory.series(kind, name, since, TrafficHistory.HOUR)
+        val timeFormat = DateFormat.getTimeFormat(context)
+        val text = series.asReversed().joinToString("\n") {
+            timeFormat.format(Date(it.time * 1000)) + "  " + context.getString(
+                R.string.traffic,
+                Formatter.formatFileSize(context, it.uplink),
+                Formatter.formatFileSize(context, it.downlink)
+            )
+        }.ifEmpty { context.getString(R.string.traffic_history_empty) }
+        onMainDispatcher {
+            MaterialAlertDialogBuilder(context).setTitle(title)
+                .setMessage(text)
+                .setPositiveButton(android.R.string.ok, null)
+                .show()
+        }
+    }
+}
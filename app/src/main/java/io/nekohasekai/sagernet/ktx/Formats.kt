@@ -37,6 +37,10 @@ import io.nekohasekai.sagernet.fmt.socks.parseSOCKS
 import io.nekohasekai.sagernet.fmt.trojan.parseTrojan
 import io.nekohasekai.sagernet.fmt.trojan_go.parseTrojanGo
 import io.nekohasekai.sagernet.fmt.v2ray.parseV2Ray
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.Reader
 
 fun formatObject(obj: Any): String {
     return gson.toJson(obj).let { JSONObject(it).toStringPretty() }
@@ -50,129 +54,179 @@ fun String.decodeBase64UrlSafe(): String {
 
 class SubscriptionFoundException(val link: String) : RuntimeException()
 
-fun parseProxies(text: String): List<AbstractBean> {
-    val links = text.split('\n').flatMap { it.trim().split(' ') }
-    val linksByLine = text.split('\n').map { it.trim() }
+/**
+ * Counts of share links that could not be parsed, by scheme.
+ */
+class LinkParseErrors {
+    val failed = HashMap<String, Int>()
+    var unrecognized = 0
 
-    val entities = ArrayList<AbstractBean>()
-    val entitiesByLine = ArrayList<AbstractBean>()
+    val total get() = failed.values.sum() + unrecognized
+
+    override fun toString() = (failed.map { (scheme, count) -> "$scheme: $count" } + if (unrecognized > 0) {
+        listOf("unrecognized: $unrecognized")
+    } else {
+        emptyList()
+    }).joinToString(", ")
+}
 
-    fun String.parseLink(entities: ArrayList<AbstractBean>) {
-        if (startsWith("clash://install-config?") || startsWith("sn://subscription?")) {
-            throw SubscriptionFoundException(this)
+private val linkParsers = mapOf<String, (String) -> AbstractBean>(
+    "sn" to ::parseUniversal,
+    "socks" to ::parseSOCKS,
+    "socks4" to ::parseSOCKS,
+    "socks4a" to ::parseSOCKS,
+    "socks5" to ::parseSOCKS,
+    "http" to ::parseHttp,
+    "https" to ::parseHttp,
+    "vmess" to ::parseV2Ray,
+    "vless" to ::parseV2Ray,
+    "trojan" to ::parseTrojan,
+    "trojan-go" to ::parseTrojanGo,
+    "ss" to ::parseShadowsocks,
+    "ssr" to ::parseShadowsocksR,
+    "naive" to ::parseNaive,
+    "ping-tunnel" to ::parsePingTunnel,
+    "relaybaton" to ::parseRelayBaton,
+    "brook" to ::parseBrook,
+    "hysteria" to ::parseHysteria,
+)
+
+/**
+ * Parse a single share link, returns null if the link is not recognized or invalid.
+ * Failures are counted in [errors] if given, logged otherwise.
+ */
+fun String.parseProxyLink(errors: LinkParseErrors? = null): AbstractBean? {
+    if (startsWith("clash://install-config?") || startsWith("sn://subscription?")) {
+        throw SubscriptionFoundException(this)
+    }
+
+    val schemeEnd = indexOf("://")
+    // naive links are naive+https:// or naive+quic://
+    val scheme = if (schemeEnd > 0) substring(0, schemeEnd).substringBefore('+') else ""
+    val parser = linkParsers[scheme]
+    if (parser == null) {
+        if (isNotEmpty()) errors?.apply { unrecognized++ }
+        return null
+    }
+    return try {
+        parser(this)
+    } catch (e: SubscriptionFoundException) {
+        throw e
+    } catch (e: Throwable) {
+        if (errors != null) {
+            errors.failed[scheme] = (errors.failed[scheme] ?: 0) + 1
+        } else {
+            Logs.w(e)
         }
+        null
+    }
+}
 
-        if (startsWith("sn://")) {
-            Logs.d("Try parse universal link: $this")
-            runCatching {
-                entities.add(parseUniversal(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("socks://") || startsWith("socks4://") || startsWith("socks4a://") || startsWith("socks5://")) {
-            Logs.d("Try parse socks link: $this")
-            runCatching {
-                entities.add(parseSOCKS(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (matches("(http|https)://.*".toRegex())) {
-            Logs.d("Try parse http link: $this")
-            runCatching {
-                entities.add(parseHttp(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("vmess://") || startsWith("vless://")) {
-            Logs.d("Try parse v2ray link: $this")
-            runCatching {
-                entities.add(parseV2Ray(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("trojan://")) {
-            Logs.d("Try parse trojan link: $this")
-            runCatching {
-                entities.add(parseTrojan(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("trojan-go://")) {
-            Logs.d("Try parse trojan-go link: $this")
-            runCatching {
-                entities.add(parseTrojanGo(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("ss://")) {
-            Logs.d("Try parse shadowsocks link: $this")
-            runCatching {
-                entities.add(parseShadowsocks(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("ssr://")) {
-            Logs.d("Try parse shadowsocksr link: $this")
-            runCatching {
-                entities.add(parseShadowsocksR(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("naive+")) {
-            Logs.d("Try parse naive link: $this")
-            runCatching {
-                entities.add(parseNaive(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("ping-tunnel://")) {
-            Logs.d("Try parse pt link: $this")
-            runCatching {
-                entities.add(parsePingTunnel(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("relaybaton://")) {
-            Logs.d("Try parse rb link: $this")
-            runCatching {
-                entities.add(parseRelayBaton(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("brook://")) {
-            Logs.d("Try parse brook link: $this")
-            runCatching {
-                entities.add(parseBrook(this))
-            }.onFailure {
-                Logs.w(it)
+fun parseProxies(text: String, errors: LinkParseErrors? = null): List<AbstractBean> {
+    val entities = ArrayList<AbstractBean>()
+    parseProxies(text.reader(), errors) { entities.add(it) }
+    return entities
+}
+
+/**
+ * Parse share links in one pass, one line at a time, parsed profiles are passed to [consumer] and
+ * the count is returned.
+ *
+ * A line holding several space separated links is taken as these links, otherwise as a single link,
+ * as names of some formats may contain spaces.
+ */
+fun parseProxies(reader: Reader, errors: LinkParseErrors? = null, consumer: (AbstractBean) -> Unit): Int {
+    var count = 0
+    val tokenErrors = if (errors != null) LinkParseErrors() else null
+    reader.forEachLine { line ->
+        val link = line.trim()
+        if (link.isEmpty()) return@forEachLine
+        var beans: List<AbstractBean>? = null
+        var byLinks = emptyList<AbstractBean>()
+        if (link.indexOf(' ') > 0) {
+            byLinks = link.split(' ').mapNotNull { it.parseProxyLink(tokenErrors) }
+            if (byLinks.size > 1) beans = byLinks
+        }
+        if (beans == null) {
+            beans = if (byLinks.isEmpty()) {
+                listOfNotNull(link.parseProxyLink(errors))
+            } else {
+                // a name containing spaces, or a single link followed by a comment
+                listOf(link.parseProxyLink(tokenErrors) ?: byLinks[0])
             }
-        } else if (startsWith("hysteria://")) {
-            Logs.d("Try parse hysteria link: $this")
-            runCatching {
-                entities.add(parseHysteria(this))
-            }.onFailure {
-                Logs.w(it)
+        } else if (errors != null) {
+            tokenErrors!!.failed.forEach { (scheme, failed) ->
+                errors.failed[scheme] = (errors.failed[scheme] ?: 0) + failed
             }
         }
+        tokenErrors?.apply {
+            failed.clear()
+            unrecognized = 0
+        }
+        for (bean in beans) {
+            bean.initializeDefaultValues()
+            consumer(bean)
+            count++
+        }
     }
+    return count
+}
 
-    for (link in links) {
-        link.parseLink(entities)
-    }
-    for (link in linksByLine) {
-        link.parseLink(entitiesByLine)
+/**
+ * Decodes base64 in both the standard and the url safe alphabet from [input] as it is read,
+ * skipping whitespace, padding and invalid characters like [decodeBase64UrlSafe] does.
+ */
+class Base64DecodingInputStream(input: InputStream) : FilterInputStream(input) {
+
+    private var bits = 0
+    private var bitCount = 0
+    private val buffer = ByteArray(8192)
+    private var eof = false
+
+    override fun read(): Int {
+        val single = ByteArray(1)
+        return if (read(single, 0, 1) == -1) -1 else single[0].toInt() and 0xFF
     }
-    var isBadLink = false
-    if (entities.onEach { it.initializeDefaultValues() }.size == entitiesByLine.onEach { it.initializeDefaultValues() }.size) run test@{
-        entities.forEachIndexed { index, bean ->
-            val lineBean = entitiesByLine[index]
-            if (bean == lineBean && bean.displayName() != lineBean.displayName()) {
-                isBadLink = true
-                return@test
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        var written = 0
+        while (written == 0) {
+            if (eof) return -1
+            // 4 chars for 3 bytes, never decode more than len bytes
+            val size = `in`.read(buffer, 0, minOf(buffer.size.toLong(), len * 4L / 3).toInt())
+            if (size == -1) {
+                eof = true
+                continue
+            }
+            for (index in 0 until size) {
+                val value = decodeChar(buffer[index].toInt())
+                if (value < 0) continue
+                bits = (bits shl 6) or value
+                bitCount += 6
+                if (bitCount >= 8) {
+                    bitCount -= 8
+                    b[off + written++] = (bits shr bitCount).toByte()
+                    bits = bits and ((1 shl bitCount) - 1)
+                }
             }
         }
+        return written
     }
-    return if (entities.size > entitiesByLine.size) entities else entitiesByLine
+
+    override fun skip(n: Long) = throw IOException("skip is not supported")
+    override fun available() = 0
+    override fun markSupported() = false
+
+    private fun decodeChar(char: Int) = when (char) {
+        in 'A'.code..'Z'.code -> char - 'A'.code
+        in 'a'.code..'z'.code -> char - 'a'.code + 26
+        in '0'.code..'9'.code -> char - '0'.code + 52
+        '+'.code, '-'.code, ' '.code -> 62
+        '/'.code, '_'.code -> 63
+        else -> -1
+    }
+
 }
 
 fun <T : Serializable> T.applyDefaultValues(): T {
@@ -0,0 +1,263 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.ktx
+
+import java.io.ByteArrayOutputStream
+
+/**
+ * Share link parsed the way Go's `net/url` does for `Libcore.parseURL`, without crossing JNI.
+ *
+ * Components are decoded on parse, query parameters when first asked for.
+ */
+class ParsedURL internal constructor(
+    val scheme: String,
+    val host: String,
+    val port: Int,
+    val username: String,
+    val password: String,
+    val path: String,
+    val rawPath: String,
+    val rawQuery: String,
+    fragment: String,
+) {
+
+    var fragment = fragment
+        private set
+
+    private var query: Array<String>? = null
+
+    fun setRawFragment(rawFragment: String) {
+        fragment = unescape(rawFragment, Mode.FRAGMENT)
+    }
+
+    /**
+     * The first value of [key], empty if missing.
+     */
+    fun queryParameterNotBlank(key: String): String {
+        val query = query ?: parseQuery(rawQuery).also { query = it }
+        for (index in query.indices step 2) {
+            if (query[index] == key) return query[index + 1]
+        }
+        return ""
+    }
+
+    fun queryParameter(key: String) = queryParameterNotBlank(key).takeIf { it.isNotBlank() }
+
+}
+
+class URLParseException(message: String) : IllegalArgumentException(message)
+
+private enum class Mode { PATH, HOST, USER_PASSWORD, QUERY_COMPONENT, FRAGMENT }
+
+/**
+ * Parse [url] like `Libcore.parseURL`: the host is unbracketed, a missing port is 0 and invalid
+ * escapes, ports or user info throw [URLParseException].
+ */
+fun parseURL(url: String): ParsedURL {
+    val hash = url.indexOf('#')
+    val rawUrl = if (hash >= 0) url.substring(0, hash) else url
+    val fragment = if (hash >= 0) unescape(url.substring(hash + 1), Mode.FRAGMENT) else ""
+
+    for (char in rawUrl) {
+        if (char < ' ' || char == '\u007f') throw URLParseException("invalid control character in URL")
+    }
+
+    var rest = rawUrl
+    var scheme = ""
+    schemeLoop@ for (index in rawUrl.indices) {
+        val char = rawUrl[index]
+        when {
+            char in 'a'..'z' || char in 'A'..'Z' -> {
+            }
+            char in '0'..'9' || char == '+' || char == '-' || char == '.' -> {
+                if (index == 0) break@schemeLoop
+            }
+            char == ':' -> {
+                if (index == 0) throw URLParseException("missing protocol scheme")
+                scheme = rawUrl.substring(0, index).lowercase()
+                rest = rawUrl.substring(index + 1)
+                break@schemeLoop
+            }
+            else -> break@schemeLoop
+        }
+    }
+
+    var rawQuery = ""
+    if (rest.endsWith("?") && rest.count { it == '?' } == 1) {
+        rest = rest.substring(0, rest.length - 1)
+    } else {
+        val question = rest.indexOf('?')
+        if (question >= 0) {
+            rawQuery = rest.substring(question + 1)
+            rest = rest.substring(0, question)
+        }
+    }
+
+    if (!rest.startsWith("/")) {
+        if (scheme.isNotEmpty()) {
+            // opaque, like mailto:
+            return ParsedURL(scheme, "", 0, "", "", "", "", rawQuery, fragment)
+        }
+        val colon = rest.indexOf(':')
+        if (colon >= 0 && (rest.indexOf('/') !in 0 until colon)) {
+            throw URLParseException("first path segment in URL cannot contain colon")
+        }
+    }
+
+    var host = ""
+    var port = 0
+    var username = ""
+    var password = ""
+    if (rest.startsWith("//")) {
+        val slash = rest.indexOf('/', 2)
+        val authority = if (slash >= 0) rest.substring(2, slash) else rest.substring(2)
+        rest = if (slash >= 0) rest.substring(slash) else ""
+
+        val at = authority.lastIndexOf('@')
+        val hostPort = authority.substring(at + 1)
+        if (at >= 0) {
+            val userinfo = authority.substring(0, at)
+            for (char in userinfo) {
+                if (!isUserinfoChar(char)) throw URLParseException("net/url: invalid userinfo")
+            }
+            val colon = userinfo.indexOf(':')
+            if (colon < 0) {
+                username = unescape(userinfo, Mode.USER_PASSWORD)
+            } else {
+                username = unescape(userinfo.substring(0, colon), Mode.USER_PASSWORD)
+                password = unescape(userinfo.substring(colon + 1), Mode.USER_PASSWORD)
+            }
+        }
+
+        val colonPort: String
+        if (hostPort.startsWith("[")) {
+            val close = hostPort.lastIndexOf(']')
+            if (close < 0) throw URLParseException("missing ']' in host")
+            colonPort = hostPort.substring(close + 1)
+            host = unescape(hostPort.substring(1, close), Mode.HOST)
+        } else {
+            val colon = hostPort.lastIndexOf(':')
+            colonPort = if (colon >= 0) hostPort.substring(colon) else ""
+            host = unescape(if (colon >= 0) hostPort.substring(0, colon) else hostPort, Mode.HOST)
+        }
+        if (colonPort.isNotEmpty()) {
+            if (colonPort[0] != ':' || colonPort.drop(1).any { it !in '0'..'9' }) {
+                throw URLParseException("invalid port \"$colonPort\" after host")
+            }
+            port = colonPort.substring(1).toIntOrNull() ?: 0
+        }
+    }
+
+    return ParsedURL(
+        scheme, host, port, username, password, unescape(rest, Mode.PATH), rest, rawQuery, fragment
+    )
+}
+
+private fun isUserinfoChar(char: Char) = char in 'a'..'z' || char in 'A'..'Z' || char in '0'..'9' || char in "-._:~!$&'()*+,;=%@"
+
+// characters a host may contain unescaped, besides letters and digits
+private fun isHostChar(char: Char) = char in 'a'..'z' || char in 'A'..'Z' || char in '0'..'9' || char in "-._~!$&'()*+,;=:[]<>\"%"
+
+private fun unhex(char: Char) = when (char) {
+    in '0'..'9' -> char - '0'
+    in 'a'..'f' -> char - 'a' + 10
+    in 'A'..'F' -> char - 'A' + 10
+    else -> -1
+}
+
+private fun unescape(value: String, mode: Mode): String {
+    var escapes = 0
+    var plus = false
+    var index = 0
+    while (index < value.length) {
+        val char = value[index]
+        when {
+            char == '%' -> {
+                if (index + 2 >= value.length || unhex(value[index + 1]) < 0 || unhex(value[index + 2]) < 0) {
+                    throw URLParseException("invalid URL escape \"${value.substring(index, minOf(index + 3, value.length))}\"")
+                }
+                // hosts may only escape non-ascii bytes
+                if (mode == Mode.HOST && unhex(value[index + 1]) < 8 && value.substring(index, index + 3) != "%25") {
+                    throw URLParseException("invalid URL escape \"${value.substring(index, index + 3)}\"")
+                }
+                escapes++
+                index += 3
+                continue
+            }
+            char == '+' -> plus = mode == Mode.QUERY_COMPONENT
+            mode == Mode.HOST && char < '\u0080' && !isHostChar(char) -> {
+                throw URLParseException("invalid character \"$char\" in host name")
+            }
+        }
+        index++
+    }
+    if (escapes == 0 && !plus) return value
+
+    val bytes = ByteArrayOutputStream(value.length)
+    index = 0
+    while (index < value.length) {
+        val char = value[index]
+        when {
+            char == '%' -> {
+                bytes.write(unhex(value[index + 1]) * 16 + unhex(value[index + 2]))
+                index += 3
+                continue
+            }
+            char == '+' && mode == Mode.QUERY_COMPONENT -> bytes.write(' '.code)
+            char < '\u0080' -> bytes.write(char.code)
+            else -> {
+                // keep non-ascii characters as they are
+                val end = value.indexOfFirst(index) { it < '\u0080' }
+                bytes.write(value.substring(index, end).toByteArray())
+                index = end
+                continue
+            }
+        }
+        index++
+    }
+    return bytes.toString("UTF-8")
+}
+
+private inline fun String.indexOfFirst(from: Int, predicate: (Char) -> Boolean): Int {
+    for (index in from until length) {
+        if (predicate(this[index])) return index
+    }
+    return length
+}
+
+/**
+ * Query pairs as a flat key, value array; pairs with invalid escapes or semicolons are skipped.
+ */
+private fun parseQuery(rawQuery: String): Array<String> {
+    if (rawQuery.isEmpty()) return emptyArray()
+    val pairs = ArrayList<String>()
+    for (pair in rawQuery.split('&')) {
+        if (pair.isEmpty() || pair.contains(';')) continue
+        val equals = pair.indexOf('=')
+        try {
+            val key = unescape(if (equals >= 0) pair.substring(0, equals) else pair, Mode.QUERY_COMPONENT)
+            val value = if (equals >= 0) unescape(pair.substring(equals + 1), Mode.QUERY_COMPONENT) else ""
+            pairs.add(key)
+            pairs.add(value)
+        } catch (ignored: URLParseException) {
+        }
+    }
+    return pairs.toTypedArray()
+}
@@ -43,6 +43,32 @@ object ResultLocal : ValidateResult
 class ResultDeprecated(@RawRes val textRes: Int) : ValidateResult
 class ResultInsecure(@RawRes val textRes: Int) : ValidateResult
 
+// texts of the advisories stored in ProxyEntity.profileAdvisory by their position, append only
+private val advisoryTexts = intArrayOf(
+    R.raw.insecure,
+    R.raw.not_encrypted,
+    R.raw.shadowsocks_stream_cipher,
+    R.raw.mkcp_no_seed,
+    R.raw.shadowsocksr,
+    R.raw.xtls,
+)
+
+/**
+ * Encode as stored in the advisory column: positive for insecure, negative for deprecated,
+ * 0 for secure or local.
+ */
+fun ValidateResult.toAdvisory() = when (this) {
+    is ResultInsecure -> advisoryTexts.indexOf(textRes) + 1
+    is ResultDeprecated -> -(advisoryTexts.indexOf(textRes) + 1)
+    else -> 0
+}
+
+fun advisoryResult(advisory: Int): ValidateResult = when {
+    advisory > 0 -> ResultInsecure(advisoryTexts[advisory - 1])
+    advisory < 0 -> ResultDeprecated(advisoryTexts[-advisory - 1])
+    else -> ResultSecure
+}
+
 val ssSecureList = "(gcm|poly1305)".toRegex()
 
 fun AbstractBean.isInsecure(): ValidateResult {
@@ -26,6 +26,7 @@ import android.view.ViewGroup
 import androidx.appcompat.widget.PopupMenu
 import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
+import androidx.recyclerview.widget.AsyncListDiffer
 import androidx.recyclerview.widget.RecyclerView
 import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.R
@@ -47,10 +48,28 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
         adapter = ActiveAdapter()
         binding.trafficList.layoutManager = FixedLinearLayoutManager(binding.trafficList)
         binding.trafficList.adapter = adapter
-        (parentFragment as TrafficFragment).listeners.add(::emitStats)
+        (parentFragment as TrafficFragment).listeners.add { statsList, _ -> emitStats(statsList) }
         emitStats(emptyList())
     }
 
+    private val statsComparator = Comparator<AppStats> { a, b ->
+        val dataA = a.uplink + a.downlink
+        val dataB = b.uplink + b.downlink
+        if (dataA != dataB) {
+            dataB.compareTo(dataA)
+        } else {
+            val connA = a.tcpConnections + a.udpConnections
+            val connB = b.tcpConnections + b.udpConnections
+            if (connA != connB) {
+                connB.compareTo(connA)
+            } else if (a.packageName != b.packageName) {
+                b.packageName.compareTo(a.packageName)
+            } else {
+                a.uid.compareTo(b.uid)
+            }
+        }
+    }
+
     fun emitStats(statsList: List<AppStats>) {
         if (statsList.isEmpty()) {
             runOnMainDispatcher {
@@ -66,8 +85,7 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
                 }
             }
             binding.trafficList.post {
-                adapter.data = emptyList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(emptyList())
             }
         } else {
             runOnMainDispatcher {
@@ -77,25 +95,9 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
 
             val now = System.currentTimeMillis() / 1000
             val list = statsList.filter { it.deactivateAt == 0 || now - it.deactivateAt < 5 }
-                .toSortedSet { a, b ->
-                    val dataA = a.uplink + a.downlink
-                    val dataB = b.uplink + b.downlink
-                    if (dataA != dataB) {
-                        dataB.compareTo(dataA)
-                    } else {
-                        val connA = a.tcpConnections + a.udpConnections
-                        val connB = b.tcpConnections + b.udpConnections
-                        if (connA != connB) {
-                            connB.compareTo(connA)
-                        } else {
-                            b.packageName.compareTo(a.packageName)
-                        }
-                    }
-                }
-                .toList()
+                .sortedWith(statsComparator)
             binding.trafficList.post {
-                adapter.data = list
-                adapter.notifyDataSetChanged()
+                adapter.submit(list)
             }
         }
     }
@@ -106,7 +108,12 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
             setHasStableIds(true)
         }
 
-        lateinit var data: List<AppStats>
+        // diffs are computed on a background thread and dispatched on the main thread
+        private val differ = AsyncListDiffer(this, AppStatsDiffCallback)
+
+        val data: List<AppStats> get() = differ.currentList
+
+        fun submit(list: List<AppStats>) = differ.submitList(list)
 
         override fun getItemId(position: Int): Long {
             return data[position].uid.toLong()
@@ -123,7 +130,6 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
         }
 
         override fun getItemCount(): Int {
-            if (!::data.isInitialized) return 0
             return data.size
         }
     }
@@ -136,7 +142,7 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
             PackageCache.awaitLoadSync()
 
             val packageName = if (stats.uid > 1000) {
-                PackageCache.uidMap[stats.uid]?.iterator()?.next() ?: "android"
+                PackageCache.packageName(stats.uid) ?: "android"
             } else {
                 "android"
             }
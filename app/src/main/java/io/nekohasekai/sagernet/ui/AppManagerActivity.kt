@@ -50,10 +50,10 @@ import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.databinding.LayoutAppsBinding
 import io.nekohasekai.sagernet.databinding.LayoutAppsItemBinding
 import io.nekohasekai.sagernet.databinding.LayoutLoadingBinding
-import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.crossFadeFrom
 import io.nekohasekai.sagernet.ktx.onMainDispatcher
 import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
+import io.nekohasekai.sagernet.utils.DexScanner
 import io.nekohasekai.sagernet.utils.PackageCache
 import io.nekohasekai.sagernet.widget.ListHolderListener
 import io.nekohasekai.sagernet.widget.ListListener
@@ -61,11 +61,6 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.withContext
-import org.jf.dexlib2.dexbacked.DexBackedDexFile
-import org.jf.dexlib2.iface.DexFile
-import java.io.File
-import java.util.zip.ZipException
-import java.util.zip.ZipFile
 import kotlin.coroutines.coroutineContext
 
 class AppManagerActivity : ThemedActivity() {
@@ -361,7 +356,7 @@ class AppManagerActivity : ThemedActivity() {
 
         runOnDefaultDispatcher {
             val chinaApps = ArrayList<Pair<PackageInfo, String>>()
-            val chinaRegex = ("(" + arrayOf(
+            val scanner = DexScanner(listOf(
                 "com.tencent",
                 "com.alibaba",
                 "com.umeng",
@@ -397,7 +392,7 @@ class AppManagerActivity : ThemedActivity() {
                 "com.meizu",
                 "com.gionee",
                 "cn.nubia"
-            ).joinToString("|") { "${it.replace(".", "\\.")}\\." } + ").*").toRegex()
+            ))
 
             val bypass = DataStore.bypass
             val cachedApps = cachedApps
@@ -407,77 +402,23 @@ class AppManagerActivity : ThemedActivity() {
                 ProxiedApp(packageManager, packageInfo.applicationInfo, packageName)
             }.sortedWith(compareBy({ !isProxiedApp(it) }, { it.name.toString() }))
 
-            scan@ for ((pkg, app) in cachedApps.entries) {
-                /*if (!sysApps && app.applicationInfo.flags and ApplicationInfo.FLAG_SYSTEM != 0) {
-                    continue
-                }*/
-
-                val index = appsAdapter.filteredApps.indexOfFirst { it.uid == app.applicationInfo.uid }
-                var changed = false
-
+            val results = scanner.scan(cachedApps.values) { app, matched ->
+                val label = app.applicationInfo.loadLabel(packageManager).toString()
                 onMainDispatcher {
+                    if (matched) chinaApps.add(app to label)
                     text.text = (txt + " " + app.packageName + "\n\n" + chinaApps.map { it.second }
                         .reversed()
                         .joinToString("\n", postfix = "\n")).trim()
                 }
+            }
 
-                try {
-
-                    val dex = File(app.applicationInfo.publicSourceDir)
-                    val zipFile = ZipFile(dex)
-                    var dexFile: DexFile
-
-                    for (entry in zipFile.entries()) {
-                        if (entry.name.startsWith("classes") && entry.name.endsWith(".dex")) {
-                            val input = zipFile.getInputStream(entry).readBytes()
-                            dexFile = try {
-                                DexBackedDexFile.fromInputStream(null, input.inputStream())
-                            } catch (e: Exception) {
-                                Logs.w(e)
-                                break
-                            }
-                            for (clazz in dexFile.classes) {
-                                val clazzName = clazz.type.substring(1, clazz.type.length - 1)
-                                    .replace("/", ".")
-                                    .replace("$", ".")
-
-                                if (clazzName.matches(chinaRegex)) {
-                                    chinaApps.add(
-                                        app to app.applicationInfo.loadLabel(packageManager)
-                                            .toString()
-                                    )
-                                    runCatching {
-                                        zipFile.close()
-                                    }
-
-                                    if (bypass) {
-                                        changed = !proxiedUids[app.applicationInfo.uid]
-                                        proxiedUids[app.applicationInfo.uid] = true
-                                    } else {
-                                        proxiedUids.delete(app.applicationInfo.uid)
-                                    }
-
-                                    continue@scan
-                                }
-                            }
-                        }
-                    }
-                    runCatching {
-                        zipFile.close()
-                    }
-
-                    if (bypass) {
-                        proxiedUids.delete(app.applicationInfo.uid)
-                    } else {
-                        changed = !proxiedUids[index]
-                        proxiedUids[app.applicationInfo.uid] = true
-                    }
-
-                } catch (e: ZipException) {
-                    Logs.w("Error in pkg ${app.packageName}:${app.versionName}", e)
-                    continue
+            for ((pkg, app) in cachedApps.entries) {
+                val matched = results[pkg] ?: continue
+                if (matched == bypass) {
+                    proxiedUids[app.applicationInfo.uid] = true
+                } else {
+                    proxiedUids.delete(app.applicationInfo.uid)
                 }
-
             }
 
             skipList.mapNotNull { PackageCache.packageMap[it] }.forEach {
@@ -23,7 +23,6 @@ import android.net.Uri
 import android.os.Bundle
 import android.os.Parcel
 import android.os.Parcelable
-import android.provider.OpenableColumns
 import android.view.View
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.app.AlertDialog
@@ -45,22 +44,38 @@ import io.nekohasekai.sagernet.databinding.LayoutBackupBinding
 import io.nekohasekai.sagernet.databinding.LayoutImportBinding
 import io.nekohasekai.sagernet.databinding.LayoutProgressBinding
 import io.nekohasekai.sagernet.ktx.*
+import java.io.BufferedInputStream
 import java.io.File
+import java.io.InputStream
+import java.io.OutputStream
 import java.util.*
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 
 class BackupFragment : NamedFragment(R.layout.layout_backup) {
 
+    companion object {
+        // version 1 is a single JSON object, version 2 gzipped JSON Lines
+        private const val BACKUP_VERSION = 2
+        private const val CHUNK_SIZE = 256
+
+        private const val SECTION_PROFILES = "profiles"
+        private const val SECTION_GROUPS = "groups"
+        private const val SECTION_RULES = "rules"
+        private const val SECTION_SETTINGS = "settings"
+    }
+
     override fun name0() = app.getString(R.string.backup)
 
-    var content = ""
+    private var backupOptions = BooleanArray(3)
     private val exportSettings = registerForActivityResult(ActivityResultContracts.CreateDocument()) { data ->
         if (data != null) {
             runOnDefaultDispatcher {
                 try {
                     requireActivity().contentResolver.openOutputStream(
                         data
-                    )!!.bufferedWriter().use {
-                        it.write(content)
+                    )!!.use {
+                        doBackup(it, backupOptions[0], backupOptions[1], backupOptions[2])
                     }
                     onMainDispatcher {
                         snackbar(getString(R.string.action_export_msg)).show()
@@ -81,36 +96,42 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
 
         val binding = LayoutBackupBinding.bind(view)
         binding.actionExport.setOnClickListener {
-            runOnDefaultDispatcher {
-                content = doBackup(
-                    binding.backupConfigurations.isChecked,
-                    binding.backupRules.isChecked,
-                    binding.backupSettings.isChecked
-                )
-                onMainDispatcher {
-                    startFilesForResult(
-                        exportSettings, "sagernet_backup_${Date().toLocaleString()}.json"
-                    )
-                }
-            }
+            backupOptions = booleanArrayOf(
+                binding.backupConfigurations.isChecked,
+                binding.backupRules.isChecked,
+                binding.backupSettings.isChecked
+            )
+            startFilesForResult(
+                exportSettings, "sagernet_backup_${Date().toLocaleString()}.jsonl.gz"
+            )
         }
 
         binding.actionShare.setOnClickListener {
             runOnDefaultDispatcher {
-                content = doBackup(
-                    binding.backupConfigurations.isChecked,
-                    binding.backupRules.isChecked,
-                    binding.backupSettings.isChecked
-                )
                 app.cacheDir.mkdirs()
                 val cacheFile = File(
-                    app.cacheDir, "sagernet_backup_${Date().toLocaleString()}.json"
+                    app.cacheDir, "sagernet_backup_${Date().toLocaleString()}.jsonl.gz"
                 )
-                cacheFile.writeText(content)
+                try {
+                    cacheFile.outputStream().use {
+                        doBackup(
+                            it,
+                            binding.backupConfigurations.isChecked,
+                            binding.backupRules.isChecked,
+                            binding.backupSettings.isChecked
+                        )
+                    }
+                } catch (e: Exception) {
+                    Logs.w(e)
+                    onMainDispatcher {
+                        snackbar(e.readableMessage).show()
+                    }
+                    return@runOnDefaultDispatcher
+                }
                 onMainDispatcher {
                     startActivity(
                         Intent.createChooser(
-                            Intent(Intent.ACTION_SEND).setType("application/json")
+                            Intent(Intent.ACTION_SEND).setType("application/gzip")
                                 .setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
                                 .putExtra(
                                     Intent.EXTRA_STREAM, FileProvider.getUriForFile(
@@ -139,37 +160,67 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
         }
     }
 
-    fun doBackup(profile: Boolean, rule: Boolean, setting: Boolean): String {
-        val out = JSONObject()
-        out["version"] = 1
-        if (profile) {
-            out["profiles"] = JSONArray().apply {
-                SagerDatabase.proxyDao.getAll().forEach {
-                    add(it.toBase64Str())
-                }
+    fun <T> String.fromBase64Str(creator: (Parcel) -> T): T {
+        val data = Base64Decoder.decode(this)
+        val parcel = Parcel.obtain()
+        try {
+            parcel.unmarshall(data, 0, data.size)
+            parcel.setDataPosition(0)
+            return creator(parcel)
+        } finally {
+            parcel.recycle()
+        }
+    }
+
+    /**
+     * Write a backup as gzipped JSON Lines: a header line with the version and the sections,
+     * then one line for each chunk of at most [CHUNK_SIZE] rows.
+     */
+    fun doBackup(output: OutputStream, profile: Boolean, rule: Boolean, setting: Boolean) {
+        val sections = mutableListOf<String>()
+        if (profile) sections.addAll(listOf(SECTION_PROFILES, SECTION_GROUPS))
+        if (rule) sections.add(SECTION_RULES)
+        if (setting) sections.add(SECTION_SETTINGS)
+
+        GZIPOutputStream(output).bufferedWriter().use { writer ->
+            fun writeChunk(section: String, rows: List<Parcelable>) {
+                if (rows.isEmpty()) return
+                val chunk = JSONObject()
+                chunk["type"] = section
+                chunk["rows"] = JSONArray().apply { rows.forEach { add(it.toBase64Str()) } }
+                writer.write(chunk.toString())
+                writer.newLine()
             }
 
-            out["groups"] = JSONArray().apply {
-                SagerDatabase.groupDao.allGroups().forEach {
-                    add(it.toBase64Str())
+            writer.write(JSONObject().apply {
+                set("version", BACKUP_VERSION)
+                set("sections", JSONArray(sections))
+            }.toString())
+            writer.newLine()
+
+            if (profile) {
+                var after = 0L
+                while (true) {
+                    val page = SagerDatabase.proxyDao.getPage(after, CHUNK_SIZE)
+                    writeChunk(SECTION_PROFILES, page)
+                    if (page.size < CHUNK_SIZE) break
+                    after = page.last().id
+                }
+                SagerDatabase.groupDao.allGroups().chunked(CHUNK_SIZE).forEach {
+                    writeChunk(SECTION_GROUPS, it)
                 }
             }
-        }
-        if (rule) {
-            out["rules"] = JSONArray().apply {
-                SagerDatabase.rulesDao.allRules().forEach {
-                    add(it.toBase64Str())
+            if (rule) {
+                SagerDatabase.rulesDao.allRules().chunked(CHUNK_SIZE).forEach {
+                    writeChunk(SECTION_RULES, it)
                 }
             }
-        }
-        if (setting) {
-            out["settings"] = JSONArray().apply {
-                PublicDatabase.kvPairDao.all().forEach {
-                    add(it.toBase64Str())
+            if (setting) {
+                PublicDatabase.kvPairDao.all().chunked(CHUNK_SIZE).forEach {
+                    writeChunk(SECTION_SETTINGS, it)
                 }
             }
         }
-        return out.toStringPretty()
     }
 
     val importFile = registerForActivityResult(ActivityResultContracts.GetContent()) { file ->
@@ -180,53 +231,70 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
         }
     }
 
-    suspend fun startImport(file: Uri) {
-        val fileName = requireContext().contentResolver.query(file, null, null, null, null)
-            ?.use { cursor ->
-                cursor.moveToFirst()
-                cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME).let(cursor::getString)
-            }
-            ?.takeIf { it.isNotBlank() } ?: file.pathSegments.last()
-            .substringAfterLast('/')
-            .substringAfter(':')
-
-        if (!fileName.endsWith(".json")) {
-            onMainDispatcher {
-                snackbar(getString(R.string.backup_not_file, fileName)).show()
-            }
-            return
-        }
+    /**
+     * Open a backup, decompressing it if it starts with the gzip magic, which only the streaming
+     * format does. The second value tells whether it did.
+     */
+    private fun openBackup(file: Uri): Pair<InputStream, Boolean>? {
+        val input = BufferedInputStream(
+            requireContext().contentResolver.openInputStream(file) ?: return null
+        )
+        input.mark(2)
+        val magic = input.read() or (input.read() shl 8)
+        input.reset()
+        return if (magic == GZIPInputStream.GZIP_MAGIC) GZIPInputStream(input) to true else input to false
+    }
 
+    suspend fun startImport(file: Uri) {
         suspend fun invalid() = onMainDispatcher {
             onMainDispatcher {
                 snackbar(getString(R.string.invalid_backup_file)).show()
             }
         }
 
-        val content = try {
-            JSONObject((requireContext().contentResolver.openInputStream(file) ?: return).use {
-                it.bufferedReader().readText()
-            })
+        // the legacy format has to be parsed as a whole, the streaming one only needs its header
+        val (header, streaming) = try {
+            val (input, gzipped) = openBackup(file) ?: return
+            input.bufferedReader().use {
+                JSONObject(if (gzipped) it.readLine() else it.readText()) to gzipped
+            }
         } catch (e: Exception) {
             Logs.w(e)
             invalid()
             return
         }
-        val version = content.getInt("version", 0)
-        if (version < 1 || version > 1) {
+        val legacy: JSONObject?
+        val sections: Set<String>
+        val version = header.getInt("version", 0)
+        // only the streaming format is compressed
+        if (streaming != (version == BACKUP_VERSION)) {
             invalid()
             return
         }
+        when (version) {
+            1 -> {
+                legacy = header
+                sections = header.keys
+            }
+            BACKUP_VERSION -> {
+                legacy = null
+                sections = header.getJSONArray("sections")?.toList(String::class.java)?.toSet() ?: emptySet()
+            }
+            else -> {
+                invalid()
+                return
+            }
+        }
 
         onMainDispatcher {
             val import = LayoutImportBinding.inflate(layoutInflater)
-            if (!content.containsKey("profiles")) {
+            if (!sections.contains(SECTION_PROFILES)) {
                 import.backupConfigurations.isVisible = false
             }
-            if (!content.containsKey("rules")) {
+            if (!sections.contains(SECTION_RULES)) {
                 import.backupRules.isVisible = false
             }
-            if (!content.containsKey("settings")) {
+            if (!sections.contains(SECTION_SETTINGS)) {
                 import.backupSettings.isVisible = false
             }
             MaterialAlertDialogBuilder(requireContext()).setTitle(R.string.backup_import)
@@ -242,12 +310,16 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
                         .show()
                     runOnDefaultDispatcher {
                         runCatching {
-                            finishImport(
-                                content,
-                                import.backupConfigurations.isChecked,
-                                import.backupRules.isChecked,
-                                import.backupSettings.isChecked
-                            )
+                            val profile = import.backupConfigurations.isChecked
+                            val rule = import.backupRules.isChecked
+                            val setting = import.backupSettings.isChecked
+                            if (legacy != null) {
+                                finishImport(legacy, profile, rule, setting)
+                            } else {
+                                openBackup(file)!!.first.use {
+                                    finishImport(it, sections, profile, rule, setting)
+                                }
+                            }
                             ProcessPhoenix.triggerRebirth(
                                 requireContext(), Intent(requireContext(), MainActivity::class.java)
                             )
@@ -268,30 +340,76 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
         }
     }
 
+    /**
+     * Restore a streaming backup chunk by chunk. Rows of both databases are replaced in nested
+     * transactions, so a corrupt or truncated chunk leaves everything untouched.
+     */
+    fun finishImport(
+        input: InputStream, sections: Set<String>, profile: Boolean, rule: Boolean, setting: Boolean
+    ) {
+        val restoreProfiles = profile && sections.contains(SECTION_PROFILES)
+        val restoreRules = rule && sections.contains(SECTION_RULES)
+        val restoreSettings = setting && sections.contains(SECTION_SETTINGS)
+
+        SagerDatabase.runInTransaction {
+            if (restoreSettings) {
+                PublicDatabase.runInTransaction {
+                    PublicDatabase.kvPairDao.reset()
+                    restoreChunks(input, restoreProfiles, restoreRules, true)
+                }
+            } else {
+                restoreChunks(input, restoreProfiles, restoreRules, false)
+            }
+        }
+    }
+
+    private fun restoreChunks(
+        input: InputStream, restoreProfiles: Boolean, restoreRules: Boolean, restoreSettings: Boolean
+    ) {
+        if (restoreProfiles) {
+            SagerDatabase.proxyDao.reset()
+            SagerDatabase.groupDao.reset()
+        }
+        if (restoreRules) SagerDatabase.rulesDao.reset()
+
+        val reader = input.bufferedReader()
+        reader.readLine() // header
+        while (true) {
+            val line = reader.readLine() ?: break
+            if (line.isBlank()) continue
+            val chunk = JSONObject(line)
+            val rows = chunk.getJSONArray("rows").toList(String::class.java)
+            when (chunk.getStr("type")) {
+                SECTION_PROFILES -> if (restoreProfiles) SagerDatabase.proxyDao.insert(rows.map {
+                    it.fromBase64Str(ProxyEntity.CREATOR::createFromParcel)
+                })
+                SECTION_GROUPS -> if (restoreProfiles) SagerDatabase.groupDao.insert(rows.map {
+                    it.fromBase64Str(ProxyGroup.CREATOR::createFromParcel)
+                })
+                SECTION_RULES -> if (restoreRules) SagerDatabase.rulesDao.insert(rows.map {
+                    it.fromBase64Str(ParcelizeBridge::createRule)
+                })
+                SECTION_SETTINGS -> if (restoreSettings) PublicDatabase.kvPairDao.insert(rows.map {
+                    it.fromBase64Str(KeyValuePair.CREATOR::createFromParcel)
+                })
+            }
+        }
+    }
+
     fun finishImport(
         content: JSONObject, profile: Boolean, rule: Boolean, setting: Boolean
     ) {
         if (profile && content.containsKey("profiles")) {
             val profiles = mutableListOf<ProxyEntity>()
             content.getJSONArray("profiles").toList(String::class.java).forEach {
-                val data = Base64Decoder.decode(it)
-                val parcel = Parcel.obtain()
-                parcel.unmarshall(data, 0, data.size)
-                parcel.setDataPosition(0)
-                profiles.add(ProxyEntity.CREATOR.createFromParcel(parcel))
-                parcel.recycle()
+                profiles.add(it.fromBase64Str(ProxyEntity.CREATOR::createFromParcel))
             }
             SagerDatabase.proxyDao.reset()
             SagerDatabase.proxyDao.insert(profiles)
 
             val groups = mutableListOf<ProxyGroup>()
             content.getJSONArray("groups").toList(String::class.java).forEach {
-                val data = Base64Decoder.decode(it)
-                val parcel = Parcel.obtain()
-                parcel.unmarshall(data, 0, data.size)
-                parcel.setDataPosition(0)
-                groups.add(ProxyGroup.CREATOR.createFromParcel(parcel))
-                parcel.recycle()
+                groups.add(it.fromBase64Str(ProxyGroup.CREATOR::createFromParcel))
             }
             SagerDatabase.groupDao.reset()
             SagerDatabase.groupDao.insert(groups)
@@ -299,12 +417,7 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
         if (rule && content.containsKey("rules")) {
             val rules = mutableListOf<RuleEntity>()
             content.getJSONArray("rules").toList(String::class.java).forEach {
-                val data = Base64Decoder.decode(it)
-                val parcel = Parcel.obtain()
-                parcel.unmarshall(data, 0, data.size)
-                parcel.setDataPosition(0)
-                rules.add(ParcelizeBridge.createRule(parcel))
-                parcel.recycle()
+                rules.add(it.fromBase64Str(ParcelizeBridge::createRule))
             }
             SagerDatabase.rulesDao.reset()
             SagerDatabase.rulesDao.insert(rules)
@@ -312,16 +425,11 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
         if (setting && content.containsKey("settings")) {
             val settings = mutableListOf<KeyValuePair>()
             content.getJSONArray("settings").toList(String::class.java).forEach {
-                val data = Base64Decoder.decode(it)
-                val parcel = Parcel.obtain()
-                parcel.unmarshall(data, 0, data.size)
-                parcel.setDataPosition(0)
-                settings.add(KeyValuePair.CREATOR.createFromParcel(parcel))
-                parcel.recycle()
+                settings.add(it.fromBase64Str(KeyValuePair.CREATOR::createFromParcel))
             }
             PublicDatabase.kvPairDao.reset()
             PublicDatabase.kvPairDao.insert(settings)
         }
     }
 
-}
\ No newline at end of file
+}
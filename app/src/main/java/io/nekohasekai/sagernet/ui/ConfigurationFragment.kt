@@ -24,7 +24,6 @@ import android.content.Intent
 import android.graphics.Color
 import android.net.Uri
 import android.os.Bundle
-import android.os.SystemClock
 import android.provider.OpenableColumns
 import android.text.format.Formatter
 import android.text.method.LinkMovementMethod
@@ -52,6 +51,9 @@ import com.google.android.material.tabs.TabLayoutMediator
 import io.nekohasekai.sagernet.*
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.bg.BaseService
+import io.nekohasekai.sagernet.bg.test.AdaptiveLimiter
+import io.nekohasekai.sagernet.bg.test.ConnectionTestScheduler
+import io.nekohasekai.sagernet.bg.test.V2RayBatchTestInstance
 import io.nekohasekai.sagernet.bg.test.V2RayTestInstance
 import io.nekohasekai.sagernet.database.*
 import io.nekohasekai.sagernet.databinding.LayoutProfileBinding
@@ -70,12 +72,11 @@ import kotlinx.coroutines.*
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import libcore.Libcore
-import java.net.InetAddress
+import java.net.ConnectException
 import java.net.InetSocketAddress
-import java.net.Socket
-import java.net.UnknownHostException
+import java.net.NoRouteToHostException
+import java.net.SocketTimeoutException
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.zip.ZipInputStream
 import kotlin.concurrent.timerTask
 
@@ -653,6 +654,7 @@ class ConfigurationFragment @JvmOverloads constructor(
     fun pingTest(icmpPing: Boolean) {
         val test = TestDialog()
         val testJobs = mutableListOf<Job>()
+        val scheduler = ConnectionTestScheduler()
         val dialog = test.builder.show()
         val mainJob = runOnDefaultDispatcher {
             val group = DataStore.currentGroup()
@@ -674,118 +676,93 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
             }
             stopService()
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
-            val testPool = newFixedThreadPoolContext(5, "Connection test pool")
-            repeat(6) {
-                testJobs.add(launch(testPool) {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
+            for (profile in profilesUnfiltered) {
+                testJobs.add(launch {
+                    if (icmpPing) {
+                        if (!profile.requireBean().canICMPing()) {
+                            profile.status = -1
+                            profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
+                            test.insert(profile)
+                            return@launch
+                        }
+                    } else {
+                        if (!profile.requireBean().canTCPing()) {
+                            profile.status = -1
+                            profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
+                            test.insert(profile)
+                            return@launch
+                        }
+                    }
 
+                    profile.status = 0
+                    test.insert(profile)
+                    var address = profile.requireBean().serverAddress
+                    if (!address.isIpAddress()) {
+                        scheduler.resolve(address)?.hostAddress?.also {
+                            address = it
+                        }
+                    }
+                    if (!isActive) return@launch
+                    if (!address.isIpAddress()) {
+                        profile.status = 2
+                        profile.error = app.getString(R.string.connection_test_domain_not_found)
+                        test.update(profile)
+                        return@launch
+                    }
+                    try {
                         if (icmpPing) {
-                            if (!profile.requireBean().canICMPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
-                                test.insert(profile)
-                                continue
+                            val result = scheduler.schedule("icmp" to address) {
+                                runInterruptible {
+                                    Libcore.icmpPing(address, 5000)
+                                }.also {
+                                    if (it == -1) throw NoRouteToHostException()
+                                }
                             }
+                            if (!isActive) return@launch
+                            profile.status = 1
+                            profile.ping = result
+                            test.update(profile)
                         } else {
-                            if (!profile.requireBean().canTCPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
-                                test.insert(profile)
-                                continue
+                            val result = scheduler.tcpPing(
+                                InetSocketAddress(address, profile.requireBean().serverPort), 5000
+                            ) {
+                                protectFromVpn(it.socket().fileDescriptor.int)
                             }
+                            if (!isActive) return@launch
+                            profile.status = 1
+                            profile.ping = result
+                            test.update(profile)
                         }
+                    } catch (e: Exception) {
+                        if (!isActive) return@launch
+                        val message = e.readableMessage
 
-                        profile.status = 0
-                        test.insert(profile)
-                        var address = profile.requireBean().serverAddress
-                        if (!address.isIpAddress()) {
-                            try {
-                                InetAddress.getAllByName(address).apply {
-                                    if (isNotEmpty()) {
-                                        address = this[0].hostAddress
-                                    }
-                                }
-                            } catch (ignored: UnknownHostException) {
-                            }
-                        }
-                        if (!isActive) break
-                        if (!address.isIpAddress()) {
+                        if (icmpPing) {
                             profile.status = 2
-                            profile.error = app.getString(R.string.connection_test_domain_not_found)
-                            test.update(profile)
-                            continue
-                        }
-                        try {
-                            if (icmpPing) {
-                                val result = Libcore.icmpPing(
-                                    address, 5000
-                                )
-                                if (!isActive) break
-                                if (result != -1) {
-                                    profile.status = 1
-                                    profile.ping = result
-                                } else {
-                                    profile.status = 2
+                            profile.error = getString(R.string.connection_test_unreachable)
+                        } else {
+                            profile.status = 2
+                            when {
+                                e is SocketTimeoutException -> profile.error = getString(R.string.connection_test_timeout)
+                                e is NoRouteToHostException || message.contains("ENETUNREACH") -> {
                                     profile.error = getString(R.string.connection_test_unreachable)
                                 }
-                                test.update(profile)
-                            } else {
-                                val socket = Socket()
-                                try {
-                                    socket.soTimeout = 5000
-                                    socket.bind(InetSocketAddress(0))
-                                    protectFromVpn(socket.fileDescriptor.int)
-                                    val start = SystemClock.elapsedRealtime()
-                                    socket.connect(
-                                        InetSocketAddress(
-                                            address, profile.requireBean().serverPort
-                                        ), 5000
-                                    )
-                                    if (!isActive) break
-                                    profile.status = 1
-                                    profile.ping = (SystemClock.elapsedRealtime() - start).toInt()
-                                    test.update(profile)
-                                } finally {
-                                    runCatching {
-                                        socket.close()
-                                    }
+                                e is ConnectException || message.contains("ECONNREFUSED") -> {
+                                    profile.error = getString(R.string.connection_test_refused)
                                 }
-                            }
-                        } catch (e: Exception) {
-                            if (!isActive) break
-                            val message = e.readableMessage
-
-                            if (icmpPing) {
-                                profile.status = 2
-                                profile.error = getString(R.string.connection_test_unreachable)
-                            } else {
-                                profile.status = 2
-                                when {
-                                    !message.contains("failed:") -> profile.error = getString(R.string.connection_test_timeout)
-                                    else -> when {
-                                        message.contains("ECONNREFUSED") -> {
-                                            profile.error = getString(R.string.connection_test_refused)
-                                        }
-                                        message.contains("ENETUNREACH") -> {
-                                            profile.error = getString(R.string.connection_test_unreachable)
-                                        }
-                                        else -> {
-                                            profile.status = 3
-                                            profile.error = message
-                                        }
-                                    }
+                                else -> {
+                                    profile.status = 3
+                                    profile.error = message
                                 }
                             }
-                            test.update(profile)
                         }
+                        test.update(profile)
                     }
                 })
             }
 
             testJobs.joinAll()
-            testPool.close()
+            scheduler.close()
             test.close()
 
             ProfileManager.updateProfile(test.results.filter { it.status != 0 })
@@ -798,6 +775,7 @@ class ConfigurationFragment @JvmOverloads constructor(
         test.cancel = {
             mainJob.cancel()
             testJobs.forEach { it.cancel() }
+            scheduler.close()
             runOnDefaultDispatcher {
                 ProfileManager.updateProfile(test.results.filter { it.status != 0 })
             }
@@ -809,6 +787,7 @@ class ConfigurationFragment @JvmOverloads constructor(
         val test = TestDialog()
         val dialog = test.builder.show()
         val testJobs = mutableListOf<Job>()
+        val scheduler = ConnectionTestScheduler(AdaptiveLimiter(initial = 8, maxLimit = 32))
 
         val mainJob = runOnDefaultDispatcher {
             val group = DataStore.currentGroup()
@@ -829,41 +808,64 @@ class ConfigurationFragment @JvmOverloads constructor(
                     }
                 }
             }
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
             stopService()
 
             val link = DataStore.connectionTestURL
             val timeout = 5000
 
-            repeat(6) {
-                testJobs.add(launch {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
-                        profile.status = 0
-                        test.insert(profile)
-
-                        try {
-                            val instance = V2RayTestInstance(profile, link, timeout)
-                            val result = instance.use {
-                                it.doTest()
+            for (batch in profilesUnfiltered.chunked(V2RayBatchTestInstance.BATCH_SIZE)) {
+                if (!isActive) break
+                val instance = V2RayBatchTestInstance(batch, link, timeout)
+                // cancelling the test must not leak the core and its plugin processes
+                try {
+                    val started = try {
+                        instance.start()
+                        true
+                    } catch (e: Exception) {
+                        Logs.w(e)
+                        false
+                    }
+                    testJobs.clear()
+                    for (profile in batch) {
+                        testJobs.add(launch {
+                            profile.status = 0
+                            test.insert(profile)
+
+                            try {
+                                val result = scheduler.schedule("url" to profile.requireBean()) {
+                                    var result: Int? = null
+                                    if (started && !instance.failed) try {
+                                        result = instance.doTest(profile)
+                                    } catch (e: Exception) {
+                                        if (!instance.failed) throw e
+                                    }
+                                    // the batch is broken, retry alone so that one bad profile does not fail the others
+                                    result ?: V2RayTestInstance(profile, link, timeout).use {
+                                        it.doTest()
+                                    }
+                                }
+                                profile.status = 1
+                                profile.ping = result
+                            } catch (e: PluginManager.PluginNotFoundException) {
+                                profile.status = 2
+                                profile.error = e.readableMessage
+                            } catch (e: Exception) {
+                                if (!isActive) return@launch
+                                profile.status = 3
+                                profile.error = e.readableMessage
                             }
-                            profile.status = 1
-                            profile.ping = result
-                        } catch (e: PluginManager.PluginNotFoundException) {
-                            profile.status = 2
-                            profile.error = e.readableMessage
-                        } catch (e: Exception) {
-                            profile.status = 3
-                            profile.error = e.readableMessage
-                        }
 
-                        test.update(profile)
-                        ProfileManager.updateProfile(profile)
+                            test.update(profile)
+                            ProfileManager.updateProfile(profile)
+                        })
                     }
-                })
+                    testJobs.joinAll()
+                } finally {
+                    instance.close()
+                }
             }
 
-            testJobs.joinAll()
+            scheduler.close()
             test.close()
             onMainDispatcher {
                 test.binding.progressCircular.isGone = true
@@ -872,6 +874,7 @@ class ConfigurationFragment @JvmOverloads constructor(
         }
         test.cancel = {
             mainJob.cancel()
+            scheduler.close()
             runOnDefaultDispatcher {
                 GroupManager.postReload(DataStore.currentGroupId())
             }
@@ -1143,7 +1146,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                         recyclerView: RecyclerView,
                         viewHolder: RecyclerView.ViewHolder,
                     ): Int {
-                        return if (isProfileEditable((viewHolder as ConfigurationHolder).entity.id)) {
+                        return if (isProfileEditable((viewHolder as ConfigurationHolder).summary.id)) {
                             super.getSwipeDirs(recyclerView, viewHolder)
                         } else 0
                     }
@@ -1156,7 +1159,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                     override fun onSwiped(viewHolder: RecyclerView.ViewHolder, direction: Int) {
                         val index = viewHolder.bindingAdapterPosition
                         adapter.remove(index)
-                        undoManager.remove(index to (viewHolder as ConfigurationHolder).entity)
+                        undoManager.remove(index to (viewHolder as ConfigurationHolder).summary)
                     }
 
                     override fun onMove(
@@ -1197,27 +1200,16 @@ class ConfigurationFragment @JvmOverloads constructor(
         inner class ConfigurationAdapter : RecyclerView.Adapter<ConfigurationHolder>(),
             ProfileManager.Listener,
             GroupManager.Listener,
-            UndoSnackbarManager.Interface<ProxyEntity> {
+            UndoSnackbarManager.Interface<ProxySummary> {
 
             init {
                 setHasStableIds(true)
             }
 
             var configurationIdList: MutableList<Long> = mutableListOf()
-            val configurationList = HashMap<Long, ProxyEntity>()
-
-            private fun getItem(profileId: Long): ProxyEntity {
-                var profile = configurationList[profileId]
-                if (profile == null) {
-                    profile = ProfileManager.getProfile(profileId)
-                    if (profile != null) {
-                        configurationList[profileId] = profile
-                    }
-                }
-                return profile!!
-            }
+            val configurationList = HashMap<Long, ProxySummary>()
 
-            private fun getItemAt(index: Int) = getItem(configurationIdList[index])
+            private fun getItemAt(index: Int) = configurationList[configurationIdList[index]]!!
 
             override fun onCreateViewHolder(
                 parent: ViewGroup,
@@ -1244,7 +1236,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 return configurationIdList.size
             }
 
-            private val updated = HashSet<ProxyEntity>()
+            private val updated = HashSet<ProxySummary>()
 
             fun move(from: Int, to: Int) {
                 val first = getItemAt(from)
@@ -1267,7 +1259,7 @@ class ConfigurationFragment @JvmOverloads constructor(
             }
 
             fun commitMove() = runOnDefaultDispatcher {
-                updated.forEach { SagerDatabase.proxyDao.updateProxy(it) }
+                updated.forEach { SagerDatabase.proxyDao.updateOrder(it.id, it.userOrder) }
                 updated.clear()
             }
 
@@ -1276,7 +1268,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 notifyItemRemoved(pos)
             }
 
-            override fun undo(actions: List<Pair<Int, ProxyEntity>>) {
+            override fun undo(actions: List<Pair<Int, ProxySummary>>) {
                 for ((index, item) in actions) {
                     configurationListView.post {
                         configurationList[item.id] = item
@@ -1286,7 +1278,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
             }
 
-            override fun commit(actions: List<Pair<Int, ProxyEntity>>) {
+            override fun commit(actions: List<Pair<Int, ProxySummary>>) {
                 val profiles = actions.map { it.second }
                 runOnDefaultDispatcher {
                     for (entity in profiles) {
@@ -1297,13 +1289,14 @@ class ConfigurationFragment @JvmOverloads constructor(
 
             override suspend fun onAdd(profile: ProxyEntity) {
                 if (profile.groupId != proxyGroup.id) return
+                val summary = profile.toSummary()
 
                 configurationListView.post {
                     if (::undoManager.isInitialized) {
                         undoManager.flush()
                     }
                     val pos = itemCount
-                    configurationList[profile.id] = profile
+                    configurationList[profile.id] = summary
                     configurationIdList.add(profile.id)
                     notifyItemInserted(pos)
                 }
@@ -1313,11 +1306,12 @@ class ConfigurationFragment @JvmOverloads constructor(
                 if (profile.groupId != proxyGroup.id) return
                 val index = configurationIdList.indexOf(profile.id)
                 if (index < 0) return
+                val summary = profile.toSummary()
                 configurationListView.post {
                     if (::undoManager.isInitialized) {
                         undoManager.flush()
                     }
-                    configurationList[profile.id] = profile
+                    configurationList[profile.id] = summary
                     notifyItemChanged(index)
                 }
             }
@@ -1328,9 +1322,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                     val holder = layoutManager.findViewByPosition(index)
                         ?.let { configurationListView.getChildViewHolder(it) } as ConfigurationHolder?
                     if (holder != null) {
-                        holder.entity.stats = trafficStats
+                        holder.summary.stats = trafficStats
                         onMainDispatcher {
-                            holder.bind(holder.entity)
+                            holder.bind(holder.summary)
                         }
                     }
                 }
@@ -1371,26 +1365,30 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
 
 
-                var newProfiles = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
+                var newProfiles = SagerDatabase.proxyDao.getSummaryByGroup(proxyGroup.id)
                 val subscription = proxyGroup.subscription
-                if (subscription != null) {
+                if (subscription != null && (subscription.selectedGroups.isNotEmpty() || subscription.selectedOwners.isNotEmpty() || subscription.selectedTags.isNotEmpty())) {
+                    // the filters need the beans, decode them here and keep only the summaries
+                    var filtered = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
                     if (subscription.selectedGroups.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { it.requireBean().group in subscription.selectedGroups }
+                        filtered = filtered.filter { it.requireBean().group in subscription.selectedGroups }
                     }
                     if (subscription.selectedOwners.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { it.requireBean().owner in subscription.selectedOwners }
+                        filtered = filtered.filter { it.requireBean().owner in subscription.selectedOwners }
                     }
                     if (subscription.selectedTags.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { profile ->
+                        filtered = filtered.filter { profile ->
                             profile.requireBean().tags.containsAll(
                                 subscription.selectedTags
                             )
                         }
                     }
+                    val filteredIds = filtered.mapTo(HashSet()) { it.id }
+                    newProfiles = newProfiles.filter { it.id in filteredIds }
                 }
                 when (proxyGroup.order) {
                     GroupOrder.BY_NAME -> {
-                        newProfiles = newProfiles.sortedBy { it.displayName() }
+                        newProfiles = newProfiles.sortedBy { it.profileName }
 
                     }
                     GroupOrder.BY_DELAY -> {
@@ -1398,8 +1396,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                     }
                 }
 
-                configurationList.clear()
-                configurationList.putAll(newProfiles.associateBy { it.id })
+                val newProfileList = newProfiles.associateBy { it.id }
                 val newProfileIds = newProfiles.map { it.id }
 
                 var selectedProfileIndex = -1
@@ -1410,13 +1407,15 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
 
                 configurationListView.post {
+                    configurationList.clear()
+                    configurationList.putAll(newProfileList)
                     configurationIdList.clear()
                     configurationIdList.addAll(newProfileIds)
                     notifyDataSetChanged()
 
                     if (selectedProfileIndex != -1) {
                         configurationListView.scrollTo(selectedProfileIndex, true)
-                    } else if (newProfiles.isNotEmpty()) {
+                    } else if (newProfileIds.isNotEmpty()) {
                         configurationListView.scrollTo(0, true)
                     }
 
@@ -1431,7 +1430,8 @@ class ConfigurationFragment @JvmOverloads constructor(
         inner class ConfigurationHolder(val view: View) : RecyclerView.ViewHolder(view),
             PopupMenu.OnMenuItemClickListener {
 
-            lateinit var entity: ProxyEntity
+            lateinit var summary: ProxySummary
+            var entity: ProxyEntity? = null
 
             val profileName: TextView = view.findViewById(R.id.profile_name)
             val profileType: TextView = view.findViewById(R.id.profile_type)
@@ -1445,14 +1445,34 @@ class ConfigurationFragment @JvmOverloads constructor(
             val shareLayer: LinearLayout = view.findViewById(R.id.share_layer)
             val shareButton: ImageView = view.findViewById(R.id.shareIcon)
 
-            fun bind(proxyEntity: ProxyEntity) {
+            /**
+             * Runs [block] with the full entity of the bound row, decoding it off the main thread
+             * the first time it is needed.
+             */
+            fun withEntity(block: (ProxyEntity) -> Unit) {
+                entity?.let { return block(it) }
+                val proxySummary = summary
+                runOnDefaultDispatcher {
+                    val proxyEntity = ProfileManager.getProfile(proxySummary.id) ?: return@runOnDefaultDispatcher
+                    onMainDispatcher {
+                        if (summary !== proxySummary) return@onMainDispatcher
+                        entity = proxyEntity
+                        block(proxyEntity)
+                    }
+                }
+            }
+
+            fun bind(proxySummary: ProxySummary) {
                 val parent = parent ?: return
 
-                entity = proxyEntity
+                if (!::summary.isInitialized || summary !== proxySummary) {
+                    entity = null
+                }
+                summary = proxySummary
 
                 if (parent.select) {
                     view.setOnClickListener {
-                        (requireActivity() as SelectCallback).returnProfile(proxyEntity.id)
+                        (requireActivity() as SelectCallback).returnProfile(proxySummary.id)
                     }
                 } else {
                     val pa = activity as MainActivity
@@ -1462,9 +1482,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                             var update: Boolean
                             var lastSelected: Long
                             profileAccess.withLock {
-                                update = DataStore.selectedProxy != proxyEntity.id
+                                update = DataStore.selectedProxy != proxySummary.id
                                 lastSelected = DataStore.selectedProxy
-                                DataStore.selectedProxy = proxyEntity.id
+                                DataStore.selectedProxy = proxySummary.id
                                 onMainDispatcher {
                                     selectedView.visibility = View.VISIBLE
                                 }
@@ -1488,13 +1508,13 @@ class ConfigurationFragment @JvmOverloads constructor(
                     }
                 }
 
-                profileName.text = proxyEntity.displayName()
-                profileType.text = proxyEntity.displayType()
+                profileName.text = proxySummary.profileName
+                profileType.text = proxySummary.profileType
 
-                var rx = proxyEntity.rx
-                var tx = proxyEntity.tx
+                var rx = proxySummary.rx
+                var tx = proxySummary.tx
 
-                val stats = proxyEntity.stats
+                val stats = proxySummary.stats
                 if (stats != null) {
                     rx += stats.rxTotal
                     tx += stats.txTotal
@@ -1510,19 +1530,19 @@ class ConfigurationFragment @JvmOverloads constructor(
                     )
                 }
 
-                var address = proxyEntity.displayAddress()
+                var address = proxySummary.profileAddress
                 if (showTraffic && address.length >= 30) {
                     address = address.substring(0, 27) + "..."
                 }
 
-                if (proxyEntity.requireBean().name.isBlank() || !parent.alwaysShowAddress) {
+                if (!proxySummary.hasName() || !parent.alwaysShowAddress) {
                     address = ""
                 }
 
                 profileAddress.text = address
-                (trafficText.parent as View).isGone = (!showTraffic || proxyEntity.status <= 0) && address.isBlank()
+                (trafficText.parent as View).isGone = (!showTraffic || proxySummary.status <= 0) && address.isBlank()
 
-                if (proxyEntity.status <= 0) {
+                if (proxySummary.status <= 0) {
                     if (showTraffic) {
                         profileStatus.text = trafficText.text
                         profileStatus.setTextColor(requireContext().getColorAttr(android.R.attr.textColorSecondary))
@@ -1530,20 +1550,20 @@ class ConfigurationFragment @JvmOverloads constructor(
                     } else {
                         profileStatus.text = ""
                     }
-                } else if (proxyEntity.status == 1) {
-                    profileStatus.text = getString(R.string.available, proxyEntity.ping)
+                } else if (proxySummary.status == 1) {
+                    profileStatus.text = getString(R.string.available, proxySummary.ping)
                     profileStatus.setTextColor(requireContext().getColour(R.color.material_green_500))
                 } else {
                     profileStatus.setTextColor(requireContext().getColour(R.color.material_red_500))
-                    if (proxyEntity.status == 2) {
-                        profileStatus.text = proxyEntity.error
+                    if (proxySummary.status == 2) {
+                        profileStatus.text = proxySummary.error
                     }
                 }
 
-                if (proxyEntity.status == 3) {
+                if (proxySummary.status == 3) {
                     profileStatus.setText(R.string.unavailable)
                     profileStatus.setOnClickListener {
-                        alert(proxyEntity.error ?: "<?>").show()
+                        alert(proxySummary.error ?: "<?>").show()
                     }
                 } else {
                     profileStatus.setOnClickListener(null)
@@ -1551,7 +1571,7 @@ class ConfigurationFragment @JvmOverloads constructor(
 
                 editButton.setOnClickListener {
                     it.context.startActivity(
-                        proxyEntity.settingIntent(
+                        proxySummary.settingIntent(
                             it.context, proxyGroup.type == GroupType.SUBSCRIPTION
                         )
                     )
@@ -1561,47 +1581,17 @@ class ConfigurationFragment @JvmOverloads constructor(
 
                 runOnDefaultDispatcher {
                     val selected = (parent.selectedItem?.id
-                        ?: DataStore.selectedProxy) == proxyEntity.id
-                    val started = selected && SagerNet.started && DataStore.startedProfile == proxyEntity.id
+                        ?: DataStore.selectedProxy) == proxySummary.id
+                    val started = selected && SagerNet.started && DataStore.startedProfile == proxySummary.id
                     onMainDispatcher {
                         editButton.isEnabled = !started
                         selectedView.visibility = if (selected) View.VISIBLE else View.INVISIBLE
                     }
 
-                    fun showShare(anchor: View) {
-                        val popup = PopupMenu(requireContext(), anchor)
-                        popup.menuInflater.inflate(R.menu.profile_share_menu, popup.menu)
-
-                        if (proxyEntity.vmessBean == null) {
-                            popup.menu.findItem(R.id.action_group_qr).subMenu.removeItem(R.id.action_v2rayn_qr)
-                            popup.menu.findItem(R.id.action_group_clipboard).subMenu.removeItem(R.id.action_v2rayn_clipboard)
-                        }
-
-                        when {
-                            !proxyEntity.haveLink() -> {
-                                popup.menu.removeItem(R.id.action_group_qr)
-                                popup.menu.removeItem(R.id.action_group_clipboard)
-                            }
-                            !proxyEntity.haveStandardLink() -> {
-                                popup.menu.findItem(R.id.action_group_qr).subMenu.removeItem(R.id.action_standard_qr)
-                                popup.menu.findItem(R.id.action_group_clipboard).subMenu.removeItem(
-                                    R.id.action_standard_clipboard
-                                )
-                            }
-                        }
-
-                        if (proxyEntity.ptBean != null || proxyEntity.brookBean != null) {
-                            popup.menu.removeItem(R.id.action_group_configuration)
-                        }
-
-                        popup.setOnMenuItemClickListener(this@ConfigurationHolder)
-                        popup.show()
-                    }
-
                     if (!parent.select) {
 
                         val validateResult = if (parent.securityAdvisory) {
-                            proxyEntity.requireBean().isInsecure()
+                            proxySummary.advisory()
                         } else ResultLocal
 
                         when (validateResult) {
@@ -1618,7 +1608,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                                             .bufferedReader()
                                             .use { it.readText() })
                                         .setPositiveButton(android.R.string.ok) { _, _ ->
-                                            showShare(it)
+                                            withEntity { profile -> showShare(profile, it) }
                                         }
                                         .show()
                                         .apply {
@@ -1642,7 +1632,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                                             .bufferedReader()
                                             .use { it.readText() })
                                         .setPositiveButton(android.R.string.ok) { _, _ ->
-                                            showShare(it)
+                                            withEntity { profile -> showShare(profile, it) }
                                         }
                                         .show()
                                         .apply {
@@ -1660,7 +1650,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                                 shareButton.isVisible = true
 
                                 shareLayout.setOnClickListener {
-                                    showShare(it)
+                                    withEntity { profile -> showShare(profile, it) }
                                 }
                             }
                         }
@@ -1669,6 +1659,36 @@ class ConfigurationFragment @JvmOverloads constructor(
 
             }
 
+            fun showShare(proxyEntity: ProxyEntity, anchor: View) {
+                val popup = PopupMenu(requireContext(), anchor)
+                popup.menuInflater.inflate(R.menu.profile_share_menu, popup.menu)
+
+                if (proxyEntity.vmessBean == null) {
+                    popup.menu.findItem(R.id.action_group_qr).subMenu.removeItem(R.id.action_v2rayn_qr)
+                    popup.menu.findItem(R.id.action_group_clipboard).subMenu.removeItem(R.id.action_v2rayn_clipboard)
+                }
+
+                when {
+                    !proxyEntity.haveLink() -> {
+                        popup.menu.removeItem(R.id.action_group_qr)
+                        popup.menu.removeItem(R.id.action_group_clipboard)
+                    }
+                    !proxyEntity.haveStandardLink() -> {
+                        popup.menu.findItem(R.id.action_group_qr).subMenu.removeItem(R.id.action_standard_qr)
+                        popup.menu.findItem(R.id.action_group_clipboard).subMenu.removeItem(
+                            R.id.action_standard_clipboard
+                        )
+                    }
+                }
+
+                if (proxyEntity.ptBean != null || proxyEntity.brookBean != null) {
+                    popup.menu.removeItem(R.id.action_group_configuration)
+                }
+
+                popup.setOnMenuItemClickListener(this@ConfigurationHolder)
+                popup.show()
+            }
+
             fun showCode(link: String) {
                 QRCodeDialog(link).showAllowingStateLoss(parentFragmentManager)
             }
@@ -1680,6 +1700,7 @@ class ConfigurationFragment @JvmOverloads constructor(
             }
 
             override fun onMenuItemClick(item: MenuItem): Boolean {
+                val entity = entity ?: return true
                 try {
                     when (item.itemId) {
                         R.id.action_standard_qr -> showCode(entity.toLink()!!)
@@ -1691,6 +1712,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                         R.id.action_v2rayn_qr -> showCode(entity.vmessBean!!.toV2rayN())
                         R.id.action_v2rayn_clipboard -> export(entity.vmessBean!!.toV2rayN())
                         R.id.action_config_export_clipboard -> export(entity.exportConfig().first)
+                        R.id.action_traffic_history -> showTrafficHistory(
+                            TrafficHistory.KIND_OUTBOUND, entity.id.toString(), entity.displayName()
+                        )
                         R.id.action_config_export_file -> {
                             val cfg = entity.exportConfig()
                             DataStore.serverConfig = cfg.first
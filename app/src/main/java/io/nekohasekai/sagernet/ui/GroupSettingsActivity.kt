@@ -88,6 +88,11 @@ class GroupSettingsActivity(
                 customUserAgent = DataStore.subscriptionUserAgent
                 autoUpdate = DataStore.subscriptionAutoUpdate
                 autoUpdateDelay = DataStore.subscriptionAutoUpdateDelay
+
+                // settings changed, the next update must not be skipped
+                lastETag = ""
+                lastModified = ""
+                lastContentHash = ""
             }
         }
     }
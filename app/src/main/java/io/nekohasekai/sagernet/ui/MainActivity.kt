@@ -367,7 +367,7 @@ class MainActivity : ThemedActivity(),
         val started = state == BaseService.State.Connected
 
         if (!started) {
-            statsUpdated(emptyList())
+            statsUpdated(emptyList(), true)
         }
 
         binding.fab.changeState(state, this.state, animate)
@@ -377,7 +377,7 @@ class MainActivity : ThemedActivity(),
 
         when (state) {
             BaseService.State.Connected, BaseService.State.Stopped -> {
-                statsUpdated(emptyList())
+                statsUpdated(emptyList(), true)
             }
         }
     }
@@ -394,9 +394,9 @@ class MainActivity : ThemedActivity(),
         changeState(state, msg, true)
     }
 
-    override fun statsUpdated(stats: List<AppStats>) {
+    override fun statsUpdated(stats: List<AppStats>, replaced: Boolean) {
         (supportFragmentManager.findFragmentById(R.id.fragment_holder) as? TrafficFragment)?.emitStats(
-            stats
+            stats, replaced
         )
     }
 
@@ -20,12 +20,15 @@
 package io.nekohasekai.sagernet.ui
 
 import android.os.Bundle
+import android.os.SystemClock
 import android.text.format.Formatter
+import android.util.SparseLongArray
 import android.view.View
 import android.view.ViewGroup
 import androidx.appcompat.widget.PopupMenu
 import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
+import androidx.recyclerview.widget.AsyncListDiffer
 import androidx.recyclerview.widget.RecyclerView
 import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.R
@@ -33,6 +36,9 @@ import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.aidl.AppStats
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.database.StatsEntity
+import io.nekohasekai.sagernet.database.TrafficBucket
+import io.nekohasekai.sagernet.database.TrafficHistory
 import io.nekohasekai.sagernet.databinding.LayoutTrafficItemBinding
 import io.nekohasekai.sagernet.databinding.LayoutTrafficListBinding
 import io.nekohasekai.sagernet.ktx.*
@@ -52,13 +58,47 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
         (parentFragment as TrafficFragment).listeners.add(::emitStats)
 
         runOnDefaultDispatcher {
-            emitStats(emptyList())
+            emitStats(emptyList(), true)
         }
     }
 
-    fun emitStats(statsList: List<AppStats>) {
+    // stats persisted by previous sessions, only reloaded when the live list is replaced or reset
+    private var persistedStats: List<StatsEntity>? = null
+    private val lastTotals = SparseLongArray()
+
+    @Synchronized
+    private fun persistedStats(statsList: List<AppStats>, replaced: Boolean): List<StatsEntity> {
+        var reload = replaced || statsList.isEmpty()
+        if (reload) lastTotals.clear()
+        for (stats in statsList) {
+            val total = stats.uplinkTotal + stats.downlinkTotal
+            if (total < lastTotals.get(stats.uid)) reload = true
+            lastTotals.put(stats.uid, total)
+        }
+        if (reload) dayTotalsLoaded = 0L
+        return persistedStats.takeIf { !reload } ?: SagerDatabase.statsDao.all().also {
+            persistedStats = it
+        }
+    }
+
+    // traffic of each app during the last day, the history is written once a minute
+    @Volatile
+    private var dayTotals = emptyMap<String, TrafficBucket>()
+    private var dayTotalsLoaded = 0L
+
+    @Synchronized
+    private fun loadDayTotals() {
+        val now = SystemClock.elapsedRealtime()
+        if (dayTotalsLoaded != 0L && now - dayTotalsLoaded < 60_000L) return
+        dayTotalsLoaded = now
+        dayTotals = TrafficHistory.totals(
+            TrafficHistory.KIND_APP, System.currentTimeMillis() / 1000 - TrafficHistory.DAY
+        ).associateBy { it.name }
+    }
+
+    fun emitStats(statsList: List<AppStats>, replaced: Boolean) {
         var data = statsList.associate { it.packageName to it.copy() }.toMutableMap()
-        for (stats in SagerDatabase.statsDao.all()) {
+        for (stats in persistedStats(statsList, replaced)) {
             if (data.containsKey(stats.packageName)) {
                 data[stats.packageName]!! += stats
             } else {
@@ -85,8 +125,7 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
                 }
             }
             binding.trafficList.post {
-                adapter.data = emptyList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(emptyList())
             }
         } else {
             runOnMainDispatcher {
@@ -110,9 +149,10 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
                     }
                 }
             }
+            loadDayTotals()
+            val list = data.values.toList()
             binding.trafficList.post {
-                adapter.data = data.values.toList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(list)
             }
         }
     }
@@ -123,7 +163,12 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
             setHasStableIds(true)
         }
 
-        lateinit var data: List<AppStats>
+        // diffs are computed on a background thread and dispatched on the main thread
+        private val differ = AsyncListDiffer(this, AppStatsDiffCallback)
+
+        val data: List<AppStats> get() = differ.currentList
+
+        fun submit(list: List<AppStats>) = differ.submitList(list)
 
         override fun getItemId(position: Int): Long {
             return data[position].uid.toLong()
@@ -140,7 +185,6 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
         }
 
         override fun getItemCount(): Int {
-            if (!::data.isInitialized) return 0
             return data.size
         }
     }
@@ -156,7 +200,7 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
             PackageCache.awaitLoadSync()
 
             val packageName = if (stats.uid > 1000) {
-                PackageCache.uidMap[stats.uid]?.iterator()?.next() ?: "android"
+                PackageCache.packageName(stats.uid) ?: "android"
             } else {
                 "android"
             }
@@ -174,7 +218,16 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
             }
 
             binding.label.text = PackageCache.loadLabel(packageName)
-            binding.desc.text = "$packageName (${stats.uid})"
+            val dayTotal = dayTotals[stats.packageName]
+            binding.desc.text = if (dayTotal == null) {
+                "$packageName (${stats.uid})"
+            } else {
+                "$packageName (${stats.uid})\n" + getString(
+                    R.string.traffic_last_day,
+                    Formatter.formatFileSize(requireContext(), dayTotal.uplink),
+                    Formatter.formatFileSize(requireContext(), dayTotal.downlink)
+                )
+            }
             binding.tcpConnections.text = getString(
                 R.string.tcp_connections, stats.tcpConnectionsTotal
             )
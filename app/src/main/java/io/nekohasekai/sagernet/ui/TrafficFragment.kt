@@ -36,6 +36,7 @@ import com.google.android.material.tabs.TabLayoutMediator
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.aidl.AppStats
+import io.nekohasekai.sagernet.database.TrafficHistory
 import io.nekohasekai.sagernet.databinding.LayoutTrafficBinding
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.utils.PackageCache
@@ -75,7 +76,7 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
             R.id.action_clear_traffic_statistics -> {
                 (requireActivity() as MainActivity).connection.service?.resetTrafficStats()
                 runOnDefaultDispatcher {
-                    emitStats(emptyList())
+                    emitStats(emptyList(), true)
                 }
             }
         }
@@ -97,11 +98,11 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
 
     }
 
-    val listeners = mutableListOf<(List<AppStats>) -> Unit>()
+    val listeners = mutableListOf<(List<AppStats>, Boolean) -> Unit>()
 
-    fun emitStats(statsList: List<AppStats>) {
+    fun emitStats(statsList: List<AppStats>, replaced: Boolean) {
         runOnDefaultDispatcher {
-            for (listener in listeners) listener(statsList)
+            for (listener in listeners) listener(statsList, replaced)
         }
     }
 
@@ -187,6 +188,9 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
                 R.id.disconnect -> {
                     (requireActivity() as? MainActivity)?.connection?.service?.closeConnections(stats.uid)
                 }
+                R.id.traffic_history -> showTrafficHistory(
+                    TrafficHistory.KIND_APP, stats.packageName, PackageCache.loadLabel(stats.packageName)
+                )
             }
             return true
         }
@@ -157,7 +157,9 @@ abstract class ProfileSettingsActivity<T : AbstractBean>(
             if (entity.id == DataStore.selectedProxy) {
                 SagerNet.stopService()
             }
-            ProfileManager.updateProfile(entity.apply { (requireBean() as T).serialize() })
+            ProfileManager.updateProfile(entity.apply {
+                (requireBean() as T).apply { serialize() }.invalidateFingerprint()
+            })
         }
         if (editingId == DataStore.selectedProxy && DataStore.directBootAware) DirectBoot.update()
         finish()
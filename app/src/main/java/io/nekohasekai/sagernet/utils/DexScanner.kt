@@ -0,0 +1,190 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.utils
+
+import android.content.pm.PackageInfo
+import androidx.core.content.pm.PackageInfoCompat
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.app
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import org.jf.dexlib2.dexbacked.DexBackedDexFile
+import java.io.File
+import java.io.InputStream
+import java.util.zip.ZipException
+import java.util.zip.ZipFile
+
+/**
+ * Finds the packages whose dex files contain classes under any of a set of package prefixes.
+ *
+ * Only the type table of each dex is checked, against a prefix trie. Packages are scanned in
+ * parallel, and results are saved by package name, version code and update time, so a rescan
+ * only opens the apks that changed.
+ */
+class DexScanner(prefixes: List<String>) {
+
+    companion object {
+        private val MAX_CONCURRENT = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+    }
+
+    private class Node {
+        val children = HashMap<Char, Node>()
+        var terminal = false
+    }
+
+    private val root = Node()
+    private val signature = prefixes.sorted().joinToString(",").hashCode().toString()
+    private val cacheFile get() = File(app.cacheDir, "dex_scan_cache")
+
+    init {
+        for (prefix in prefixes) {
+            var node = root
+            for (char in "${prefix.replace('.', '/')}/") {
+                node = node.children.getOrPut(char) { Node() }
+            }
+            node.terminal = true
+        }
+    }
+
+    /**
+     * Match a type descriptor such as `Lcom/example/Foo;`, with `$` treated as a package separator.
+     */
+    fun matches(descriptor: String): Boolean {
+        if (descriptor.isEmpty() || descriptor[0] != 'L') return false
+        var node = root
+        for (index in 1 until descriptor.length) {
+            val char = descriptor[index].let { if (it == '$') '/' else it }
+            node = node.children[char] ?: return false
+            if (node.terminal) return true
+        }
+        return false
+    }
+
+    private fun cacheKey(info: PackageInfo): String {
+        return "${info.packageName}\t${PackageInfoCompat.getLongVersionCode(info)}\t${info.lastUpdateTime}"
+    }
+
+    private fun loadCache(): MutableMap<String, Boolean> {
+        val cache = HashMap<String, Boolean>()
+        try {
+            if (!cacheFile.isFile) return cache
+            cacheFile.bufferedReader().use { reader ->
+                if (reader.readLine() != signature) return cache
+                reader.forEachLine { line ->
+                    cache[line.substringBeforeLast('\t')] = line.substringAfterLast('\t') == "1"
+                }
+            }
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+        return cache
+    }
+
+    private fun saveCache(cache: Map<String, Boolean>) {
+        try {
+            cacheFile.bufferedWriter().use { writer ->
+                writer.write(signature)
+                for ((key, matched) in cache) {
+                    writer.newLine()
+                    writer.write("$key\t${if (matched) 1 else 0}")
+                }
+            }
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+    }
+
+    /**
+     * Whether the apk of [info] contains a matching type, or null if one of its dex files could
+     * not be read, so that the failure is retried instead of cached.
+     */
+    private fun scanApk(info: PackageInfo): Boolean? {
+        ZipFile(File(info.applicationInfo.publicSourceDir)).use { zipFile ->
+            for (entry in zipFile.entries()) {
+                if (!entry.name.startsWith("classes") || !entry.name.endsWith(".dex")) continue
+                val dexFile = try {
+                    val buffer = zipFile.getInputStream(entry).use { input ->
+                        if (entry.size in 1..Int.MAX_VALUE) {
+                            ByteArray(entry.size.toInt()).also { input.readFully(it) }
+                        } else {
+                            input.readBytes()
+                        }
+                    }
+                    DexBackedDexFile(null, buffer)
+                } catch (e: Exception) {
+                    Logs.w("Error in pkg ${info.packageName}:${info.versionName}", e)
+                    return null
+                }
+                if (dexFile.typeSection.any(::matches)) return true
+            }
+        }
+        return false
+    }
+
+    private fun InputStream.readFully(buffer: ByteArray) {
+        var offset = 0
+        while (offset < buffer.size) {
+            val read = read(buffer, offset, buffer.size - offset)
+            if (read < 0) break
+            offset += read
+        }
+    }
+
+    /**
+     * Scan [packages], calling [onScanned] with each result as soon as it is known. Packages whose
+     * apk could not be read are missing from the result.
+     */
+    suspend fun scan(
+        packages: Collection<PackageInfo>, onScanned: suspend (PackageInfo, Boolean) -> Unit
+    ): Map<String, Boolean> {
+        val cache = loadCache()
+        val results = HashMap<String, Boolean>()
+        val updatedCache = HashMap<String, Boolean>()
+        val semaphore = Semaphore(MAX_CONCURRENT)
+        coroutineScope {
+            packages.map { info ->
+                async(Dispatchers.IO) {
+                    val key = cacheKey(info)
+                    val matched = cache[key] ?: semaphore.withPermit {
+                        try {
+                            scanApk(info)
+                        } catch (e: ZipException) {
+                            Logs.w("Error in pkg ${info.packageName}:${info.versionName}", e)
+                            null
+                        }
+                    } ?: return@async
+                    synchronized(results) {
+                        results[info.packageName] = matched
+                        updatedCache[key] = matched
+                    }
+                    onScanned(info, matched)
+                }
+            }.awaitAll()
+        }
+        // entries of removed or updated apps are dropped here
+        saveCache(updatedCache)
+        return results
+    }
+
+}
@@ -21,58 +21,188 @@ package io.nekohasekai.sagernet.utils
 
 import android.Manifest
 import android.annotation.SuppressLint
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.util.SparseArray
+import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
-import io.nekohasekai.sagernet.ktx.listenForPackageChanges
+import io.nekohasekai.sagernet.ktx.runOnDefaultDispatcher
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import java.io.File
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * Installed packages, with a uid index.
+ *
+ * The uid index and the labels are saved to disk, so lookups by uid or package name work as soon
+ * as [awaitIndexSync] returns, before PackageManager has been queried. Package broadcasts are then
+ * applied one package at a time instead of reloading everything.
+ */
 object PackageCache {
 
+    @Volatile
     lateinit var installedPackages: Map<String, PackageInfo>
+
+    @Volatile
     lateinit var installedApps: Map<String, ApplicationInfo>
+
+    @Volatile
     lateinit var packageMap: Map<String, Int>
-    val uidMap = HashMap<Int, HashSet<String>>()
+
+    @Volatile
+    private var uidMap = SparseArray<Array<String>>()
+
     val loaded = Mutex(true)
+    // released once, either by the saved index or by the first reload, and waiters never hold it
+    private val indexLoaded = CountDownLatch(1)
+
+    private val indexFile get() = File(app.cacheDir, "package_index")
 
     fun register() {
+        if (loadIndex()) indexLoaded.countDown()
         reload()
-        app.listenForPackageChanges(false) {
-            reload()
-            labelMap.clear()
-        }
+        saveIndex()
+        app.registerReceiver(object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                val packageName = intent.data?.schemeSpecificPart ?: return
+                val replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                runOnDefaultDispatcher {
+                    when (intent.action) {
+                        Intent.ACTION_PACKAGE_ADDED -> update(packageName)
+                        Intent.ACTION_PACKAGE_REMOVED -> if (!replacing) remove(packageName)
+                    }
+                }
+            }
+        }, IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addDataScheme("package")
+        })
+        indexLoaded.countDown()
         loaded.unlock()
     }
 
+    private fun hasInternet(info: PackageInfo) = when (info.packageName) {
+        "android" -> true
+        else -> info.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
+    }
+
+    private fun buildUidMap(packageMap: Map<String, Int>): SparseArray<Array<String>> {
+        val uids = SparseArray<Array<String>>()
+        for ((packageName, uid) in packageMap) {
+            val packageNames = uids[uid]
+            uids.put(uid, if (packageNames == null) arrayOf(packageName) else packageNames + packageName)
+        }
+        return uids
+    }
+
     @SuppressLint("InlinedApi")
     fun reload() {
         installedPackages = app.packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS or PackageManager.MATCH_UNINSTALLED_PACKAGES)
-            .filter {
-                when (it.packageName) {
-                    "android" -> true
-                    else -> it.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
-                }
-            }
+            .filter(::hasInternet)
             .associateBy { it.packageName }
 
         val installed = app.packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
         installedApps = installed.associateBy { it.packageName }
         packageMap = installed.associate { it.packageName to it.uid }
-        uidMap.clear()
-        for (info in installed) {
-            val uid = info.uid
-            uidMap.getOrPut(uid) { HashSet() }.add(info.packageName)
+        uidMap = buildUidMap(packageMap)
+    }
+
+    // the maps are replaced, never modified, as they are read without locking
+    @Synchronized
+    private fun update(packageName: String) {
+        val packageInfo: PackageInfo
+        val applicationInfo: ApplicationInfo
+        try {
+            packageInfo = app.packageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS)
+            applicationInfo = app.packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA)
+        } catch (e: PackageManager.NameNotFoundException) {
+            remove(packageName)
+            return
         }
+        installedPackages = if (hasInternet(packageInfo)) {
+            installedPackages + (packageName to packageInfo)
+        } else {
+            installedPackages - packageName
+        }
+        installedApps = installedApps + (packageName to applicationInfo)
+        packageMap = packageMap + (packageName to applicationInfo.uid)
+        uidMap = buildUidMap(packageMap)
+        labelMap.remove(packageName)
+        saveIndex()
+    }
+
+    @Synchronized
+    private fun remove(packageName: String) {
+        if (!packageMap.containsKey(packageName)) return
+        installedPackages = installedPackages - packageName
+        installedApps = installedApps - packageName
+        packageMap = packageMap - packageName
+        uidMap = buildUidMap(packageMap)
+        labelMap.remove(packageName)
+        saveIndex()
     }
 
-    operator fun get(uid: Int) = uidMap[uid]
+    /**
+     * Index file: the locale the labels were loaded in, then one `packageName uid label` line per package.
+     */
+    private fun loadIndex(): Boolean {
+        try {
+            if (!indexFile.isFile) return false
+            val packages = HashMap<String, Int>()
+            indexFile.bufferedReader().use { reader ->
+                val labelsValid = reader.readLine() == Locale.getDefault().toString()
+                reader.forEachLine { line ->
+                    val (packageName, uid, label) = line.split('\t', limit = 3)
+                    packages[packageName] = uid.toInt()
+                    if (labelsValid && label.isNotEmpty()) labelMap[packageName] = label
+                }
+            }
+            packageMap = packages
+            uidMap = buildUidMap(packages)
+            return true
+        } catch (e: Exception) {
+            Logs.w(e)
+            return false
+        }
+    }
+
+    @Synchronized
+    private fun saveIndex() {
+        try {
+            indexFile.bufferedWriter().use { writer ->
+                writer.write(Locale.getDefault().toString())
+                for ((packageName, uid) in packageMap) {
+                    writer.newLine()
+                    val label = labelMap[packageName]?.replace('\n', ' ')?.replace('\t', ' ') ?: ""
+                    writer.write("$packageName\t$uid\t$label")
+                }
+            }
+        } catch (e: Exception) {
+            Logs.w(e)
+        }
+    }
+
+    operator fun get(uid: Int): Array<String>? = uidMap[uid]
     operator fun get(packageName: String) = packageMap[packageName]
 
+    /**
+     * The first package of [uid], if any.
+     */
+    fun packageName(uid: Int) = uidMap[uid]?.firstOrNull()
+
     suspend fun awaitLoad() {
-        if (::packageMap.isInitialized) {
+        if (!loaded.isLocked) {
             return
         }
         loaded.withLock {
@@ -81,7 +211,7 @@ object PackageCache {
     }
 
     fun awaitLoadSync() {
-        if (::packageMap.isInitialized) {
+        if (!loaded.isLocked) {
             return
         }
         runBlocking {
@@ -91,14 +221,28 @@ object PackageCache {
         }
     }
 
-    private val labelMap = mutableMapOf<String, String>()
+    /**
+     * Wait until lookups by uid or package name can be answered, possibly from the saved index.
+     */
+    fun awaitIndexSync() {
+        indexLoaded.await()
+    }
+
+    private val labelMap = Collections.synchronizedMap(mutableMapOf<String, String>())
+    private val labelsDirty = AtomicBoolean()
     fun loadLabel(packageName: String): String {
         var label = labelMap[packageName]
         if (label != null) return label
+        awaitLoadSync()
         val info = installedApps[packageName] ?: return packageName
         label = info.loadLabel(app.packageManager).toString()
         labelMap[packageName] = label
+        if (labelsDirty.compareAndSet(false, true)) runOnDefaultDispatcher {
+            delay(5000L)
+            labelsDirty.set(false)
+            saveIndex()
+        }
         return label
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,178 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.database
+
+import io.nekohasekai.sagernet.database.TrafficHistory.DAY
+import io.nekohasekai.sagernet.database.TrafficHistory.HOUR
+import io.nekohasekai.sagernet.database.TrafficHistory.KIND_APP
+import io.nekohasekai.sagernet.database.TrafficHistory.KIND_OUTBOUND
+import io.nekohasekai.sagernet.database.TrafficHistory.MINUTE
+import junit.framework.TestCase
+
+class TestTrafficHistory : TestCase() {
+
+    // in memory version of the queries of TrafficBucket.Dao
+    private class MemoryDao : TrafficBucket.Dao {
+
+        val buckets = ArrayList<TrafficBucket>()
+
+        override fun add(
+            resolution: Int, kind: Int, name: String, time: Long, uplink: Long, downlink: Long
+        ): Int {
+            val bucket = buckets.find {
+                it.resolution == resolution && it.kind == kind && it.name == name && it.time == time
+            } ?: return 0
+            bucket.uplink += uplink
+            bucket.downlink += downlink
+            return 1
+        }
+
+        override fun insert(bucket: TrafficBucket) {
+            buckets.add(bucket)
+        }
+
+        override fun series(resolution: Int, kind: Int, name: String, since: Long) = buckets.filter {
+            it.resolution == resolution && it.kind == kind && it.name == name && it.time >= since
+        }.sortedBy { it.time }
+
+        override fun totals(kind: Int, since: Long) = buckets.filter {
+            it.kind == kind && it.time >= since
+        }.groupBy { it.name }.map { (name, buckets) ->
+            TrafficBucket(0, kind, name, 0, buckets.sumOf { it.uplink }, buckets.sumOf { it.downlink })
+        }
+
+        override fun rollup(from: Int, to: Int, before: Long) = buckets.filter {
+            it.resolution == from && it.time < before
+        }.groupBy { Triple(it.kind, it.name, it.time / to * to) }.map { (key, buckets) ->
+            TrafficBucket(
+                to, key.first, key.second, key.third, buckets.sumOf { it.uplink }, buckets.sumOf { it.downlink }
+            )
+        }
+
+        override fun deleteBefore(resolution: Int, before: Long): Int {
+            val size = buckets.size
+            buckets.removeAll { it.resolution == resolution && it.time < before }
+            return size - buckets.size
+        }
+
+        override fun deleteAll() {
+            buckets.clear()
+        }
+
+    }
+
+    private val start = 1_000L * DAY
+    private var now = start
+    private val dao = MemoryDao()
+    private val history = TrafficHistoryStore({ dao }, { it() }, { now })
+
+    private fun resolutions() = dao.buckets.map { it.resolution }.toSet()
+
+    fun testMinuteBuckets() {
+        history.record(KIND_APP, "app", 1, 2)
+        now += 30
+        history.record(KIND_APP, "app", 10, 20)
+        history.record(KIND_OUTBOUND, "1", 5, 5)
+        history.flushCompleted()
+        assertTrue(dao.buckets.isEmpty())
+
+        now += MINUTE
+        history.record(KIND_APP, "app", 100, 200)
+        history.flushCompleted()
+        val series = history.series(KIND_APP, "app", start, MINUTE)
+        assertEquals(listOf(start, start + MINUTE), series.map { it.time })
+        assertEquals(listOf(11L, 100L), series.map { it.uplink })
+        assertEquals(listOf(22L, 200L), series.map { it.downlink })
+
+        val hourly = history.series(KIND_APP, "app", start, HOUR)
+        assertEquals(1, hourly.size)
+        assertEquals(HOUR, hourly[0].resolution)
+        assertEquals(111L, hourly[0].uplink)
+        assertEquals(5L, history.totals(KIND_OUTBOUND, start).single().uplink)
+    }
+
+    fun testRecordTotal() {
+        history.recordTotal(KIND_APP, "app", 10001, 100, 100)
+        history.recordTotal(KIND_APP, "app", 10001, 150, 120)
+        // counters reset
+        history.recordTotal(KIND_APP, "app", 10001, 10, 10)
+        history.flush()
+        val total = history.totals(KIND_APP, start).single()
+        assertEquals(160L, total.uplink)
+        assertEquals(130L, total.downlink)
+    }
+
+    fun testRollup() {
+        for (minute in 0 until 2 * 60) {
+            now = start + minute * MINUTE
+            history.record(KIND_APP, "app", 1, 1)
+            history.flush()
+        }
+        assertEquals(setOf(MINUTE), resolutions())
+
+        // the first two hours are a day old, the third one is not over yet
+        now = start + DAY + 2 * HOUR + 30 * MINUTE
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        val rolled = dao.buckets.filter { it.resolution == HOUR }
+        assertEquals(listOf(start, start + HOUR), rolled.map { it.time })
+        assertEquals(listOf(60L, 60L), rolled.map { it.uplink })
+        assertEquals(1, dao.buckets.count { it.resolution == MINUTE })
+        assertEquals(121L, history.totals(KIND_APP, start).single().uplink)
+
+        // rollup runs at most once an hour
+        now += HOUR - 1
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        assertEquals(2, dao.buckets.count { it.resolution == MINUTE })
+
+        now = start + 31L * DAY
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        // only the first day is a month old
+        val days = dao.buckets.filter { it.resolution == DAY }
+        assertEquals(listOf(start), days.map { it.time })
+        assertEquals(120L, days.single().uplink)
+        assertEquals(setOf(MINUTE, HOUR, DAY), resolutions())
+        val series = history.series(KIND_APP, "app", start, HOUR)
+        assertEquals(
+            listOf(start, start + DAY + 2 * HOUR, start + DAY + 3 * HOUR, start + 31L * DAY),
+            series.map { it.time })
+        assertEquals(listOf(DAY, HOUR, HOUR, HOUR), series.map { it.resolution })
+        assertEquals(123L, series.sumOf { it.uplink })
+    }
+
+    fun testRetention() {
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        now = start + 31L * DAY
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        assertEquals(setOf(MINUTE, DAY), resolutions())
+
+        now = start + 366L * DAY
+        history.record(KIND_APP, "app", 1, 1)
+        history.flush()
+        // the first day is dropped, the one rolled up now is kept
+        assertEquals(listOf(start + 31L * DAY), dao.buckets.filter { it.resolution == DAY }.map { it.time })
+        assertEquals(2L, history.totals(KIND_APP, 0).single().uplink)
+    }
+
+}
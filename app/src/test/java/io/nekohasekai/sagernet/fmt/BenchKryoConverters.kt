@@ -0,0 +1,57 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.fmt.TestKryoConverters.Companion.beans
+import io.nekohasekai.sagernet.fmt.TestKryoConverters.Companion.sample
+import junit.framework.TestCase
+
+/**
+ * Encode and decode cost of every bean type.
+ *
+ * Timings depend on the machine, so this only runs when SAGERNET_BENCHMARK is set:
+ * `SAGERNET_BENCHMARK=1 ./gradlew :app:testOssDebugUnitTest --tests '*BenchKryoConverters'`
+ */
+class BenchKryoConverters : TestCase() {
+
+    override fun runTest() {
+        if (System.getenv("SAGERNET_BENCHMARK") != null) super.runTest()
+    }
+
+    fun testEncodeDecodeCost() {
+        val rounds = 2000
+        for (constructor in beans) {
+            val bean = sample(constructor)
+            var bytes = KryoConverters.serialize(bean)
+            repeat(rounds) { KryoConverters.deserialize(constructor(), KryoConverters.serialize(bean)) }
+
+            var start = System.nanoTime()
+            repeat(rounds) { bytes = KryoConverters.serialize(bean) }
+            val encode = (System.nanoTime() - start) / rounds
+
+            start = System.nanoTime()
+            repeat(rounds) { KryoConverters.deserialize(constructor(), bytes) }
+            val decode = (System.nanoTime() - start) / rounds
+
+            println("${bean.javaClass.simpleName}: ${bytes.size} bytes, encode $encode ns, decode $decode ns")
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import com.google.gson.JsonParser
+import io.nekohasekai.sagernet.fmt.gson.gson
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig
+import junit.framework.TestCase
+
+class TestConfigEncoder : TestCase() {
+
+    private fun outbound(protocol: String, tag: String?) = V2RayConfig.OutboundObject().apply {
+        this.protocol = protocol
+        this.tag = tag
+        if (protocol == "freedom") {
+            settings = V2RayConfig.LazyOutboundConfigurationObject(this,
+                V2RayConfig.FreedomOutboundConfigurationObject().apply {
+                    domainStrategy = "UseIP"
+                })
+        }
+    }
+
+    private fun config() = V2RayConfig().apply {
+        log = V2RayConfig.LogObject().apply {
+            loglevel = "warning"
+        }
+        outbounds = listOf(
+            outbound("freedom", "direct"), outbound("blackhole", "block"), outbound("dns", null)
+        )
+        stats = emptyMap()
+    }
+
+    fun testSameDocument() {
+        val config = config()
+        val encoded = config.encode()
+        assertEquals(gson.toJsonTree(config), JsonParser.parseString(encoded.config))
+        assertFalse(encoded.config.contains('\n'))
+    }
+
+    fun testSections() {
+        val encoded = config().encode()
+        assertEquals(
+            listOf("log", "outbounds/direct", "outbounds/block", "outbounds/#2", "stats"),
+            encoded.sections.keys.toList()
+        )
+        assertEquals("{}", encoded.sections["stats"])
+        assertEquals(
+            JsonParser.parseString(encoded.config).asJsonObject["outbounds"].asJsonArray[0],
+            JsonParser.parseString(encoded.sections["outbounds/direct"]!!)
+        )
+    }
+
+}
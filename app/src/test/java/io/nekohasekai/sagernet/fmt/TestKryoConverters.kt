@@ -0,0 +1,149 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import com.esotericsoftware.kryo.io.ByteBufferInput
+import com.esotericsoftware.kryo.io.ByteBufferOutput
+import io.nekohasekai.sagernet.fmt.brook.BrookBean
+import io.nekohasekai.sagernet.fmt.http.HttpBean
+import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
+import io.nekohasekai.sagernet.fmt.internal.BalancerBean
+import io.nekohasekai.sagernet.fmt.internal.ChainBean
+import io.nekohasekai.sagernet.fmt.internal.ConfigBean
+import io.nekohasekai.sagernet.fmt.mieru.MieruBean
+import io.nekohasekai.sagernet.fmt.naive.NaiveBean
+import io.nekohasekai.sagernet.fmt.pingtunnel.PingTunnelBean
+import io.nekohasekai.sagernet.fmt.relaybaton.RelayBatonBean
+import io.nekohasekai.sagernet.fmt.shadowsocks.ShadowsocksBean
+import io.nekohasekai.sagernet.fmt.shadowsocksr.ShadowsocksRBean
+import io.nekohasekai.sagernet.fmt.socks.SOCKSBean
+import io.nekohasekai.sagernet.fmt.ssh.SSHBean
+import io.nekohasekai.sagernet.fmt.trojan.TrojanBean
+import io.nekohasekai.sagernet.fmt.trojan_go.TrojanGoBean
+import io.nekohasekai.sagernet.fmt.tuic.TuicBean
+import io.nekohasekai.sagernet.fmt.v2ray.VLESSBean
+import io.nekohasekai.sagernet.fmt.v2ray.VMessBean
+import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean
+import io.nekohasekai.sagernet.ktx.applyDefaultValues
+import junit.framework.TestCase
+
+class TestKryoConverters : TestCase() {
+
+    companion object {
+
+        val beans: List<() -> AbstractBean> = listOf(
+            ::SOCKSBean,
+            ::HttpBean,
+            ::ShadowsocksBean,
+            ::ShadowsocksRBean,
+            ::VMessBean,
+            ::VLESSBean,
+            ::TrojanBean,
+            ::TrojanGoBean,
+            ::NaiveBean,
+            ::PingTunnelBean,
+            ::RelayBatonBean,
+            ::BrookBean,
+            ::HysteriaBean,
+            ::SSHBean,
+            ::WireGuardBean,
+            ::MieruBean,
+            ::TuicBean,
+            ::ConfigBean,
+            ::ChainBean,
+            ::BalancerBean,
+        )
+
+        fun sample(constructor: () -> AbstractBean) = constructor().applyDefaultValues().apply {
+            serverAddress = "example.com"
+            serverPort = 443
+            name = "日本 VIP节点"
+        }
+
+    }
+
+    fun testRoundTrip() {
+        for (constructor in beans) {
+            val bean = sample(constructor)
+            val bytes = KryoConverters.serialize(bean)
+            val decoded = KryoConverters.deserialize(constructor(), bytes)
+            assertEquals(bean.javaClass.simpleName, bean, decoded)
+            assertEquals(bean.javaClass.simpleName, bean.name, decoded.name)
+            assertTrue(bytes.contentEquals(KryoConverters.serialize(decoded)))
+        }
+    }
+
+    fun testFingerprint() {
+        for (constructor in beans) {
+            val bean = sample(constructor)
+            val renamed = sample(constructor).apply { name = "renamed" }
+            assertEquals(bean.javaClass.simpleName, bean, renamed)
+            assertEquals(bean.javaClass.simpleName, bean.hashCode(), renamed.hashCode())
+
+            renamed.serverPort = 8443
+            renamed.invalidateFingerprint()
+            assertFalse(bean.javaClass.simpleName, bean == renamed)
+        }
+    }
+
+    fun testNestedSerialize() {
+        val inner = sample(::VMessBean)
+        val outer = object : Serializable() {
+            override fun initializeDefaultValues() {
+            }
+
+            override fun serializeToBuffer(output: ByteBufferOutput) {
+                output.writeString("outer")
+                val data = KryoConverters.serialize(inner)
+                output.writeVarInt(data.size, true)
+                output.writeBytes(data)
+            }
+
+            override fun deserializeFromBuffer(input: ByteBufferInput) {
+                assertEquals("outer", input.readString())
+                val decoded = KryoConverters.deserialize(VMessBean(), input.readBytes(input.readVarInt(true)))
+                assertEquals(inner, decoded)
+            }
+        }
+        KryoConverters.deserialize(outer, KryoConverters.serialize(outer))
+    }
+
+    fun testBufferReuse() {
+        val expected = beans.map { KryoConverters.serialize(sample(it)) }
+        for (bytes in expected) {
+            // samples fit the initial buffer, so encoding them never grows it
+            assertTrue(bytes.size < 1024)
+        }
+
+        // grow the reused buffer past the size it is kept at, then encode everything again
+        val large = (sample(::ConfigBean) as ConfigBean).apply { content = "x".repeat(128 * 1024) }
+        val largeBytes = KryoConverters.serialize(large)
+        assertEquals(large, KryoConverters.deserialize(ConfigBean(), largeBytes))
+
+        for ((index, constructor) in beans.withIndex()) {
+            val bean = sample(constructor)
+            val bytes = KryoConverters.serialize(bean)
+            assertTrue(bean.javaClass.simpleName, expected[index].contentEquals(bytes))
+            assertEquals(bean.javaClass.simpleName, bean, KryoConverters.deserialize(constructor(), bytes))
+        }
+        assertTrue(largeBytes.contentEquals(KryoConverters.serialize(large)))
+    }
+
+}
@@ -0,0 +1,77 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import io.nekohasekai.sagernet.fmt.shadowsocks.ShadowsocksBean
+import io.nekohasekai.sagernet.fmt.socks.SOCKSBean
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig
+import io.nekohasekai.sagernet.fmt.v2ray.VMessBean
+import io.nekohasekai.sagernet.ktx.applyDefaultValues
+import junit.framework.TestCase
+
+class TestOutboundFragments : TestCase() {
+
+    private fun vmess() = VMessBean().applyDefaultValues().apply {
+        serverAddress = "example.com"
+        serverPort = 443
+        uuid = "59f34e8c-f310-49b0-b240-11663e365601"
+    }
+
+    private fun key(bean: AbstractBean, mux: Boolean = false) =
+        OutboundFragments.key(bean, 15, mux, 8, "AsIs")
+
+    fun testKey() {
+        assertEquals(key(vmess()), key(vmess()))
+        // the name is not part of the outbound
+        assertEquals(key(vmess()), key(vmess().apply { name = "renamed" }))
+        assertFalse(key(vmess()) == key(vmess().apply { finalPort = 20000 }))
+        assertFalse(key(vmess()) == key(vmess().apply { serverPort = 8443 }))
+        assertFalse(key(vmess()) == key(vmess(), mux = true))
+        assertFalse(key(vmess()) == OutboundFragments.key(vmess(), 30, false, 8, "AsIs"))
+        assertFalse(key(vmess()) == OutboundFragments.key(vmess(), 15, false, 8, "UseIP"))
+        assertNull(key(ShadowsocksBean().applyDefaultValues().apply {
+            plugin = "obfs-local;obfs=http"
+        }))
+        assertFalse(key(vmess()) == key(SOCKSBean().applyDefaultValues().apply {
+            serverAddress = "example.com"
+            serverPort = 443
+        }))
+    }
+
+    fun testBuild() {
+        val cache = OutboundFragments()
+        var builds = 0
+        fun fragment() = cache.getOrBuild(key(vmess())) {
+            builds++
+            OutboundFragment(V2RayConfig.OutboundObject().apply {
+                protocol = "vmess"
+            }, "UseIP", false)
+        }
+        val first = fragment().build()
+        val second = fragment().build()
+        assertEquals(1, builds)
+        assertNotSame(first, second)
+        assertEquals("vmess", second.protocol)
+        assertEquals("UseIP", second.domainStrategy)
+        first.tag = "first"
+        assertNull(second.tag)
+    }
+
+}
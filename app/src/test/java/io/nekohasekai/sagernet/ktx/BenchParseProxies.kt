@@ -0,0 +1,49 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ * Copyright (C) 2021 by Max Lv <max.c.lv@gmail.com>                          *
+ * Copyright (C) 2021 by Mygod Studio <contact-shadowsocks-android@mygod.be>  *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+
+package io.nekohasekai.sagernet.ktx
+
+import io.nekohasekai.sagernet.ktx.TestParseProxies.Companion.corpus
+import junit.framework.TestCase
+
+/**
+ * Parse time of mixed-link subscriptions of 1k, 10k and 50k links.
+ *
+ * Timings depend on the machine, so this only runs when SAGERNET_BENCHMARK is set:
+ * `SAGERNET_BENCHMARK=1 ./gradlew :app:testOssDebugUnitTest --tests '*BenchParseProxies'`
+ */
+class BenchParseProxies : TestCase() {
+
+    override fun runTest() {
+        if (System.getenv("SAGERNET_BENCHMARK") != null) super.runTest()
+    }
+
+    fun testParseCorpus() {
+        for (size in intArrayOf(1000, 10000, 50000)) {
+            val text = corpus(size)
+            val errors = LinkParseErrors()
+            val start = System.nanoTime()
+            val beans = parseProxies(text, errors)
+            val elapsed = (System.nanoTime() - start) / 1000000
+            println("parsed ${beans.size} of $size links in ${elapsed}ms, errors: $errors")
+            assertEquals(size, beans.size + errors.failed.values.sum())
+        }
+    }
+
+}
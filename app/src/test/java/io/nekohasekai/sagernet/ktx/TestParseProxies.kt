@@ -0,0 +1,82 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ * Copyright (C) 2021 by Max Lv <max.c.lv@gmail.com>                          *
+ * Copyright (C) 2021 by Mygod Studio <contact-shadowsocks-android@mygod.be>  *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.ktx
+
+import cn.hutool.core.codec.Base64
+import junit.framework.TestCase
+
+class TestParseProxies : TestCase() {
+
+    companion object {
+
+        fun link(index: Int): String {
+            val host = "node$index.example.com"
+            val port = 10000 + index % 50000
+            val uuid = "59f34e8c-f310-49b0-b240-${"%012d".format(index)}"
+            return when (index % 5) {
+                0 -> "vmess://" + Base64.encode(
+                    """{"v":"2","ps":"vmess-$index","add":"$host","port":"$port","id":"$uuid","aid":"0","net":"ws","type":"none","host":"$host","path":"/ws","tls":"tls"}"""
+                )
+                1 -> "vless://$uuid@$host:$port?type=grpc&serviceName=grpc&security=tls&sni=$host#vless-$index"
+                2 -> "ss://" + Base64.encodeUrlSafe("aes-256-gcm:password$index") + "@$host:$port#ss-$index"
+                3 -> "ssr://" + Base64.encodeUrlSafe(
+                    "$host:$port:auth_aes128_md5:aes-256-cfb:tls1.2_ticket_auth:" + Base64.encodeUrlSafe("password$index") + "/?remarks=" + Base64.encodeUrlSafe("ssr-$index")
+                )
+                else -> "trojan://password$index@$host:$port?sni=$host#trojan-$index"
+            }
+        }
+
+        fun corpus(size: Int) = buildString {
+            for (index in 0 until size) {
+                appendLine(link(index))
+                // some subscriptions put comments between links
+                if (index % 100 == 0) appendLine("# comment $index")
+            }
+        }
+
+    }
+
+    fun testSpaceSeparatedLinks() {
+        val errors = LinkParseErrors()
+        val text = "${link(0)} ${link(5)}\n${link(10)}\n\nnot-a-link\nvmess://invalid"
+        val beans = parseProxies(text, errors)
+        assertEquals(listOf("vmess-0", "vmess-5", "vmess-10"), beans.map { it.name })
+        assertEquals(1, errors.unrecognized)
+        assertEquals(mapOf("vmess" to 1), errors.failed)
+    }
+
+    fun testTrailingComment() {
+        val errors = LinkParseErrors()
+        val beans = parseProxies("${link(15)} trailing-comment", errors)
+        assertEquals(listOf("vmess-15"), beans.map { it.name })
+        assertEquals(0, errors.total)
+    }
+
+    fun testParseCorpus() {
+        val size = 1000
+        val errors = LinkParseErrors()
+        val beans = parseProxies(corpus(size), errors)
+        assertEquals(size, beans.size + errors.failed.values.sum())
+        assertEquals((size + 99) / 100, errors.unrecognized)
+    }
+
+}
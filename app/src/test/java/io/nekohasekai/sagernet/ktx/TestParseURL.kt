@@ -0,0 +1,116 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2021 by nekohasekai <contact-sagernet@sekai.icu>             *
+ * Copyright (C) 2021 by Max Lv <max.c.lv@gmail.com>                          *
+ * Copyright (C) 2021 by Mygod Studio <contact-shadowsocks-android@mygod.be>  *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.ktx
+
+import junit.framework.TestCase
+
+/**
+ * Expectations follow Go's net/url, which Libcore.parseURL wraps.
+ */
+class TestParseURL : TestCase() {
+
+    fun testComponents() {
+        val url = parseURL("trojan://pass%40word@example.com:443?sni=a.com&alpn=h2%2Chttp%2F1.1#My%20Node")
+        assertEquals("trojan", url.scheme)
+        assertEquals("pass@word", url.username)
+        assertEquals("", url.password)
+        assertEquals("example.com", url.host)
+        assertEquals(443, url.port)
+        assertEquals("a.com", url.queryParameter("sni"))
+        assertEquals("h2,http/1.1", url.queryParameter("alpn"))
+        assertNull(url.queryParameter("peer"))
+        assertEquals("My Node", url.fragment)
+    }
+
+    fun testUserPassword() {
+        val url = parseURL("ss://aes-256-gcm:pa+ss@1.2.3.4:8388/?plugin=obfs-local%3Bobfs%3Dhttp#a+b")
+        assertEquals("aes-256-gcm", url.username)
+        assertEquals("pa+ss", url.password)
+        assertEquals("obfs-local;obfs=http", url.queryParameter("plugin"))
+        assertEquals("a+b", url.fragment)
+        assertEquals("/", url.rawPath)
+    }
+
+    fun testIPv6() {
+        val url = parseURL("vless://uuid@[2001:db8::1]:8443?type=ws&path=%2Fws")
+        assertEquals("2001:db8::1", url.host)
+        assertEquals(8443, url.port)
+        assertEquals("/ws", url.queryParameter("path"))
+        assertEquals("", url.rawPath)
+    }
+
+    fun testMissingPort() {
+        val url = parseURL("socks5://example.com")
+        assertEquals("example.com", url.host)
+        assertEquals(0, url.port)
+    }
+
+    fun testQuery() {
+        val url = parseURL("http://h:80/?a=b+c&empty=&a=second&bad=%zz&x=1;y=2&k")
+        assertEquals("b c", url.queryParameter("a"))
+        assertNull(url.queryParameter("empty"))
+        assertNull(url.queryParameter("bad"))
+        assertNull(url.queryParameter("x"))
+        assertEquals("", url.queryParameterNotBlank("k"))
+    }
+
+    fun testUnicode() {
+        val url = parseURL("trojan://p@h:1#日本%20节点")
+        assertEquals("日本 节点", url.fragment)
+        url.setRawFragment("%E9%A6%99%E6%B8%AF")
+        assertEquals("香港", url.fragment)
+    }
+
+    fun testSchemes() {
+        assertEquals("naive+https", parseURL("naive+https://u:p@h:443").scheme)
+        assertEquals("vmess", parseURL("VMess://u@h:1").scheme)
+        assertEquals("", parseURL("8.8.8.8").scheme)
+        assertEquals("1.1.1.1", parseURL("tls://1.1.1.1").host)
+    }
+
+    fun testSlashInUserinfo() {
+        // the authority ends at the first slash
+        val url = parseURL("ss://YWVz/YWJj@h:1")
+        assertEquals("YWVz", url.host)
+        assertEquals("/YWJj@h:1", url.path)
+    }
+
+    fun testErrors() {
+        for (invalid in listOf(
+            "http://h:12a",
+            "trojan://p@h:1#%zz",
+            "http://[::1",
+            "8.8.8.8:53",
+            "://h",
+            "http://h%20:1",
+            "http://us\"er@h:1",
+            "http://h\n:1",
+        )) {
+            try {
+                parseURL(invalid)
+                fail("parsed $invalid")
+            } catch (expected: URLParseException) {
+            }
+        }
+    }
+
+}